@@ -1,23 +1,32 @@
 create table Flights_Users (
   username varchar(20) not null primary key,
-  pass varbinary(20) not null,
+  pass varbinary(64) not null,
   salt varbinary(16) not null,
-  balance int not null
+  balance int not null,
+  version int not null default 0
 )
 
 create table Flights_Reservations (
   rid int identity(1, 1),
   username varchar(20) not null references Flights_Users,
   paid bit,
-  info text,
   day int,
   price int,
   fid1 int,
   fid2 int,
+  version int not null default 0,
   primary key (rid, username)
 )
 
+create table Flights_Reservation_Legs (
+  rid int not null,
+  leg int not null,
+  fid int not null,
+  primary key (rid, leg)
+)
+
 create table Flights_Capacity (
   fid int primary key,
-  capacity int
+  capacity int,
+  version int not null default 0
 )
\ No newline at end of file
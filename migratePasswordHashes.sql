@@ -0,0 +1 @@
+alter table Flights_Users alter column pass varbinary(64) not null
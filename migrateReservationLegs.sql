@@ -0,0 +1,20 @@
+if object_id('Flights_Reservation_Legs') is null
+create table Flights_Reservation_Legs (
+  rid int not null,
+  leg int not null,
+  fid int not null,
+  primary key (rid, leg)
+)
+
+insert into Flights_Reservation_Legs (rid, leg, fid)
+select r.rid, 0, r.fid1
+from Flights_Reservations r
+where not exists (select * from Flights_Reservation_Legs l where l.rid = r.rid)
+
+insert into Flights_Reservation_Legs (rid, leg, fid)
+select r.rid, 1, r.fid2
+from Flights_Reservations r
+where r.fid2 <> -1
+and not exists (select * from Flights_Reservation_Legs l where l.rid = r.rid and l.leg = 1)
+
+alter table Flights_Reservations drop column info
@@ -0,0 +1,5 @@
+alter table Flights_Users add version int not null default 0
+
+alter table Flights_Reservations add version int not null default 0
+
+alter table Flights_Capacity add version int not null default 0
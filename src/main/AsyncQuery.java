@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Runs one session's transactions off the caller's thread, each returning a future of its
+ * response. A caller can start any number of transactions without waiting, and they run
+ * one after another in the order they were started, like commands typed into the REPL.
+ * <p>
+ * Transactions run on a virtual thread each when the JVM has them, shared by every
+ * asynchronous session, so thousands of sessions blocked on the database hold no platform
+ * thread. Without virtual threads they run on platform threads with a small stack, see
+ * {@link FlightServer}.
+ * <p>
+ * A transaction that throws completes its future exceptionally. The next transaction
+ * still runs.
+ */
+public class AsyncQuery {
+
+    // Runs the transactions of every asynchronous session
+    private static final ExecutorService transactions = FlightServer.newSessionExecutor();
+
+    private final Query q;
+    // The transaction started last, the next one runs after it ends
+    private CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param q session to run the transactions of. It must not be used directly while
+     *          any of its transactions are running.
+     */
+    public AsyncQuery(Query q) {
+        this.q = q;
+    }
+
+    /**
+     * Opens a session on the storage named by the flights.storage property, without
+     * blocking the caller
+     */
+    public static CompletableFuture<AsyncQuery> open() {
+        return CompletableFuture.supplyAsync(() -> {
+            Query q = new Query();
+            try {
+                q.openConnection();
+                q.prepareStatements();
+            } catch (IOException | SQLException e) {
+                throw new IllegalStateException("Could not open a session", e);
+            }
+            return new AsyncQuery(q);
+        }, transactions);
+    }
+
+    /**
+     * @return the session the transactions run on
+     */
+    public Query getQuery() {
+        return q;
+    }
+
+    /**
+     * Runs a command in the syntax of the REPL
+     *
+     * @see FlightService#execute(Query, String)
+     */
+    public CompletableFuture<String> execute(String command) {
+        return submit(() -> FlightService.execute(q, command));
+    }
+
+    /**
+     * @see Query#transaction_login(String, String)
+     */
+    public CompletableFuture<String> login(String username, String password) {
+        return submit(() -> q.transaction_login(username, password));
+    }
+
+    /**
+     * @see Query#transaction_resume(String)
+     */
+    public CompletableFuture<String> resume(String token) {
+        return submit(() -> q.transaction_resume(token));
+    }
+
+    /**
+     * @see Query#transaction_token()
+     */
+    public CompletableFuture<String> token() {
+        return submit(q::transaction_token);
+    }
+
+    /**
+     * @see Query#transaction_createCustomer(String, String, int)
+     */
+    public CompletableFuture<String> createCustomer(String username, String password,
+                                                    int initAmount) {
+        return submit(() -> q.transaction_createCustomer(username, password, initAmount));
+    }
+
+    /**
+     * @see Query#transaction_search(String, String, boolean, int, int)
+     */
+    public CompletableFuture<String> search(String originCity, String destinationCity,
+                                            boolean directFlight, int dayOfMonth,
+                                            int numberOfItineraries) {
+        return submit(() -> q.transaction_search(originCity, destinationCity, directFlight,
+                dayOfMonth, numberOfItineraries));
+    }
+
+    /**
+     * @see Query#transaction_book(int)
+     */
+    public CompletableFuture<String> book(int itineraryId) {
+        return submit(() -> q.transaction_book(itineraryId));
+    }
+
+    /**
+     * @see Query#transaction_pay(int)
+     */
+    public CompletableFuture<String> pay(int reservationId) {
+        return submit(() -> q.transaction_pay(reservationId));
+    }
+
+    /**
+     * @see Query#transaction_payAll()
+     */
+    public CompletableFuture<String> payAll() {
+        return submit(q::transaction_payAll);
+    }
+
+    /**
+     * @see Query#transaction_reservations()
+     */
+    public CompletableFuture<String> reservations() {
+        return submit(q::transaction_reservations);
+    }
+
+    /**
+     * @see Query#transaction_cancel(int)
+     */
+    public CompletableFuture<String> cancel(int reservationId) {
+        return submit(() -> q.transaction_cancel(reservationId));
+    }
+
+    /**
+     * Closes the session once every transaction started before has ended
+     */
+    public CompletableFuture<Void> close() {
+        return submit(() -> {
+            try {
+                q.closeConnection();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Could not close the session", e);
+            }
+            return null;
+        }).thenApply(ignored -> null);
+    }
+
+    /**
+     * Runs a transaction after the one started last, whether that one succeeded or not
+     */
+    private synchronized CompletableFuture<String> submit(Supplier<String> transaction) {
+        CompletableFuture<String> next =
+                last.handleAsync((ignored, ex) -> transaction.get(), transactions);
+        last = next;
+        return next;
+    }
+}
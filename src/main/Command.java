@@ -0,0 +1,213 @@
+/**
+ * One command in the syntax of the REPL, split into its keyword and arguments. A command
+ * object is meant to be reused: {@link #parse} overwrites everything the last command
+ * left, so a session that parses every command into the same object allocates nothing but
+ * the strings it asks for with {@link #arg}.
+ * <p>
+ * Arguments are separated by whitespace. An argument that starts with a double quote runs
+ * to the next double quote, spaces included, and the quotes are dropped, so city names
+ * can be written as {@code "Seattle WA"}. A double quote that is never closed is kept as
+ * part of a plain argument. Every argument that is a decimal int is also parsed into a
+ * number.
+ */
+public final class Command {
+
+    /**
+     * What a command does, by its first word
+     */
+    public enum Op {
+        // A blank line
+        NONE(null),
+        LOGIN("login"),
+        RESUME("resume"),
+        TOKEN("token"),
+        CREATE("create"),
+        SEARCH("search"),
+        BOOK("book"),
+        RESERVATIONS("reservations"),
+        PAY("pay"),
+        // pay all
+        PAY_ALL(null),
+        CANCEL("cancel"),
+        QUIT("quit"),
+        // Any other first word
+        UNKNOWN(null);
+
+        private final String keyword;
+
+        Op(String keyword) {
+            this.keyword = keyword;
+        }
+    }
+
+    // Ops that are named by their first word, values() copies the array on every call
+    private static final Op[] KEYWORDS = {Op.LOGIN, Op.RESUME, Op.TOKEN, Op.CREATE,
+            Op.SEARCH, Op.BOOK, Op.RESERVATIONS, Op.PAY, Op.CANCEL, Op.QUIT};
+
+    // Words kept of a command, longer commands are only counted. No command takes more
+    // than 5 arguments.
+    private static final int MAX_WORDS = 8;
+
+    private String line;
+    private Op op = Op.NONE;
+    private int words;
+    // Where each kept word starts and ends in the line, quotes excluded
+    private final int[] starts = new int[MAX_WORDS];
+    private final int[] ends = new int[MAX_WORDS];
+    // The value of each kept word, where the bit of its index in ints is set
+    private final int[] numbers = new int[MAX_WORDS];
+    private int ints;
+
+    /**
+     * Parses a command, replacing the one this object held
+     *
+     * @return this command
+     */
+    public Command parse(String line) {
+        this.line = line;
+        words = 0;
+        ints = 0;
+
+        // Whatever String.trim drops at either end is not part of any word
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = 0;
+        while (i < end && line.charAt(i) <= ' ') {
+            i++;
+        }
+
+        while (i < end) {
+            char c = line.charAt(i);
+            if (isSpace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int stop;
+            int close = c == '"' ? line.indexOf('"', i + 1) : -1;
+            if (close >= 0 && close < end) {
+                start = i + 1;
+                stop = close;
+                i = close + 1;
+            } else {
+                while (i < end && !isSpace(line.charAt(i))) {
+                    i++;
+                }
+                stop = i;
+            }
+            addWord(start, stop);
+        }
+
+        op = words == 0 ? Op.NONE : lookup();
+        if (op == Op.PAY && words == 2 && argIs(1, "all")) {
+            op = Op.PAY_ALL;
+        }
+        return this;
+    }
+
+    /**
+     * @return what the command does
+     */
+    public Op op() {
+        return op;
+    }
+
+    /**
+     * @return the number of arguments after the first word
+     */
+    public int argCount() {
+        return words - 1;
+    }
+
+    /**
+     * @param index 0 for the first word, 1 for the first argument
+     * @return the word as a new string
+     */
+    public String arg(int index) {
+        return line.substring(starts[index], ends[index]);
+    }
+
+    /**
+     * @return whether a word is exactly the given text
+     */
+    public boolean argIs(int index, String text) {
+        int length = ends[index] - starts[index];
+        return length == text.length() && line.regionMatches(starts[index], text, 0, length);
+    }
+
+    /**
+     * @return whether a word is a decimal int, see {@link #number}
+     */
+    public boolean isNumber(int index) {
+        return (ints & (1 << index)) != 0;
+    }
+
+    /**
+     * @return the value of a word that {@link #isNumber} says is an int
+     */
+    public int number(int index) {
+        return numbers[index];
+    }
+
+    private void addWord(int start, int stop) {
+        if (words < MAX_WORDS) {
+            starts[words] = start;
+            ends[words] = stop;
+            if (parseInt(start, stop, words)) {
+                ints |= 1 << words;
+            }
+        }
+        words++;
+    }
+
+    private Op lookup() {
+        for (Op keyword : KEYWORDS) {
+            if (argIs(0, keyword.keyword)) {
+                return keyword;
+            }
+        }
+        return Op.UNKNOWN;
+    }
+
+    /**
+     * Parses the int that Integer.parseInt would, without throwing on anything else or on
+     * a value out of range
+     *
+     * @return whether the text between start and stop is an int
+     */
+    private boolean parseInt(int start, int stop, int word) {
+        if (start == stop) {
+            return false;
+        }
+        boolean negative = false;
+        char first = line.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++start == stop) {
+                return false;
+            }
+        }
+        // Accumulated negatively, so Integer.MIN_VALUE fits
+        long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        long value = 0;
+        for (int i = start; i < stop; i++) {
+            int digit = Character.digit(line.charAt(i), 10);
+            if (digit < 0) {
+                return false;
+            }
+            value = value * 10 - digit;
+            if (value < limit) {
+                return false;
+            }
+        }
+        numbers[word] = (int) (negative ? value : -value);
+        return true;
+    }
+
+    // What \s matches in a regular expression
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
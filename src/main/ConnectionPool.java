@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of database connections shared by every session. A session borrows a
+ * connection for one transaction and gives it back when the transaction ends, so an idle
+ * session holds none and the number of sessions is not capped by the database's
+ * connection limit.
+ * <p>
+ * Connections are opened on demand, up to the pool's size, and then reused. Every
+ * connection keeps the statements prepared on it, by SQL text, for as long as it lives,
+ * so a statement is prepared once per connection rather than once per session.
+ */
+public class ConnectionPool {
+
+    /**
+     * Opens a new connection for the pool
+     */
+    public interface Opener {
+        Connection open() throws IOException, SQLException;
+    }
+
+    /**
+     * A borrowed connection. Closing the lease gives the connection back.
+     */
+    public class Lease implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private final Map<String, Statement> plainStatements = new HashMap<>();
+        private long borrowedAt;
+        private boolean returned = true;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        /**
+         * @return the statement for this SQL on this connection, prepared on first use
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * @return the statement for this SQL on this connection that returns generated
+         * keys, prepared on first use
+         */
+        public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+            String key = "\0keys\0" + sql;
+            PreparedStatement statement = statements.get(key);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                statements.put(key, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * @return a plain statement on this connection for the named use, created on first
+         * use
+         */
+        public Statement statement(String name) throws SQLException {
+            Statement statement = plainStatements.get(name);
+            if (statement == null) {
+                statement = connection.createStatement();
+                plainStatements.put(name, statement);
+            }
+            return statement;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final Opener opener;
+    private final int size;
+    private final long maxWaitMillis;
+    // Connections not lent out, most recently returned first
+    private final BlockingDeque<Lease> idle = new LinkedBlockingDeque<>();
+    // Permits for connections that may still be opened
+    private final Semaphore unopened;
+    private final long createdAt = System.nanoTime();
+
+    // Metrics
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+
+    /**
+     * @param opener        opens a connection, with auto-commit on
+     * @param size          most connections open at once
+     * @param maxWaitMillis longest a borrower waits for a connection before failing
+     */
+    public ConnectionPool(Opener opener, int size, long maxWaitMillis) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        this.opener = opener;
+        this.size = size;
+        this.maxWaitMillis = maxWaitMillis;
+        this.unopened = new Semaphore(size);
+    }
+
+    /**
+     * Borrows a connection, opening one if none is idle and the pool is not full, or else
+     * waiting for one to come back.
+     *
+     * @throws SQLTransientConnectionException if none came back in time
+     */
+    public Lease borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        Lease lease = idle.pollFirst();
+        try {
+            while (lease == null) {
+                if (unopened.tryAcquire()) {
+                    lease = open();
+                    break;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new SQLTransientConnectionException("No database connection free after "
+                            + maxWaitMillis + " ms", "08001");
+                }
+                // Wake up now and then, a discarded connection frees a permit, not a lease
+                lease = idle.pollFirst(Math.min(left, TimeUnit.MILLISECONDS.toNanos(50)),
+                        TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted waiting for a connection",
+                    "08001", ex);
+        }
+
+        long now = System.nanoTime();
+        long waited = now - start;
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrows.incrementAndGet();
+        inUse.incrementAndGet();
+        lease.borrowedAt = now;
+        lease.returned = false;
+        return lease;
+    }
+
+    /**
+     * Borrows a connection only if one is idle or may still be opened, without waiting
+     *
+     * @return the lease, or null if every connection is lent out
+     */
+    public Lease tryBorrow() throws SQLException {
+        Lease lease = idle.pollFirst();
+        if (lease == null) {
+            if (!unopened.tryAcquire()) {
+                return null;
+            }
+            lease = open();
+        }
+        borrows.incrementAndGet();
+        inUse.incrementAndGet();
+        lease.borrowedAt = System.nanoTime();
+        lease.returned = false;
+        return lease;
+    }
+
+    private Lease open() throws SQLException {
+        try {
+            Connection connection = opener.open();
+            opened.incrementAndGet();
+            return new Lease(connection);
+        } catch (IOException | SQLException | RuntimeException ex) {
+            unopened.release();
+            if (ex instanceof SQLException) {
+                throw (SQLException) ex;
+            }
+            throw new SQLException("Could not open a database connection", "08001", ex);
+        }
+    }
+
+    /**
+     * Gives a connection back. One left inside a transaction is rolled back first, and one
+     * that can no longer be used is closed instead of reused.
+     */
+    void release(Lease lease) {
+        if (lease.returned) {
+            return;
+        }
+        lease.returned = true;
+        inUse.decrementAndGet();
+        busyNanos.addAndGet(System.nanoTime() - lease.borrowedAt);
+
+        boolean usable;
+        try {
+            if (!lease.connection.getAutoCommit()) {
+                lease.connection.rollback();
+                lease.connection.setAutoCommit(true);
+            }
+            usable = !lease.connection.isClosed();
+        } catch (SQLException ex) {
+            usable = false;
+        }
+
+        if (usable) {
+            idle.offerFirst(lease);
+        } else {
+            discarded.incrementAndGet();
+            try {
+                lease.connection.close();
+            } catch (SQLException ex) {
+                // Already gone
+            }
+            unopened.release();
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections still lent out are closed as they come
+     * back only if the pool is not used again.
+     */
+    public void close() {
+        for (Lease lease = idle.pollFirst(); lease != null; lease = idle.pollFirst()) {
+            try {
+                lease.connection.close();
+            } catch (SQLException ex) {
+                // Already gone
+            }
+            unopened.release();
+        }
+    }
+
+    /**
+     * @return most connections open at once
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return connections lent out right now
+     */
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return connections open and not lent out right now
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return connections borrowed since the pool was made
+     */
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * @return total time borrowers waited for a connection
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * @return longest time one borrower waited for a connection
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return borrowers that gave up waiting
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return connections opened since the pool was made
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return connections closed because they could no longer be used
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return share of the pool's capacity that was lent out since the pool was made,
+     * counting returned connections only
+     */
+    public double getUtilization() {
+        long elapsed = System.nanoTime() - createdAt;
+        return elapsed <= 0 ? 0 : busyNanos.get() / ((double) elapsed * size);
+    }
+
+    @Override
+    public String toString() {
+        long n = Math.max(1, borrows.get());
+        return String.format("%d/%d in use, %d idle: %d borrows, %.3f ms mean wait, "
+                        + "%.1f ms max wait, %d timeouts, %d opened, %d discarded, "
+                        + "%.1f%% utilization",
+                inUse.get(), size, idle.size(), borrows.get(), waitNanos.get() / 1e6 / n,
+                maxWaitNanos.get() / 1e6, timeouts.get(), opened.get(), discarded.get(),
+                getUtilization() * 100);
+    }
+}
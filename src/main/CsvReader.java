@@ -0,0 +1,244 @@
+import java.io.*;
+
+/**
+ * Streaming reader for comma separated files such as the flight data CSVs. Fields may be
+ * quoted, with {@code ""} standing for a quote inside a quoted field, and records end with
+ * {@code \n} or {@code \r\n}.
+ * <p>
+ * Only the current record is held in memory. Fields are scanned character by character
+ * into one reused buffer, and {@link #getInt} parses straight from that buffer, so no
+ * regular expressions, {@code String.split} or per-field strings are involved unless
+ * {@link #get} asks for one.
+ */
+public class CsvReader implements Closeable {
+    private final Reader in;
+    private final char[] buf = new char[1 << 16];
+    private int pos;
+    private int limit;
+
+    // Characters of the current record, field i spans [starts[i], ends[i])
+    private char[] chars = new char[512];
+    private int length;
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private int fields;
+    private long records;
+    private boolean started;
+
+    public CsvReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next record, skipping blank lines.
+     *
+     * @return false once the input is exhausted
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            length = 0;
+            fields = 0;
+            int c = read();
+            if (c == '\uFEFF' && !started) {
+                // UTF-8 files saved with a byte order mark
+                c = read();
+            }
+            started = true;
+            if (c < 0) {
+                return false;
+            }
+            if (c == '\n') {
+                continue;
+            }
+            if (c == '\r') {
+                if (peek() == '\n') {
+                    pos++;
+                }
+                continue;
+            }
+            readRecord(c);
+            records++;
+            return true;
+        }
+    }
+
+    private void readRecord(int c) throws IOException {
+        while (true) {
+            int start = length;
+            if (c == '"') {
+                // Quoted field, runs to the closing quote
+                while (true) {
+                    c = read();
+                    if (c < 0) {
+                        throw new EOFException("Unterminated quoted field in record " +
+                                (records + 1));
+                    }
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            pos++;
+                        } else {
+                            break;
+                        }
+                    }
+                    append((char) c);
+                }
+                // Keep anything between the closing quote and the delimiter
+                c = read();
+                while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    append((char) c);
+                    c = read();
+                }
+            } else {
+                while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    append((char) c);
+                    c = read();
+                }
+            }
+            endField(start);
+
+            if (c == ',') {
+                c = read();
+                if (c < 0 || c == '\n' || c == '\r') {
+                    // A trailing comma ends the record with an empty field
+                    endField(length);
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        if (c == '\r' && peek() == '\n') {
+            pos++;
+        }
+    }
+
+    /**
+     * @return the number of fields in the current record
+     */
+    public int fieldCount() {
+        return fields;
+    }
+
+    /**
+     * @return the number of records read so far
+     */
+    public long recordNumber() {
+        return records;
+    }
+
+    /**
+     * @return whether field {@code i} of the current record is empty
+     */
+    public boolean isEmpty(int i) {
+        check(i);
+        return starts[i] == ends[i];
+    }
+
+    /**
+     * @return field {@code i} of the current record
+     */
+    public String get(int i) {
+        check(i);
+        return new String(chars, starts[i], ends[i] - starts[i]);
+    }
+
+    /**
+     * Parses field {@code i} of the current record as an int. An empty field reads as 0.
+     *
+     * @throws NumberFormatException if the field is not a whole number that fits in an int
+     */
+    public int getInt(int i) {
+        check(i);
+        int p = starts[i];
+        int end = ends[i];
+        if (p == end) {
+            return 0;
+        }
+        boolean negative = chars[p] == '-';
+        if (negative || chars[p] == '+') {
+            p++;
+        }
+        if (p == end) {
+            throw new NumberFormatException(describe(i));
+        }
+        long value = 0;
+        for (; p < end; p++) {
+            int digit = chars[p] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(describe(i));
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException(describe(i));
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException(describe(i));
+        }
+        return (int) value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String describe(int i) {
+        return "Not an int in record " + records + ", field " + i + ": \"" + get(i) + "\"";
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= fields) {
+            throw new IndexOutOfBoundsException("Record " + records + " has " + fields +
+                    " fields, no field " + i);
+        }
+    }
+
+    private void append(char c) {
+        if (length == chars.length) {
+            char[] grown = new char[length * 2];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+        chars[length++] = c;
+    }
+
+    private void endField(int start) {
+        if (fields == starts.length) {
+            int[] s = new int[fields * 2];
+            int[] e = new int[fields * 2];
+            System.arraycopy(starts, 0, s, 0, fields);
+            System.arraycopy(ends, 0, e, 0, fields);
+            starts = s;
+            ends = e;
+        }
+        starts[fields] = start;
+        ends[fields] = length;
+        fields++;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads the flight data CSVs (carriers.csv, months.csv, weekdays.csv and the flights file)
+ * into empty base tables over JDBC, as an alternative to BULK INSERT from blob storage.
+ * <p>
+ * Each file is streamed through a {@link CsvReader} and cut into fixed-size batches that
+ * are held in a bounded queue, so memory use does not grow with the file. Worker threads,
+ * each with its own connection, insert the batches with JDBC batching and commit once per
+ * batch. The small lookup tables load first because Flights references them.
+ * <p>
+ * Run with {@code java FlightImporter [--create] <data dir> [flights file] [batch size]
+ * [connections]}. {@code --create} first runs createFlightTables.sql. Set
+ * {@code -Dflights.jdbcUrl=<url>} to load a local embedded database with its driver on the
+ * class path instead of the server in dbconn.properties.
+ */
+public class FlightImporter {
+    private static final String CREATE_TABLES_FILE = "createFlightTables.sql";
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_CONNECTIONS = 4;
+
+    private static final boolean INT = true;
+    private static final boolean TEXT = false;
+
+    /**
+     * A base table and the types of its columns, in CSV order
+     */
+    static class Table {
+        final String name;
+        final boolean[] intColumns;
+        final String insertSql;
+
+        Table(String name, boolean... intColumns) {
+            this.name = name;
+            this.intColumns = intColumns;
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(name).append(" VALUES (");
+            for (int c = 0; c < intColumns.length; c++) {
+                sql.append(c == 0 ? "?" : ", ?");
+            }
+            this.insertSql = sql.append(')').toString();
+        }
+    }
+
+    static final Table CARRIERS = new Table("Carriers", TEXT, TEXT);
+    static final Table MONTHS = new Table("Months", INT, TEXT);
+    static final Table WEEKDAYS = new Table("Weekdays", INT, TEXT);
+    // fid, month_id, day_of_month, day_of_week_id, carrier_id, flight_num, origin_city,
+    // origin_state, dest_city, dest_state, departure_delay, taxi_out, arrival_delay,
+    // canceled, actual_time, distance, capacity, price
+    static final Table FLIGHTS = new Table("Flights", INT, INT, INT, INT, TEXT, INT, TEXT,
+            TEXT, TEXT, TEXT, INT, INT, INT, INT, INT, INT, INT, INT);
+
+    /**
+     * Rows of one table, column by column type. A null string marks a NULL int as well as
+     * a NULL text value.
+     */
+    private static class Batch {
+        final int[] ints;
+        final String[] values;
+        int rows;
+
+        Batch(Table table, int capacity) {
+            ints = new int[capacity * table.intColumns.length];
+            values = new String[capacity * table.intColumns.length];
+        }
+    }
+
+    // Tells a worker there are no more batches
+    private static final Batch END = new Batch(CARRIERS, 0);
+
+    private final int batchSize;
+    private final int connections;
+
+    public FlightImporter(int batchSize, int connections) {
+        if (batchSize < 1 || connections < 1) {
+            throw new IllegalArgumentException("batch size and connections must be positive");
+        }
+        this.batchSize = batchSize;
+        this.connections = connections;
+    }
+
+    /**
+     * Loads one CSV file into a table.
+     *
+     * @return the number of rows inserted
+     */
+    public long load(Table table, Path csv) throws IOException, SQLException,
+            InterruptedException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(connections * 2);
+        ExecutorService workers = Executors.newFixedThreadPool(connections);
+        List<Future<Long>> results = new ArrayList<>();
+        try {
+            for (int w = 0; w < connections; w++) {
+                results.add(workers.submit(() -> insert(table, queue)));
+            }
+
+            try (CsvReader in = new CsvReader(Files.newBufferedReader(csv, StandardCharsets.UTF_8))) {
+                Batch batch = new Batch(table, batchSize);
+                while (in.next()) {
+                    read(table, in, batch);
+                    if (batch.rows == batchSize) {
+                        hand(queue, batch, results);
+                        batch = new Batch(table, batchSize);
+                    }
+                }
+                if (batch.rows > 0) {
+                    hand(queue, batch, results);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException(csv + ": " + ex.getMessage(), ex);
+            } finally {
+                for (int w = 0; w < connections; w++) {
+                    handEnd(queue, results);
+                }
+            }
+
+            long rows = 0;
+            for (Future<Long> f : results) {
+                rows += get(f);
+            }
+            return rows;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static void read(Table table, CsvReader in, Batch batch) throws IOException {
+        int columns = table.intColumns.length;
+        if (in.fieldCount() != columns) {
+            throw new IOException(table.name + " record " + in.recordNumber() + " has " +
+                    in.fieldCount() + " fields, expected " + columns);
+        }
+        int base = batch.rows * columns;
+        for (int c = 0; c < columns; c++) {
+            if (in.isEmpty(c)) {
+                batch.values[base + c] = null;
+            } else if (table.intColumns[c]) {
+                batch.ints[base + c] = in.getInt(c);
+                // Any non-null marker will do for ints
+                batch.values[base + c] = "";
+            } else {
+                batch.values[base + c] = in.get(c);
+            }
+        }
+        batch.rows++;
+    }
+
+    /**
+     * Inserts batches from the queue on a connection of its own until told to stop
+     */
+    private long insert(Table table, BlockingQueue<Batch> queue) throws IOException,
+            SQLException, InterruptedException {
+        int columns = table.intColumns.length;
+        long rows = 0;
+        try (Connection conn = Query.connect()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(table.insertSql)) {
+                for (Batch batch = queue.take(); batch != END; batch = queue.take()) {
+                    for (int r = 0; r < batch.rows; r++) {
+                        int base = r * columns;
+                        for (int c = 0; c < columns; c++) {
+                            String value = batch.values[base + c];
+                            if (table.intColumns[c]) {
+                                if (value == null) {
+                                    ps.setNull(c + 1, Types.INTEGER);
+                                } else {
+                                    ps.setInt(c + 1, batch.ints[base + c]);
+                                }
+                            } else if (value == null) {
+                                ps.setNull(c + 1, Types.VARCHAR);
+                            } else {
+                                ps.setString(c + 1, value);
+                            }
+                        }
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    conn.commit();
+                    rows += batch.rows;
+                }
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Queues a batch, giving up if a worker has already failed
+     */
+    private static void hand(BlockingQueue<Batch> queue, Batch batch, List<Future<Long>> workers)
+            throws IOException, SQLException, InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Long> f : workers) {
+                if (f.isDone()) {
+                    get(f);
+                    throw new SQLException("An import connection stopped early");
+                }
+            }
+        }
+    }
+
+    private static void handEnd(BlockingQueue<Batch> queue, List<Future<Long>> workers)
+            throws InterruptedException {
+        while (!queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+            boolean allDone = true;
+            for (Future<Long> f : workers) {
+                allDone &= f.isDone();
+            }
+            if (allDone) {
+                return;
+            }
+        }
+    }
+
+    private static long get(Future<Long> f) throws IOException, SQLException,
+            InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new SQLException("Import failed", cause);
+        }
+    }
+
+    /**
+     * Runs the statements of a DDL file, which are separated by blank lines
+     */
+    static void createTables(Path ddl) throws IOException, SQLException {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : Files.readAllLines(ddl, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                if (current.length() > 0) {
+                    statements.add(current.toString());
+                    current.setLength(0);
+                }
+            } else {
+                current.append(line).append('\n');
+            }
+        }
+        if (current.length() > 0) {
+            statements.add(current.toString());
+        }
+
+        try (Connection conn = Query.connect(); Statement s = conn.createStatement()) {
+            for (String sql : statements) {
+                s.execute(sql);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        boolean create = rest.remove("--create");
+        if (rest.isEmpty() || rest.size() > 4) {
+            System.err.println("Usage: java FlightImporter [--create] <data dir> [flights file] " +
+                    "[batch size] [connections]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(rest.get(0));
+        String flightsFile = rest.size() > 1 ? rest.get(1) : "flights-small.csv";
+        int batchSize = rest.size() > 2 ? Integer.parseInt(rest.get(2)) : DEFAULT_BATCH_SIZE;
+        int connections = rest.size() > 3 ? Integer.parseInt(rest.get(3)) : DEFAULT_CONNECTIONS;
+
+        if (create) {
+            createTables(Paths.get(CREATE_TABLES_FILE));
+        }
+
+        FlightImporter importer = new FlightImporter(batchSize, connections);
+        System.out.printf("%-10s %12s %10s %12s%n", "table", "rows", "seconds", "rows/s");
+        long totalRows = 0;
+        long totalStart = System.nanoTime();
+        Table[] tables = {CARRIERS, MONTHS, WEEKDAYS, FLIGHTS};
+        String[] files = {"carriers.csv", "months.csv", "weekdays.csv", flightsFile};
+        for (int t = 0; t < tables.length; t++) {
+            long start = System.nanoTime();
+            long rows = importer.load(tables[t], dir.resolve(files[t]));
+            report(tables[t].name, rows, System.nanoTime() - start);
+            totalRows += rows;
+        }
+        report("total", totalRows, System.nanoTime() - totalStart);
+    }
+
+    private static void report(String name, long rows, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-10s %12d %10.2f %12.0f%n", name, rows, seconds,
+                seconds > 0 ? rows / seconds : 0);
+    }
+}
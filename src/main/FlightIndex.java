@@ -0,0 +1,210 @@
+import java.sql.*;
+import java.util.*;
+
+/**
+ * In-memory index over the Flights table. The table is effectively read-only, so it is
+ * loaded once at startup and shared by every Query session.
+ * <p>
+ * Flights live in a columnar {@link FlightStore} and are addressed by row. Legs leaving a
+ * city on a day are a contiguous row range sorted by actual_time, fid, which is the same
+ * order GET_FLIGHT and GET_INTERMEDIATE_FLIGHT return rows in. Canceled flights are never
+ * indexed.
+ */
+public class FlightIndex {
+    private static final int[] NO_ROWS = new int[0];
+
+    private final FlightStore store;
+
+    // Orders connections by total time, then by the fids of their legs in order. For two
+    // legs this is GET_INTERMEDIATE_FLIGHT's (s.actual_time + f.actual_time), s.fid, f.fid
+    private final Comparator<int[]> connectionOrder = (a, b) -> {
+        int c = Integer.compare(totalTime(a), totalTime(b));
+        for (int i = 0; c == 0 && i < Math.min(a.length, b.length); i++) {
+            c = Integer.compare(fid(a[i]), fid(b[i]));
+        }
+        return c != 0 ? c : Integer.compare(a.length, b.length);
+    };
+
+    public FlightIndex(FlightStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Loads every non-canceled flight through the given connection.
+     *
+     * @param conn an open connection to the flights database
+     * @return the populated index
+     * @throws SQLException
+     */
+    public static FlightIndex load(Connection conn) throws SQLException {
+        return new FlightIndex(FlightStore.load(conn));
+    }
+
+    /**
+     * @return the store the returned rows refer to
+     */
+    public FlightStore store() {
+        return store;
+    }
+
+    /**
+     * @return the number of indexed flights
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Finds up to {@code limit} direct flights, in the order GET_FLIGHT returns them.
+     *
+     * @return the rows of the flights in {@link #store()}
+     */
+    public int[] direct(String originCity, String destCity, int dayOfMonth, int limit) {
+        int origin = store.cityCode(originCity);
+        int dest = store.cityCode(destCity);
+        if (origin < 0 || dest < 0 || !validDay(dayOfMonth) || limit <= 0) {
+            return NO_ROWS;
+        }
+
+        int start = store.destStart(origin, dayOfMonth, dest);
+        int end = Math.min(store.destEnd(origin, dayOfMonth, dest), start + limit);
+        int[] rows = new int[end - start];
+        for (int p = start; p < end; p++) {
+            rows[p - start] = store.destRow(p);
+        }
+        return rows;
+    }
+
+    /**
+     * Finds up to {@code limit} connecting itineraries of 2 to {@code maxLegs} legs, all on
+     * {@code dayOfMonth}, ordered by total actual_time and then by the fids of their legs in
+     * order. For {@code maxLegs} = 2 this is exactly what GET_INTERMEDIATE_FLIGHT returns.
+     * <p>
+     * A depth-first walk keeps the best {@code limit} itineraries in a bounded heap and
+     * abandons a branch as soon as its accumulated time exceeds the current k-th best.
+     * Itineraries never pass through the same city twice or through the destination early.
+     *
+     * @return the legs of each itinerary as rows in {@link #store()}
+     */
+    public List<int[]> connections(String originCity, String destCity, int dayOfMonth,
+                                   int maxLegs, int limit) {
+        int origin = store.cityCode(originCity);
+        int dest = store.cityCode(destCity);
+        if (limit <= 0 || maxLegs < 2 || origin < 0 || dest < 0 || !validDay(dayOfMonth)) {
+            return new ArrayList<>();
+        }
+
+        Walk walk = new Walk(origin, dest, dayOfMonth, maxLegs, limit);
+        walk.extend(origin, 0, 0);
+
+        List<int[]> results = new ArrayList<>(walk.best);
+        results.sort(connectionOrder);
+        return results;
+    }
+
+    /**
+     * State of one bounded depth-first connection search
+     */
+    private class Walk {
+        final int origin;
+        final int dest;
+        final int day;
+        final int maxLegs;
+        final int limit;
+        final int[] path;
+        // Max-heap of the best itineraries seen so far, the worst one on top
+        final PriorityQueue<int[]> best;
+
+        Walk(int origin, int dest, int day, int maxLegs, int limit) {
+            this.origin = origin;
+            this.dest = dest;
+            this.day = day;
+            this.maxLegs = maxLegs;
+            this.limit = limit;
+            this.path = new int[maxLegs];
+            this.best = new PriorityQueue<>(limit + 1, connectionOrder.reversed());
+        }
+
+        void extend(int city, int depth, int elapsed) {
+            // The last leg has to land at the destination, so only look at those legs
+            if (depth == maxLegs - 1) {
+                int end = store.destEnd(city, day, dest);
+                for (int p = store.destStart(city, day, dest); p < end; p++) {
+                    if (!consider(store.destRow(p), depth, elapsed)) {
+                        break;
+                    }
+                }
+            } else {
+                int end = store.legEnd(city, day);
+                for (int row = store.legStart(city, day); row < end; row++) {
+                    if (!consider(row, depth, elapsed)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Follows one leg. Legs are sorted by time, so once one cannot beat the current
+         * worst itinerary none of the following ones can either.
+         *
+         * @return false when the remaining legs from this city can be skipped
+         */
+        private boolean consider(int row, int depth, int elapsed) {
+            int total = elapsed + store.time[row];
+            if (best.size() == limit && total > totalTime(best.peek())) {
+                return false;
+            }
+
+            path[depth] = row;
+            int next = store.dest[row];
+            if (next == dest) {
+                // A single leg to the destination is a direct flight, not a connection
+                if (depth > 0) {
+                    offer(depth + 1);
+                }
+            } else if (depth < maxLegs - 1 && !visited(next, depth)) {
+                extend(next, depth + 1, total);
+            }
+            return true;
+        }
+
+        private void offer(int legs) {
+            int[] candidate = Arrays.copyOf(path, legs);
+            if (best.size() < limit) {
+                best.add(candidate);
+            } else if (connectionOrder.compare(candidate, best.peek()) < 0) {
+                best.poll();
+                best.add(candidate);
+            }
+        }
+
+        private boolean visited(int city, int depth) {
+            if (city == origin) {
+                return true;
+            }
+            for (int i = 0; i < depth; i++) {
+                if (store.dest[path[i]] == city) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private int totalTime(int[] rows) {
+        int total = 0;
+        for (int row : rows) {
+            total += store.time[row];
+        }
+        return total;
+    }
+
+    private int fid(int row) {
+        return store.fid[row];
+    }
+
+    private static boolean validDay(int dayOfMonth) {
+        return dayOfMonth >= 1 && dayOfMonth < FlightStore.DAYS;
+    }
+}
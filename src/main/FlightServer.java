@@ -0,0 +1,246 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the Flights commands to many clients over TCP, one session per connection.
+ * <p>
+ * A client sends one command per line, in the syntax of the REPL, and gets back the
+ * command's response followed by an empty line. Commands may be pipelined: a client can
+ * send any number of commands without waiting, and their responses come back in order.
+ * Responses are only flushed once the connection has no more commands waiting. The
+ * connection closes after the response to {@code quit}.
+ * <p>
+ * Every connection runs on a virtual thread when the JVM has them, and otherwise on a
+ * platform thread with a small stack. A session only holds a pooled database connection
+ * while one of its transactions runs, so idle clients cost a thread and a socket.
+ * <p>
+ * Run with {@code java FlightServer [port]}, port 9090 by default.
+ */
+public class FlightServer {
+
+    // Stack size of a session's platform thread when there are no virtual threads
+    private static final long SESSION_STACK_BYTES = 256 * 1024;
+
+    // Longest command line read, a connection that sends a longer one is closed
+    private static final int MAX_COMMAND_CHARS = Integer.getInteger("flights.maxCommandChars",
+            4096);
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions;
+
+    // Metrics
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private final AtomicLong acceptedSessions = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    public FlightServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 4096);
+        this.sessions = newSessionExecutor();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
+        FlightService.openFlightSnapshot();
+
+        FlightServer server = new FlightServer(port);
+        System.out.println("Serving flights on port " + server.getPort());
+        server.serve();
+    }
+
+    /**
+     * Runs every connection on a virtual thread if this JVM has them, found by reflection
+     * so the server still builds and runs on older JVMs
+     */
+    static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            AtomicLong sessionId = new AtomicLong();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "flight-session-" + sessionId.incrementAndGet(),
+                        SESSION_STACK_BYTES);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed
+     */
+    public void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException ex) {
+                // Closed while waiting
+                break;
+            }
+            acceptedSessions.incrementAndGet();
+            sessions.execute(() -> runSession(socket));
+        }
+    }
+
+    /**
+     * Stops accepting connections and ends every session
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdownNow();
+    }
+
+    private void runSession(Socket socket) {
+        openSessions.incrementAndGet();
+        Query q = null;
+        Command parsed = new Command();
+        StringBuilder line = new StringBuilder();
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                     StandardCharsets.UTF_8));
+             ResponseWriter out = new ResponseWriter(new BufferedWriter(
+                     new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+            s.setTcpNoDelay(true);
+            for (String command = readCommand(in, line); command != null;
+                 command = readCommand(in, line)) {
+                if (q == null) {
+                    q = new Query();
+                    q.openConnection();
+                    q.prepareStatements();
+                }
+
+                // Long responses go out while they are rendered
+                out.last = 0;
+                FlightService.execute(q, parsed.parse(command), out);
+                commands.incrementAndGet();
+                if (out.last != '\n') {
+                    out.write('\n');
+                }
+                out.write('\n');
+
+                if (parsed.op() == Command.Op.QUIT) {
+                    break;
+                } else if (!in.ready()) {
+                    // Nothing pipelined behind this command, send what is buffered
+                    out.flush();
+                }
+            }
+        } catch (IOException | SQLException ex) {
+            // The client went away, sent too long a command, or the session could not
+            // reach the database
+        } catch (RuntimeException ex) {
+            System.err.println("Closing a session after an unexpected error: " + ex);
+        } finally {
+            if (q != null) {
+                try {
+                    q.closeConnection();
+                } catch (SQLException ex) {
+                    // Already closed
+                }
+            }
+            openSessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads one command line, ended by \n, \r or \r\n like BufferedReader.readLine, but
+     * no longer than {@link #MAX_COMMAND_CHARS}
+     *
+     * @param line reused to collect the characters
+     * @return the line without its end, or null at the end of input
+     * @throws IOException if the line is too long
+     */
+    private static String readCommand(BufferedReader in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c = in.read();
+        if (c < 0) {
+            return null;
+        }
+        while (c >= 0 && c != '\n' && c != '\r') {
+            if (line.length() == MAX_COMMAND_CHARS) {
+                throw new IOException("Command longer than " + MAX_COMMAND_CHARS + " characters");
+            }
+            line.append((char) c);
+            c = in.read();
+        }
+        if (c == '\r') {
+            in.mark(1);
+            if (in.read() != '\n') {
+                in.reset();
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return connections being served right now
+     */
+    public int getOpenSessions() {
+        return openSessions.get();
+    }
+
+    /**
+     * @return connections accepted since the server started
+     */
+    public long getAcceptedSessions() {
+        return acceptedSessions.get();
+    }
+
+    /**
+     * @return commands answered since the server started
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Remembers the last character written, so a response can be ended with a newline
+     * without holding all of it
+     */
+    private static class ResponseWriter extends FilterWriter {
+        char last;
+
+        ResponseWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            last = (char) c;
+        }
+
+        @Override
+        public void write(char[] chars, int off, int len) throws IOException {
+            out.write(chars, off, len);
+            if (len > 0) {
+                last = chars[off + len - 1];
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            if (len > 0) {
+                last = str.charAt(off + len - 1);
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 import java.io.*;
-import java.util.*;
-import java.util.regex.*;
+import java.nio.file.*;
 import java.sql.*;
 
 public class FlightService {
@@ -9,101 +8,101 @@ public class FlightService {
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+    return execute(q, new Command().parse(command));
+  }
 
-    // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
-    }
+  /**
+   * Execute an already parsed command on the database query connection
+   */
+  public static String execute(Query q, Command c) {
+    switch (c.op()) {
+      // empty input
+      case NONE:
+        return "Please enter a command";
+
+      case LOGIN:
+        if (c.argCount() != 2) {
+          return "Error: Please provide a username and password";
+        }
+        return q.transaction_login(c.arg(1), c.arg(2));
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
-    }
+      case RESUME:
+        if (c.argCount() != 1) {
+          return "Error: Please provide a session token";
+        }
+        return q.transaction_resume(c.arg(1));
 
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
-      }
-    }
+      case TOKEN:
+        return q.transaction_token();
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
+      case CREATE:
+        if (c.argCount() != 3) {
+          return "Error: Please provide a username, password, and initial amount in the account";
+        } else if (!c.isNumber(3)) {
+          return "Failed to parse integer";
         }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-      }
-    }
+        return q.transaction_createCustomer(c.arg(1), c.arg(2), c.number(3));
 
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
-      }
-    }
+      case SEARCH:
+        if (c.argCount() != 5) {
+          return "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        } else if (!c.isNumber(4) || !c.isNumber(5)) {
+          return "Failed to parse integer";
+        }
+        return q.transaction_search(c.arg(1), c.arg(2), c.argIs(3, "1"), c.number(4), c.number(5));
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.transaction_reservations();
-    }
+      case BOOK:
+        if (c.argCount() != 1) {
+          return "Error: Please provide an itinerary_id";
+        } else if (!c.isNumber(1)) {
+          return "Failed to parse integer";
+        }
+        return q.transaction_book(c.number(1));
 
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
-    }
+      case RESERVATIONS:
+        return q.transaction_reservations();
 
-    // cancel
-    else if (tokens[0].equals("cancel")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_cancel(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
-    }
+      case PAY_ALL:
+        return q.transaction_payAll();
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
-    }
+      case PAY:
+        if (c.argCount() != 1) {
+          return "Error: Please provide a reservation_id or all";
+        } else if (!c.isNumber(1)) {
+          return "Failed to parse integer";
+        }
+        return q.transaction_pay(c.number(1));
+
+      case CANCEL:
+        if (c.argCount() != 1) {
+          return "Error: Please provide a reservation_id";
+        } else if (!c.isNumber(1)) {
+          return "Failed to parse integer";
+        }
+        return q.transaction_cancel(c.number(1));
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+      case QUIT:
+        return "Goodbye\n";
+
+      // unknown command
+      default:
+        return "Error: unrecognized command '" + c.arg(0) + "'";
     }
+  }
 
-    return response;
+  /**
+   * Execute an already parsed command, writing its response to {@code out}. The
+   * responses of search and reservations are written as they are rendered, so a long
+   * one is never built into one string.
+   */
+  public static void execute(Query q, Command c, Appendable out) throws IOException {
+    if (c.op() == Command.Op.SEARCH && c.argCount() == 5 && c.isNumber(4) && c.isNumber(5)) {
+      q.transaction_search(c.arg(1), c.arg(2), c.argIs(3, "1"), c.number(4), c.number(5), out);
+    } else if (c.op() == Command.Op.RESERVATIONS) {
+      q.transaction_reservations(out);
+    } else {
+      out.append(execute(q, c));
+    }
   }
 
   /**
@@ -114,62 +113,96 @@ public class FlightService {
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    openFlightSnapshot();
+
     /* prepare the database connection stuff */
     Query q = new Query();
     q.openConnection();
     q.prepareStatements();
-    menu(q);
+    if (Boolean.getBoolean("flights.async")) {
+      AsyncQuery async = new AsyncQuery(q);
+      menu((command, out) -> {
+        String response = async.execute(command).join();
+        out.write(response);
+        return response.equals("Goodbye\n");
+      });
+    } else {
+      Command parsed = new Command();
+      menu((command, out) -> {
+        execute(q, parsed.parse(command), out);
+        return parsed.op() == Command.Op.QUIT;
+      });
+    }
     q.closeConnection();
   }
 
+  /**
+   * Serves searches from the flight snapshot named by the flights.snapshot property
+   * (flights.snapshot by default), if that file exists. A snapshot that cannot be read is
+   * reported and skipped, and the Flights table is loaded instead.
+   */
+  static void openFlightSnapshot() {
+    Path snapshot = Paths.get(System.getProperty("flights.snapshot", "flights.snapshot"));
+    if (!Files.isRegularFile(snapshot)) {
+      return;
+    }
+    try {
+      Query.useFlightStore(FlightSnapshot.open(snapshot));
+    } catch (IOException e) {
+      System.err.println("Ignoring flight snapshot: " + e.getMessage());
+    }
+  }
+
   /**
    * REPL (Read-Execute-Print-Loop) for Flights application for the specified
    * application-to-database connection
    * 
-   * @param q
+   * @param session runs a command and writes its response
    * @throws IOException
    */
-  private static void menu(Query q) throws IOException {
+  private static void menu(Session session) throws IOException {
+    // print the command options
+    System.out.println();
+    System.out.println(" *** Please enter one of the following commands *** ");
+    System.out.println("> create <username> <password> <initial amount>");
+    System.out.println("> login <username> <password>");
+    System.out.println("> token");
+    System.out.println("> resume <session token>");
+    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> book <itinerary id>");
+    System.out.println("> pay <reservation id>");
+    System.out.println("> pay all");
+    System.out.println("> reservations");
+    System.out.println("> cancel <reservation id>");
+    System.out.println("> quit");
+
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
     while (true) {
-      // print the command options
-      System.out.println();
-      System.out.println(" *** Please enter one of the following commands *** ");
-      System.out.println("> create <username> <password> <initial amount>");
-      System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-      System.out.println("> book <itinerary id>");
-      System.out.println("> pay <reservation id>");
-      System.out.println("> reservations");
-      System.out.println("> cancel <reservation id>");
-      System.out.println("> quit");
-
-      // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
-      System.out.print("> ");
+      // read an input command from the REPL, end of input quits
+      out.write("> ");
+      out.flush();
       String command = r.readLine();
+      if (command == null) {
+        command = "quit";
+      }
 
-      // execute the given input command
-      String response = execute(q, command);
-      System.out.print(response);
-      if (response.equals("Goodbye\n")) {
+      // execute the given input command, large responses are written as they are made
+      boolean quit = session.run(command, out);
+      if (quit) {
+        out.flush();
         break;
       }
     }
   }
 
   /**
-   * Tokenize a string into a string array
+   * Runs one command of the REPL
    */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
+  private interface Session {
+    /**
+     * @return whether the command was quit
+     */
+    boolean run(String command, Writer out) throws IOException;
   }
 }
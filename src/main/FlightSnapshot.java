@@ -0,0 +1,318 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a {@link FlightStore}, so a process can start serving searches without
+ * pulling the Flights table over JDBC. The file is opened through a {@link MappedByteBuffer},
+ * checked, and its sections are copied into the store's arrays in bulk; nothing is parsed.
+ * <p>
+ * File format, all values little-endian:
+ * <pre>
+ * offset  size  field
+ *      0     4  magic, the ASCII bytes "FLSN"
+ *      4     4  format version, currently 1
+ *      8     4  rows: number of flights
+ *     12     4  number of cities
+ *     16     4  number of carriers
+ *     20     4  number of flight numbers
+ *     24     4  nodes: number of (origin, day) range starts, cities * 32 + 1
+ *     28     4  reserved, 0
+ *     32     8  payload length in bytes
+ *     40     8  CRC32 of the payload
+ *     48        payload:
+ *                 9 int columns of rows values each, in this order: fid, day_of_month,
+ *                   carrier code, flight number code, origin city code, dest city code,
+ *                   actual_time, capacity, price
+ *                 nodes ints: first row of each (origin, day) range
+ *                 rows ints: rows grouped by destination within each range
+ *                 rows ints: rows ordered by fid
+ *                 the city, carrier and flight number dictionaries, in code order, each
+ *                   string as an int byte length followed by its UTF-8 bytes
+ * </pre>
+ * Rows are sorted by (origin, day_of_month, actual_time, fid). Readers reject files with a
+ * different magic or version, a truncated payload or a checksum mismatch.
+ * <p>
+ * Rebuild a snapshot with {@code java FlightSnapshot db <snapshot>} from the database in
+ * dbconn.properties, or {@code java FlightSnapshot csv <flights.csv> <snapshot>} from the
+ * flights CSV.
+ */
+public class FlightSnapshot {
+    private static final int MAGIC = 0x4E534C46; // "FLSN" read little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 48;
+
+    // Columns of the flights CSV, in the order of the Flights table
+    private static final int CSV_FID = 0;
+    private static final int CSV_DAY_OF_MONTH = 2;
+    private static final int CSV_CARRIER_ID = 4;
+    private static final int CSV_FLIGHT_NUM = 5;
+    private static final int CSV_ORIGIN_CITY = 6;
+    private static final int CSV_DEST_CITY = 8;
+    private static final int CSV_CANCELED = 13;
+    private static final int CSV_ACTUAL_TIME = 14;
+    private static final int CSV_CAPACITY = 16;
+    private static final int CSV_PRICE = 17;
+
+    /**
+     * Opens a snapshot file.
+     *
+     * @param file the snapshot to read
+     * @return the store held in the snapshot
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static FlightStore open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException(file + " is too short to be a flight snapshot");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (mapped.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a flight snapshot");
+            }
+            int version = mapped.getInt(4);
+            if (version != VERSION) {
+                throw new IOException(file + " has snapshot version " + version +
+                        ", expected " + VERSION);
+            }
+            int rows = mapped.getInt(8);
+            int cities = mapped.getInt(12);
+            int carriers = mapped.getInt(16);
+            int flightNums = mapped.getInt(20);
+            int nodes = mapped.getInt(24);
+            long payloadBytes = mapped.getLong(32);
+            long checksum = mapped.getLong(40);
+            if (payloadBytes != size - HEADER_BYTES || rows < 0 ||
+                    nodes != cities * FlightStore.DAYS + 1) {
+                throw new IOException(file + " is truncated or has an inconsistent header");
+            }
+
+            mapped.position(HEADER_BYTES);
+            ByteBuffer payload = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException(file + " failed its checksum");
+            }
+
+            try {
+                IntBuffer ints = payload.asIntBuffer();
+                int[][] columns = new int[FlightStore.COLUMNS][];
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = ints(ints, rows);
+                }
+                int[] nodeStart = ints(ints, nodes);
+                int[] destOrder = ints(ints, rows);
+                int[] fidOrder = ints(ints, rows);
+
+                payload.position(ints.position() * Integer.BYTES);
+                String[] cityNames = strings(payload, cities);
+                String[] carrierNames = strings(payload, carriers);
+                String[] flightNumNames = strings(payload, flightNums);
+                return new FlightStore(cityNames, carrierNames, flightNumNames, columns,
+                        nodeStart, destOrder, fidOrder);
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                throw new IOException(file + " is truncated", ex);
+            }
+        }
+    }
+
+    /**
+     * Writes a store to a snapshot file. The file is written next to its destination and
+     * then moved into place, so readers never see a partial snapshot.
+     *
+     * @param store the flights to write
+     * @param file  the snapshot to create or replace
+     */
+    public static void write(FlightStore store, Path file) throws IOException {
+        byte[][] cities = encode(store.cities);
+        byte[][] carriers = encode(store.carriers);
+        byte[][] flightNums = encode(store.flightNums);
+        int[][] columns = store.columns();
+        int[] nodeStart = store.nodeStarts();
+
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                Sink sink = new Sink(channel);
+                for (int[] column : columns) {
+                    sink.putInts(column);
+                }
+                sink.putInts(nodeStart);
+                sink.putInts(store.destOrder());
+                sink.putInts(store.fidOrder());
+                sink.putStrings(cities);
+                sink.putStrings(carriers);
+                sink.putStrings(flightNums);
+                sink.flush();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(store.size()).putInt(cities.length)
+                        .putInt(carriers.length).putInt(flightNums.length)
+                        .putInt(nodeStart.length).putInt(0)
+                        .putLong(sink.written).putLong(sink.crc.getValue());
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Builds a store from the flights CSV, in the column order of the Flights table.
+     * Canceled flights are skipped like {@link FlightStore#load} skips them.
+     */
+    public static FlightStore fromCsv(Path csv) throws IOException {
+        FlightStore.Builder builder = new FlightStore.Builder();
+        try (CsvReader in = new CsvReader(Files.newBufferedReader(csv, StandardCharsets.UTF_8))) {
+            while (in.next()) {
+                if (in.fieldCount() <= CSV_PRICE) {
+                    throw new IOException(csv + " record " + in.recordNumber() + " has " +
+                            in.fieldCount() + " fields, expected " + (CSV_PRICE + 1));
+                }
+                if (in.getInt(CSV_CANCELED) != 0) {
+                    continue;
+                }
+                builder.add(in.getInt(CSV_FID), in.getInt(CSV_DAY_OF_MONTH),
+                        in.get(CSV_CARRIER_ID), in.get(CSV_FLIGHT_NUM), in.get(CSV_ORIGIN_CITY),
+                        in.get(CSV_DEST_CITY), in.getInt(CSV_ACTUAL_TIME),
+                        in.getInt(CSV_CAPACITY), in.getInt(CSV_PRICE));
+            }
+        } catch (NumberFormatException ex) {
+            throw new IOException(csv + ": " + ex.getMessage(), ex);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Rebuilds a snapshot from the database or from the flights CSV
+     */
+    public static void main(String[] args) throws IOException, SQLException {
+        FlightStore store;
+        Path out;
+        long start = System.nanoTime();
+        if (args.length == 2 && args[0].equals("db")) {
+            try (Connection conn = Query.connect()) {
+                store = FlightStore.load(conn);
+            }
+            out = Paths.get(args[1]);
+        } else if (args.length == 3 && args[0].equals("csv")) {
+            store = fromCsv(Paths.get(args[1]));
+            out = Paths.get(args[2]);
+        } else {
+            System.err.println("Usage: java FlightSnapshot db <snapshot>");
+            System.err.println("       java FlightSnapshot csv <flights.csv> <snapshot>");
+            System.exit(2);
+            return;
+        }
+        long loaded = System.nanoTime();
+        write(store, out);
+        long written = System.nanoTime();
+        open(out);
+        long opened = System.nanoTime();
+
+        System.out.printf("Wrote %d flights to %s (%d bytes): load %d ms, write %d ms, open %d ms%n",
+                store.size(), out, Files.size(out), (loaded - start) / 1000000,
+                (written - loaded) / 1000000, (opened - written) / 1000000);
+    }
+
+    private static int[] ints(IntBuffer in, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative count " + count);
+        }
+        int[] values = new int[count];
+        in.get(values);
+        return values;
+    }
+
+    private static String[] strings(ByteBuffer in, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative count " + count);
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IllegalArgumentException("bad string length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            values[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    private static byte[][] encode(String[] values) {
+        byte[][] encoded = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = values[i] == null ? new byte[0] : values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    /**
+     * Buffers the payload to the channel after the header and checksums it on the way
+     */
+    private static class Sink {
+        final FileChannel channel;
+        final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32 crc = new CRC32();
+        long written;
+
+        Sink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInts(int[] values) throws IOException {
+            for (int v : values) {
+                if (buf.remaining() < Integer.BYTES) {
+                    flush();
+                }
+                buf.putInt(v);
+            }
+        }
+
+        void putStrings(byte[][] values) throws IOException {
+            for (byte[] v : values) {
+                if (buf.remaining() < Integer.BYTES) {
+                    flush();
+                }
+                buf.putInt(v.length);
+                for (int off = 0; off < v.length; ) {
+                    if (!buf.hasRemaining()) {
+                        flush();
+                    }
+                    int n = Math.min(buf.remaining(), v.length - off);
+                    buf.put(v, off, n);
+                    off += n;
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            crc.update(buf.duplicate());
+            while (buf.hasRemaining()) {
+                written += channel.write(buf, HEADER_BYTES + written);
+            }
+            buf.clear();
+        }
+    }
+}
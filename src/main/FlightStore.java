@@ -0,0 +1,406 @@
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Columnar, dictionary-encoded in-process copy of the Flights table.
+ * <p>
+ * City, carrier and flight number strings are stored once in dictionaries and referenced
+ * by int codes; every other attribute lives in a primitive array indexed by row. Rows are
+ * sorted by (origin city, day_of_month, actual_time, fid), so all legs leaving one city on
+ * one day form a contiguous, time-ordered range. A second row ordering groups each of those
+ * ranges by destination for direct lookups. {@code Flight} objects are only built when a
+ * row is rendered.
+ */
+public class FlightStore {
+    // Days of the month are 1-based, slot 0 is unused
+    static final int DAYS = 32;
+
+    private static final String LOAD_FLIGHTS =
+            "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, " +
+                    "actual_time, capacity, price " +
+                    "FROM Flights " +
+                    "WHERE canceled = 0";
+
+    // Dictionaries
+    final String[] cities;
+    final String[] carriers;
+    final String[] flightNums;
+    private final Map<String, Integer> cityCodes = new HashMap<>();
+
+    // Columns, in this order wherever they are handled together
+    static final int COLUMNS = 9;
+    final int[] fid;
+    final int[] day;
+    final int[] carrier;
+    final int[] flightNum;
+    final int[] origin;
+    final int[] dest;
+    final int[] time;
+    final int[] capacity;
+    final int[] price;
+
+    // First row of each (origin, day) range, indexed by origin * DAYS + day
+    private final int[] nodeStart;
+    // Rows of each (origin, day) range regrouped by destination, then actual_time, fid
+    private final int[] destOrder;
+    // Rows ordered by fid, for lookups by fid
+    private final int[] fidOrder;
+
+    /**
+     * Wraps already encoded and sorted columns along with their precomputed orderings, as
+     * read back from a {@link FlightSnapshot}
+     */
+    FlightStore(String[] cities, String[] carriers, String[] flightNums, int[][] columns,
+                int[] nodeStart, int[] destOrder, int[] fidOrder) {
+        this.cities = cities;
+        this.carriers = carriers;
+        this.flightNums = flightNums;
+        for (int c = 0; c < cities.length; c++) {
+            cityCodes.put(normalize(cities[c]), c);
+        }
+
+        this.fid = columns[0];
+        this.day = columns[1];
+        this.carrier = columns[2];
+        this.flightNum = columns[3];
+        this.origin = columns[4];
+        this.dest = columns[5];
+        this.time = columns[6];
+        this.capacity = columns[7];
+        this.price = columns[8];
+
+        this.nodeStart = nodeStart;
+        this.destOrder = destOrder;
+        this.fidOrder = fidOrder;
+    }
+
+    /**
+     * Builds the orderings for columns sorted by (origin, day, actual_time, fid)
+     */
+    private static FlightStore index(String[] cities, String[] carriers, String[] flightNums,
+                                     int[][] columns) {
+        int[] fid = columns[0];
+        int[] day = columns[1];
+        int[] origin = columns[4];
+        int[] dest = columns[5];
+        int rows = fid.length;
+
+        int[] nodeStart = new int[cities.length * DAYS + 1];
+        for (int r = 0; r < rows; r++) {
+            nodeStart[origin[r] * DAYS + day[r] + 1]++;
+        }
+        for (int n = 1; n < nodeStart.length; n++) {
+            nodeStart[n] += nodeStart[n - 1];
+        }
+
+        // Each range is already in (actual_time, fid) order, a stable sort keeps it that way
+        int[] byDest = identity(rows);
+        for (int n = 0; n + 1 < nodeStart.length; n++) {
+            sortRows(byDest, nodeStart[n], nodeStart[n + 1], dest);
+        }
+
+        int[] byFid = identity(rows);
+        sortRows(byFid, 0, rows, fid);
+
+        return new FlightStore(cities, carriers, flightNums, columns, nodeStart, byDest, byFid);
+    }
+
+    /**
+     * Loads every non-canceled flight through the given connection.
+     *
+     * @param conn an open connection to the flights database
+     * @return the populated store
+     * @throws SQLException
+     */
+    public static FlightStore load(Connection conn) throws SQLException {
+        Builder builder = new Builder();
+        try (Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery(LOAD_FLIGHTS)) {
+            while (rs.next()) {
+                builder.add(rs.getInt("fid"), rs.getInt("day_of_month"),
+                        rs.getString("carrier_id"), rs.getString("flight_num"),
+                        rs.getString("origin_city"), rs.getString("dest_city"),
+                        rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the number of stored flights
+     */
+    public int size() {
+        return fid.length;
+    }
+
+    /**
+     * Returns the dictionary code of a city, or -1 if no stored flight leaves or reaches it.
+     * Matching is case-insensitive like the database's.
+     */
+    public int cityCode(String city) {
+        Integer code = city == null ? null : cityCodes.get(normalize(city));
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * First row of the legs leaving {@code city} on {@code dayOfMonth}
+     */
+    int legStart(int city, int dayOfMonth) {
+        return nodeStart[city * DAYS + dayOfMonth];
+    }
+
+    /**
+     * One past the last row of the legs leaving {@code city} on {@code dayOfMonth}
+     */
+    int legEnd(int city, int dayOfMonth) {
+        return nodeStart[city * DAYS + dayOfMonth + 1];
+    }
+
+    /**
+     * First position in {@link #destRow} of the legs from {@code city} to {@code destCity}
+     * on {@code dayOfMonth}. The legs run up to {@link #destEnd}, sorted by actual_time, fid.
+     */
+    int destStart(int city, int dayOfMonth, int destCity) {
+        return lowerBound(legStart(city, dayOfMonth), legEnd(city, dayOfMonth), destCity);
+    }
+
+    /**
+     * One past the last position in {@link #destRow} of the legs from {@code city} to
+     * {@code destCity} on {@code dayOfMonth}
+     */
+    int destEnd(int city, int dayOfMonth, int destCity) {
+        return lowerBound(legStart(city, dayOfMonth), legEnd(city, dayOfMonth), destCity + 1);
+    }
+
+    /**
+     * Row at a position of the destination ordering
+     */
+    int destRow(int position) {
+        return destOrder[position];
+    }
+
+    /**
+     * Returns the row holding {@code fid}, or -1 if the flight is not stored
+     */
+    public int rowOf(int fid) {
+        int lo = 0;
+        int hi = fidOrder.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int f = this.fid[fidOrder[mid]];
+            if (f < fid) {
+                lo = mid + 1;
+            } else if (f > fid) {
+                hi = mid - 1;
+            } else {
+                return fidOrder[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds the flight stored in a row
+     */
+    public Query.Flight flight(int row) {
+        Query.Flight f = new Query.Flight();
+        f.fid = fid[row];
+        f.dayOfMonth = day[row];
+        f.carrierId = carriers[carrier[row]];
+        f.flightNum = flightNums[flightNum[row]];
+        f.originCity = cities[origin[row]];
+        f.destCity = cities[dest[row]];
+        f.time = time[row];
+        f.capacity = capacity[row];
+        f.price = price[row];
+        return f;
+    }
+
+    /**
+     * Appends a row in the {@code Flight.toString()} format without building a Flight
+     */
+    public StringBuilder appendTo(int row, StringBuilder sb) {
+        return Query.Flight.appendTo(sb, fid[row], day[row], carriers[carrier[row]],
+                flightNums[flightNum[row]], cities[origin[row]], cities[dest[row]], time[row],
+                capacity[row], price[row]);
+    }
+
+    /**
+     * @return every column, in the order {@link FlightSnapshot} stores them
+     */
+    int[][] columns() {
+        return new int[][]{fid, day, carrier, flightNum, origin, dest, time, capacity, price};
+    }
+
+    int[] nodeStarts() {
+        return nodeStart;
+    }
+
+    int[] destOrder() {
+        return destOrder;
+    }
+
+    int[] fidOrder() {
+        return fidOrder;
+    }
+
+    private int lowerBound(int lo, int hi, int destCity) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dest[destOrder[mid]] < destCity) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int[] identity(int rows) {
+        int[] order = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            order[r] = r;
+        }
+        return order;
+    }
+
+    /**
+     * Stable sort of {@code rows[from, to)} by the values of the given columns, compared in
+     * order. Works on primitives so building a store of a million rows stays fast.
+     */
+    private static void sortRows(int[] rows, int from, int to, int[]... keys) {
+        if (to - from < 2) {
+            return;
+        }
+        int[] scratch = Arrays.copyOfRange(rows, from, to);
+        mergeSort(scratch, rows, from, to, from, keys);
+    }
+
+    // Sorts src[lo - offset, hi - offset) into dst[lo, hi), src and dst start out identical
+    private static void mergeSort(int[] src, int[] dst, int lo, int hi, int offset,
+                                  int[][] keys) {
+        if (hi - lo < 16) {
+            for (int i = lo + 1; i < hi; i++) {
+                int row = dst[i];
+                int j = i;
+                while (j > lo && compareRows(dst[j - 1], row, keys) > 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
+                }
+                dst[j] = row;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        // Sort both halves into src, then merge them back into dst
+        mergeSort(dst, src, lo - offset, mid - offset, -offset, keys);
+        mergeSort(dst, src, mid - offset, hi - offset, -offset, keys);
+        int i = lo - offset;
+        int j = mid - offset;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi - offset || (i < mid - offset && compareRows(src[i], src[j], keys) <= 0)) {
+                dst[k] = src[i++];
+            } else {
+                dst[k] = src[j++];
+            }
+        }
+    }
+
+    private static int compareRows(int a, int b, int[][] keys) {
+        for (int[] key : keys) {
+            int c = Integer.compare(key[a], key[b]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static String normalize(String city) {
+        return city.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Accumulates flights in any order and encodes them into a store
+     */
+    public static class Builder {
+        private final Dictionary cities = new Dictionary(true);
+        private final Dictionary carriers = new Dictionary(false);
+        private final Dictionary flightNums = new Dictionary(false);
+        private int[][] columns = new int[COLUMNS][1024];
+        private int rows;
+
+        /**
+         * Adds a flight; rows with a day outside 1..31 are ignored
+         */
+        public void add(int fid, int dayOfMonth, String carrierId, String flightNum,
+                        String originCity, String destCity, int time, int capacity,
+                        int price) {
+            if (dayOfMonth < 1 || dayOfMonth >= DAYS) {
+                return;
+            }
+            if (rows == columns[0].length) {
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = Arrays.copyOf(columns[c], rows * 2);
+                }
+            }
+            columns[0][rows] = fid;
+            columns[1][rows] = dayOfMonth;
+            columns[2][rows] = carriers.encode(carrierId);
+            columns[3][rows] = flightNums.encode(flightNum);
+            columns[4][rows] = cities.encode(originCity);
+            columns[5][rows] = cities.encode(destCity);
+            columns[6][rows] = time;
+            columns[7][rows] = capacity;
+            columns[8][rows] = price;
+            rows++;
+        }
+
+        /**
+         * Sorts the rows by (origin, day, actual_time, fid) and builds the store
+         */
+        public FlightStore build() {
+            int[][] c = columns;
+            int[] order = identity(rows);
+            sortRows(order, 0, rows, c[4], c[1], c[6], c[0]);
+
+            int[][] sorted = new int[c.length][rows];
+            for (int col = 0; col < c.length; col++) {
+                for (int r = 0; r < rows; r++) {
+                    sorted[col][r] = c[col][order[r]];
+                }
+            }
+            return index(cities.values(), carriers.values(), flightNums.values(), sorted);
+        }
+    }
+
+    /**
+     * Assigns dense int codes to strings in first-seen order
+     */
+    private static class Dictionary {
+        // City comparisons in the database are case-insensitive, so cities share a code
+        // with any differently cased spelling and keep the first one seen
+        private final boolean foldCase;
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        Dictionary(boolean foldCase) {
+            this.foldCase = foldCase;
+        }
+
+        int encode(String value) {
+            String key = foldCase && value != null ? normalize(value) : value;
+            Integer code = codes.get(key);
+            if (code == null) {
+                code = values.size();
+                codes.put(key, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        String[] values() {
+            return values.toArray(new String[0]);
+        }
+    }
+}
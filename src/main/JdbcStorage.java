@@ -0,0 +1,610 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Keeps a session's data in any JDBC database at the URL in the flights.jdbcUrl property,
+ * for example an embedded H2 or HSQLDB database, in standard SQL only. Every transaction
+ * is serializable and is retried when the database aborts it.
+ * <p>
+ * The first session to open the storage creates the tables it is missing. A missing
+ * Flights table is loaded from the flights CSV named by the flights.csv property
+ * (flights-small.csv by default), so an empty database is ready to use after one start.
+ * Reservation IDs are counted in a table of their own, as there is no portable way to
+ * reseed an identity column.
+ */
+public class JdbcStorage implements Storage {
+    // Connections shared by every session of this storage
+    private static final ConnectionPool connectionPool = new ConnectionPool(
+            JdbcStorage::openPooled, Integer.getInteger("flights.poolSize", 16),
+            Long.getLong("flights.poolWaitMillis", 5000));
+
+    // Whether the tables were checked in this process
+    private static boolean created;
+
+    private static final int ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 5;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 200;
+
+    // The connection borrowed for the current transaction, null between transactions
+    private ConnectionPool.Lease lease;
+
+    private final TransactionExecutor transactions = new TransactionExecutor(
+            this::commitTransaction, this::rollbackTransaction, ATTEMPTS, RETRY_BACKOFF_MILLIS,
+            MAX_RETRY_BACKOFF_MILLIS);
+
+    // Flights as in createFlightTables.sql, without the lookup tables it references
+    private static final String CREATE_FLIGHTS =
+            "CREATE TABLE Flights (fid int PRIMARY KEY, month_id int, day_of_month int, " +
+                    "day_of_week_id int, carrier_id varchar(7), flight_num int, " +
+                    "origin_city varchar(34), origin_state varchar(47), " +
+                    "dest_city varchar(34), dest_state varchar(46), departure_delay int, " +
+                    "taxi_out int, arrival_delay int, canceled int, actual_time int, " +
+                    "distance int, capacity int, price int)";
+
+    private static final String COUNT_FLIGHTS = "SELECT COUNT(*) FROM Flights";
+
+    private static final String DELETE_FLIGHTS = "DELETE FROM Flights";
+
+    private static final String[] CREATE_TABLES = {
+            "CREATE TABLE Flights_Users (username varchar(20) NOT NULL PRIMARY KEY, " +
+                    "pass varbinary(64) NOT NULL, salt varbinary(16) NOT NULL, " +
+                    "balance int NOT NULL)",
+            "CREATE TABLE Flights_Reservations (rid int NOT NULL PRIMARY KEY, " +
+                    "username varchar(20) NOT NULL, paid int NOT NULL, day int NOT NULL, " +
+                    "price int NOT NULL)",
+            "CREATE INDEX Flights_Reservations_User ON Flights_Reservations (username, day)",
+            "CREATE TABLE Flights_Reservation_Legs (rid int NOT NULL, leg int NOT NULL, " +
+                    "fid int NOT NULL, PRIMARY KEY (rid, leg))",
+            "CREATE TABLE Flights_Capacity (fid int NOT NULL PRIMARY KEY, " +
+                    "capacity int NOT NULL)",
+            "CREATE TABLE Flights_Next_Rid (rid int NOT NULL)",
+            "INSERT INTO Flights_Next_Rid (rid) VALUES (1)"
+    };
+
+    private static final String[] CLEAR_TABLES = {
+            "DELETE FROM Flights_Reservation_Legs",
+            "DELETE FROM Flights_Reservations",
+            "DELETE FROM Flights_Users",
+            "DELETE FROM Flights_Capacity",
+            "UPDATE Flights_Next_Rid SET rid = 1"
+    };
+
+    private static final String GET_USER =
+            "SELECT pass, salt, balance FROM Flights_Users WHERE username = ?";
+
+    private static final String CREATE_USER =
+            "INSERT INTO Flights_Users (username, pass, salt, balance) VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_PASSWORD =
+            "UPDATE Flights_Users SET pass = ?, salt = ? WHERE username = ? AND pass = ?";
+
+    private static final String UPDATE_BALANCE =
+            "UPDATE Flights_Users SET balance = balance + ? WHERE username = ?";
+
+    private static final String GET_USER_RESERVATIONS =
+            "SELECT r.rid, r.paid, r.price AS total_price, l.fid " +
+                    "FROM Flights_Reservations r " +
+                    "JOIN Flights_Reservation_Legs l ON l.rid = r.rid " +
+                    "WHERE r.username = ? " +
+                    "ORDER BY r.rid, l.leg";
+
+    private static final String GET_USER_RESERVATION_FLIGHTS =
+            "SELECT r.rid, r.paid, r.price AS total_price, f.fid, f.day_of_month, " +
+                    "f.carrier_id, f.flight_num, " +
+                    "f.origin_city, f.dest_city, f.actual_time, f.capacity, f.price " +
+                    "FROM Flights_Reservations r " +
+                    "JOIN Flights_Reservation_Legs l ON l.rid = r.rid " +
+                    "JOIN Flights f ON f.fid = l.fid " +
+                    "WHERE r.username = ? " +
+                    "ORDER BY r.rid, l.leg";
+
+    private static final String CHECK_RESERVATION_DAY_EXISTS =
+            "SELECT rid FROM Flights_Reservations WHERE username = ? AND day = ?";
+
+    private static final String GET_RESERVATION =
+            "SELECT paid, price FROM Flights_Reservations WHERE rid = ? AND username = ?";
+
+    private static final String GET_UNPAID_TOTAL =
+            "SELECT COUNT(*) AS due, SUM(price) AS total FROM Flights_Reservations " +
+                    "WHERE username = ? AND paid = 0";
+
+    private static final String PAY_RESERVATION =
+            "UPDATE Flights_Reservations SET paid = 1 WHERE rid = ?";
+
+    private static final String PAY_ALL_RESERVATIONS =
+            "UPDATE Flights_Reservations SET paid = 1 WHERE username = ? AND paid = 0";
+
+    private static final String GET_NEXT_RID =
+            "SELECT rid FROM Flights_Next_Rid";
+
+    private static final String TAKE_NEXT_RID =
+            "UPDATE Flights_Next_Rid SET rid = rid + 1";
+
+    private static final String INSERT_RESERVATION =
+            "INSERT INTO Flights_Reservations (rid, username, paid, day, price) " +
+                    "VALUES (?, ?, 0, ?, ?)";
+
+    private static final String INSERT_RESERVATION_LEG =
+            "INSERT INTO Flights_Reservation_Legs (rid, leg, fid) VALUES (?, ?, ?)";
+
+    private static final String GET_RESERVATION_LEGS =
+            "SELECT fid FROM Flights_Reservation_Legs WHERE rid = ? ORDER BY leg";
+
+    private static final String DELETE_RESERVATION_LEGS =
+            "DELETE FROM Flights_Reservation_Legs WHERE rid = ?";
+
+    private static final String DELETE_RESERVATION =
+            "DELETE FROM Flights_Reservations WHERE rid = ?";
+
+    private static final String GET_BOOKED =
+            "SELECT capacity FROM Flights_Capacity WHERE fid = ?";
+
+    private static final String TAKE_SEAT =
+            "UPDATE Flights_Capacity SET capacity = capacity + 1 WHERE fid = ?";
+
+    // A concurrent first booking on the same flight fails this with a duplicate key
+    private static final String TAKE_FIRST_SEAT =
+            "INSERT INTO Flights_Capacity (fid, capacity) VALUES (?, 1)";
+
+    private static final String RETURN_SEAT =
+            "UPDATE Flights_Capacity SET capacity = capacity - 1 WHERE fid = ? AND capacity > 0";
+
+    // Filled in with one parameter per fid
+    private static final String GET_BOOKED_CAPACITIES =
+            "SELECT fid, capacity FROM Flights_Capacity WHERE fid IN (%s)";
+
+    /**
+     * Opens a connection for the pool, committing after each statement until a
+     * transaction begins
+     */
+    private static Connection openPooled() throws IOException, SQLException {
+        Connection connection = Query.connect();
+        connection.setAutoCommit(true);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        return connection;
+    }
+
+    /**
+     * Creates the missing tables, and loads the flights if Flights is empty, the first
+     * time any session opens this storage
+     */
+    @Override
+    public void open() throws IOException, SQLException {
+        if (System.getProperty("flights.jdbcUrl") == null) {
+            throw new SQLException("The jdbc storage needs the flights.jdbcUrl property");
+        }
+        synchronized (JdbcStorage.class) {
+            if (!created) {
+                createTables();
+                created = true;
+            }
+        }
+        acquire();
+        release();
+    }
+
+    private void createTables() throws IOException, SQLException {
+        Path csv = Paths.get(System.getProperty("flights.csv", "flights-small.csv"));
+        boolean loadFlights;
+        try (ConnectionPool.Lease setup = connectionPool.borrow();
+             Statement s = setup.connection().createStatement()) {
+            Set<String> tables = new HashSet<>();
+            try (ResultSet rs = setup.connection().getMetaData().getTables(null, null, "%",
+                    new String[]{"TABLE"})) {
+                while (rs.next()) {
+                    tables.add(rs.getString("TABLE_NAME").toUpperCase(Locale.ROOT));
+                }
+            }
+
+            // A Flights table left empty by an earlier start that failed is loaded again
+            boolean hasFlights = tables.contains("FLIGHTS");
+            if (hasFlights) {
+                try (ResultSet rs = s.executeQuery(COUNT_FLIGHTS)) {
+                    rs.next();
+                    loadFlights = rs.getLong(1) == 0;
+                }
+            } else {
+                loadFlights = true;
+            }
+            // Check for the flights before creating anything
+            if (loadFlights && !Files.isRegularFile(csv)) {
+                throw new IOException("No flights to load, " + csv + " not found");
+            }
+
+            if (!hasFlights) {
+                s.execute(CREATE_FLIGHTS);
+            }
+            if (!tables.contains("FLIGHTS_USERS")) {
+                for (String sql : CREATE_TABLES) {
+                    s.execute(sql);
+                }
+            }
+        }
+
+        if (loadFlights) {
+            boolean loaded = false;
+            try {
+                new FlightImporter(1000, 1).load(FlightImporter.FLIGHTS, csv);
+                loaded = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted loading " + csv, ex);
+            } finally {
+                if (!loaded) {
+                    clearFlights();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the batches a failed load already committed, so the next start loads the
+     * flights again instead of serving part of them
+     */
+    private void clearFlights() {
+        try (ConnectionPool.Lease cleanup = connectionPool.borrow();
+             Statement s = cleanup.connection().createStatement()) {
+            s.execute(DELETE_FLIGHTS);
+        } catch (SQLException ex) {
+            // The load's own failure is the one reported
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    private void acquire() throws SQLException {
+        if (lease == null) {
+            lease = connectionPool.borrow();
+        }
+    }
+
+    private void release() {
+        if (lease != null) {
+            ConnectionPool.Lease returned = lease;
+            lease = null;
+            returned.close();
+        }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = lease.prepare(sql);
+        statement.clearParameters();
+        return statement;
+    }
+
+    private void beginTransaction() throws SQLException {
+        acquire();
+        lease.connection().setAutoCommit(false);
+    }
+
+    private void commitTransaction() throws SQLException {
+        lease.connection().commit();
+        lease.connection().setAutoCommit(true);
+        release();
+    }
+
+    private void rollbackTransaction() throws SQLException {
+        if (lease == null) {
+            return;
+        }
+        try {
+            lease.connection().rollback();
+            lease.connection().setAutoCommit(true);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public TransactionExecutor getTransactionMetrics() {
+        return transactions;
+    }
+
+    /**
+     * @return wait, utilization and size of the connection pool every session shares
+     */
+    public static ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public FlightIndex loadFlightIndex() throws SQLException {
+        acquire();
+        try {
+            lease.connection().setAutoCommit(false);
+            FlightIndex index = FlightIndex.load(lease.connection());
+            lease.connection().commit();
+            return index;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void clear() throws SQLException {
+        try {
+            beginTransaction();
+            Statement s = lease.statement("clear");
+            for (String sql : CLEAR_TABLES) {
+                s.executeUpdate(sql);
+            }
+            commitTransaction();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public User readUser(String username, boolean withFlights) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            PreparedStatement getUser = prepare(GET_USER);
+            getUser.setString(1, username);
+            ResultSet user = getUser.executeQuery();
+            if (!user.next()) {
+                return null;
+            }
+            byte[] hash = user.getBytes("pass");
+            byte[] salt = user.getBytes("salt");
+            int balance = user.getInt("balance");
+
+            PreparedStatement legs = prepare(withFlights ?
+                    GET_USER_RESERVATION_FLIGHTS : GET_USER_RESERVATIONS);
+            legs.setString(1, username);
+            return new User(hash, salt, balance,
+                    Reservation.read(legs.executeQuery(), withFlights));
+        }, null);
+    }
+
+    @Override
+    public User readPassword(String username) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            PreparedStatement getUser = prepare(GET_USER);
+            getUser.setString(1, username);
+            ResultSet user = getUser.executeQuery();
+            if (!user.next()) {
+                return null;
+            }
+            return new User(user.getBytes("pass"), user.getBytes("salt"),
+                    user.getInt("balance"), Collections.emptyList());
+        }, null);
+    }
+
+    @Override
+    public boolean createUser(String username, byte[] hash, byte[] salt, int balance) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            PreparedStatement getUser = prepare(GET_USER);
+            getUser.setString(1, username);
+            if (getUser.executeQuery().next()) {
+                tx.setRollbackOnly();
+                return false;
+            }
+            PreparedStatement create = prepare(CREATE_USER);
+            create.setString(1, username);
+            create.setBytes(2, hash);
+            create.setBytes(3, salt);
+            create.setInt(4, balance);
+            create.executeUpdate();
+            return true;
+        }, false);
+    }
+
+    @Override
+    public void updatePassword(String username, byte[] oldHash, byte[] hash, byte[] salt) {
+        transactions.execute(this::beginTransaction, tx -> {
+            PreparedStatement update = prepare(UPDATE_PASSWORD);
+            update.setBytes(1, hash);
+            update.setBytes(2, salt);
+            update.setString(3, username);
+            update.setBytes(4, oldHash);
+            update.executeUpdate();
+            return null;
+        }, null);
+    }
+
+    @Override
+    public Map<Integer, Integer> bookedCounts(Collection<Integer> fids) throws SQLException {
+        if (fids.isEmpty()) {
+            return new HashMap<>();
+        }
+        StringBuilder params = new StringBuilder();
+        for (int p = 0; p < fids.size(); p++) {
+            params.append(p == 0 ? "?" : ", ?");
+        }
+        String sql = String.format(GET_BOOKED_CAPACITIES, params);
+
+        Map<Integer, Integer> booked = transactions.execute(this::beginTransaction, tx -> {
+            PreparedStatement statement = prepare(sql);
+            int p = 1;
+            for (int fid : fids) {
+                statement.setInt(p++, fid);
+            }
+            Map<Integer, Integer> counts = new HashMap<>();
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                counts.put(rs.getInt("fid"), rs.getInt("capacity"));
+            }
+            return counts;
+        }, null);
+        if (booked == null) {
+            throw new SQLException("Could not read the booked seats");
+        }
+        return booked;
+    }
+
+    @Override
+    public int book(String username, Query.Itinerary i) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            // Two first bookings on a flight race to insert its Flights_Capacity row
+            tx.retryOn(TransactionExecutor.Failure.CONSTRAINT);
+
+            PreparedStatement sameDay = prepare(CHECK_RESERVATION_DAY_EXISTS);
+            sameDay.setString(1, username);
+            sameDay.setInt(2, i.dayOfMonth);
+            if (sameDay.executeQuery().next()) {
+                tx.setRollbackOnly();
+                return SAME_DAY;
+            }
+
+            PreparedStatement getBooked = prepare(GET_BOOKED);
+            for (int leg = 0; leg < i.numFlights; leg++) {
+                getBooked.setInt(1, i.fid(leg));
+                ResultSet rs = getBooked.executeQuery();
+                if (rs.next() && rs.getInt("capacity") >= i.capacity(leg)) {
+                    tx.setRollbackOnly();
+                    return FULL;
+                }
+            }
+            for (int leg = 0; leg < i.numFlights; leg++) {
+                PreparedStatement takeSeat = prepare(TAKE_SEAT);
+                takeSeat.setInt(1, i.fid(leg));
+                if (takeSeat.executeUpdate() == 0) {
+                    PreparedStatement takeFirstSeat = prepare(TAKE_FIRST_SEAT);
+                    takeFirstSeat.setInt(1, i.fid(leg));
+                    takeFirstSeat.executeUpdate();
+                }
+            }
+
+            ResultSet next = prepare(GET_NEXT_RID).executeQuery();
+            if (!next.next()) {
+                tx.setRollbackOnly();
+                return FAILED;
+            }
+            int reservationId = next.getInt("rid");
+            prepare(TAKE_NEXT_RID).executeUpdate();
+
+            PreparedStatement insert = prepare(INSERT_RESERVATION);
+            insert.setInt(1, reservationId);
+            insert.setString(2, username);
+            insert.setInt(3, i.dayOfMonth);
+            insert.setInt(4, i.totalCost);
+            insert.executeUpdate();
+            PreparedStatement insertLeg = prepare(INSERT_RESERVATION_LEG);
+            for (int leg = 0; leg < i.numFlights; leg++) {
+                insertLeg.setInt(1, reservationId);
+                insertLeg.setInt(2, leg);
+                insertLeg.setInt(3, i.fid(leg));
+                insertLeg.executeUpdate();
+            }
+            return reservationId;
+        }, FAILED);
+    }
+
+    /**
+     * @return the user's balance, or null if there is no such user
+     */
+    private Integer getBalance(String username) throws SQLException {
+        PreparedStatement getUser = prepare(GET_USER);
+        getUser.setString(1, username);
+        ResultSet user = getUser.executeQuery();
+        return user.next() ? user.getInt("balance") : null;
+    }
+
+    private void addToBalance(String username, int amount) throws SQLException {
+        PreparedStatement update = prepare(UPDATE_BALANCE);
+        update.setInt(1, amount);
+        update.setString(2, username);
+        update.executeUpdate();
+    }
+
+    @Override
+    public Payment pay(String username, int reservationId) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            Integer balance = getBalance(username);
+            if (balance == null) {
+                tx.setRollbackOnly();
+                return null;
+            }
+            PreparedStatement getReservation = prepare(GET_RESERVATION);
+            getReservation.setInt(1, reservationId);
+            getReservation.setString(2, username);
+            ResultSet r = getReservation.executeQuery();
+            if (!r.next() || r.getInt("paid") != 0) {
+                return new Payment(Payment.Status.NOT_FOUND, 0, 0, 0);
+            }
+            int price = r.getInt("price");
+            if (balance < price) {
+                return new Payment(Payment.Status.INSUFFICIENT, balance, price, 0);
+            }
+
+            addToBalance(username, -price);
+            PreparedStatement pay = prepare(PAY_RESERVATION);
+            pay.setInt(1, reservationId);
+            pay.executeUpdate();
+            return new Payment(Payment.Status.PAID, balance - price, price, 1);
+        }, null);
+    }
+
+    @Override
+    public Payment payAll(String username) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            Integer balance = getBalance(username);
+            if (balance == null) {
+                tx.setRollbackOnly();
+                return null;
+            }
+            PreparedStatement getUnpaid = prepare(GET_UNPAID_TOTAL);
+            getUnpaid.setString(1, username);
+            ResultSet unpaid = getUnpaid.executeQuery();
+            int due = unpaid.next() ? unpaid.getInt("due") : 0;
+            if (due == 0) {
+                return new Payment(Payment.Status.NOTHING_DUE, 0, 0, 0);
+            }
+            int total = unpaid.getInt("total");
+            if (balance < total) {
+                return new Payment(Payment.Status.INSUFFICIENT, balance, total, 0);
+            }
+
+            addToBalance(username, -total);
+            PreparedStatement payAll = prepare(PAY_ALL_RESERVATIONS);
+            payAll.setString(1, username);
+            payAll.executeUpdate();
+            return new Payment(Payment.Status.PAID, balance - total, total, due);
+        }, null);
+    }
+
+    @Override
+    public List<Integer> cancel(String username, int reservationId) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            List<Integer> fids = new ArrayList<>();
+            PreparedStatement getReservation = prepare(GET_RESERVATION);
+            getReservation.setInt(1, reservationId);
+            getReservation.setString(2, username);
+            ResultSet r = getReservation.executeQuery();
+            if (!r.next()) {
+                return fids;
+            }
+            boolean paid = r.getInt("paid") != 0;
+            int price = r.getInt("price");
+
+            PreparedStatement getLegs = prepare(GET_RESERVATION_LEGS);
+            getLegs.setInt(1, reservationId);
+            ResultSet legs = getLegs.executeQuery();
+            while (legs.next()) {
+                fids.add(legs.getInt("fid"));
+            }
+
+            PreparedStatement deleteLegs = prepare(DELETE_RESERVATION_LEGS);
+            deleteLegs.setInt(1, reservationId);
+            deleteLegs.executeUpdate();
+            PreparedStatement delete = prepare(DELETE_RESERVATION);
+            delete.setInt(1, reservationId);
+            delete.executeUpdate();
+            if (paid) {
+                addToBalance(username, price);
+            }
+            PreparedStatement returnSeat = prepare(RETURN_SEAT);
+            for (int fid : fids) {
+                returnSeat.setInt(1, fid);
+                returnSeat.executeUpdate();
+            }
+            return fids;
+        }, null);
+    }
+}
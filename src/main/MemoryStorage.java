@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Keeps users, reservations and booked seats in collections of this process, shared by
+ * every session and lost when it exits. Every method holds one lock for its whole run, so
+ * each is a serializable transaction that cannot fail or need a retry.
+ * <p>
+ * Flights are read from the flights CSV named by the flights.csv property
+ * (flights-small.csv by default), unless a flight snapshot was opened. Nothing needs a
+ * database, so the service can be benchmarked without one.
+ */
+public class MemoryStorage implements Storage {
+
+    private static final MemoryStorage shared = new MemoryStorage();
+
+    private static class UserRow {
+        byte[] hash;
+        byte[] salt;
+        int balance;
+        // By reservation ID
+        final SortedMap<Integer, ReservationRow> reservations = new TreeMap<>();
+    }
+
+    private static class ReservationRow {
+        final int rid;
+        final int day;
+        final int price;
+        final int[] fids;
+        boolean paid;
+
+        ReservationRow(int rid, int day, int price, int[] fids) {
+            this.rid = rid;
+            this.day = day;
+            this.price = price;
+            this.fids = fids;
+        }
+    }
+
+    private final Map<String, UserRow> users = new HashMap<>();
+    // Seats booked per fid, flights without bookings left out
+    private final Map<Integer, Integer> booked = new HashMap<>();
+    private int nextReservationId = 1;
+
+    /**
+     * @return the storage every in-memory session shares
+     */
+    static MemoryStorage shared() {
+        return shared;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public FlightIndex loadFlightIndex() throws IOException {
+        return new FlightIndex(FlightSnapshot.fromCsv(
+                Paths.get(System.getProperty("flights.csv", "flights-small.csv"))));
+    }
+
+    @Override
+    public synchronized User readUser(String username, boolean withFlights) {
+        UserRow user = users.get(username);
+        if (user == null) {
+            return null;
+        }
+        // Legs are only ever rendered from the flight index
+        List<Reservation> reservations = new ArrayList<>(user.reservations.size());
+        for (ReservationRow r : user.reservations.values()) {
+            reservations.add(new Reservation(r.rid, r.paid, r.price, r.fids, null));
+        }
+        return new User(user.hash, user.salt, user.balance, reservations);
+    }
+
+    @Override
+    public synchronized User readPassword(String username) {
+        UserRow user = users.get(username);
+        if (user == null) {
+            return null;
+        }
+        return new User(user.hash, user.salt, user.balance, Collections.emptyList());
+    }
+
+    @Override
+    public synchronized boolean createUser(String username, byte[] hash, byte[] salt,
+                                           int balance) {
+        if (users.containsKey(username)) {
+            return false;
+        }
+        UserRow user = new UserRow();
+        user.hash = hash;
+        user.salt = salt;
+        user.balance = balance;
+        users.put(username, user);
+        return true;
+    }
+
+    @Override
+    public synchronized void updatePassword(String username, byte[] oldHash, byte[] hash,
+                                            byte[] salt) {
+        UserRow user = users.get(username);
+        if (user != null && Arrays.equals(user.hash, oldHash)) {
+            user.hash = hash;
+            user.salt = salt;
+        }
+    }
+
+    @Override
+    public synchronized Map<Integer, Integer> bookedCounts(Collection<Integer> fids) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int fid : fids) {
+            Integer count = booked.get(fid);
+            if (count != null) {
+                counts.put(fid, count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized int book(String username, Query.Itinerary i) {
+        UserRow user = users.get(username);
+        if (user == null) {
+            return FAILED;
+        }
+        for (ReservationRow r : user.reservations.values()) {
+            if (r.day == i.dayOfMonth) {
+                return SAME_DAY;
+            }
+        }
+        int[] fids = new int[i.numFlights];
+        for (int leg = 0; leg < fids.length; leg++) {
+            fids[leg] = i.fid(leg);
+            if (booked.getOrDefault(fids[leg], 0) >= i.capacity(leg)) {
+                return FULL;
+            }
+        }
+
+        for (int fid : fids) {
+            booked.merge(fid, 1, Integer::sum);
+        }
+        int reservationId = nextReservationId++;
+        user.reservations.put(reservationId,
+                new ReservationRow(reservationId, i.dayOfMonth, i.totalCost, fids));
+        return reservationId;
+    }
+
+    @Override
+    public synchronized Payment pay(String username, int reservationId) {
+        UserRow user = users.get(username);
+        if (user == null) {
+            return null;
+        }
+        ReservationRow r = user.reservations.get(reservationId);
+        if (r == null || r.paid) {
+            return new Payment(Payment.Status.NOT_FOUND, 0, 0, 0);
+        } else if (user.balance < r.price) {
+            return new Payment(Payment.Status.INSUFFICIENT, user.balance, r.price, 0);
+        }
+        user.balance -= r.price;
+        r.paid = true;
+        return new Payment(Payment.Status.PAID, user.balance, r.price, 1);
+    }
+
+    @Override
+    public synchronized Payment payAll(String username) {
+        UserRow user = users.get(username);
+        if (user == null) {
+            return null;
+        }
+        int due = 0;
+        int total = 0;
+        for (ReservationRow r : user.reservations.values()) {
+            if (!r.paid) {
+                due++;
+                total += r.price;
+            }
+        }
+        if (due == 0) {
+            return new Payment(Payment.Status.NOTHING_DUE, 0, 0, 0);
+        } else if (user.balance < total) {
+            return new Payment(Payment.Status.INSUFFICIENT, user.balance, total, 0);
+        }
+        for (ReservationRow r : user.reservations.values()) {
+            r.paid = true;
+        }
+        user.balance -= total;
+        return new Payment(Payment.Status.PAID, user.balance, total, due);
+    }
+
+    @Override
+    public synchronized List<Integer> cancel(String username, int reservationId) {
+        UserRow user = users.get(username);
+        ReservationRow r = user == null ? null : user.reservations.remove(reservationId);
+        if (r == null) {
+            return new ArrayList<>();
+        }
+        if (r.paid) {
+            user.balance += r.price;
+        }
+        List<Integer> fids = new ArrayList<>(r.fids.length);
+        for (int fid : r.fids) {
+            // Seat counts that reach zero are dropped, as if never booked
+            booked.computeIfPresent(fid, (f, count) -> count > 1 ? count - 1 : null);
+            fids.add(fid);
+        }
+        return fids;
+    }
+
+    @Override
+    public synchronized void clear() {
+        users.clear();
+        booked.clear();
+        nextReservationId = 1;
+    }
+}
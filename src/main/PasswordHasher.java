@@ -0,0 +1,282 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashes and checks passwords on a bounded pool of threads of its own, shared by every
+ * session, so a burst of logins keeps at most a fixed number of cores busy and queues, or
+ * is refused, instead of stalling every other command behind it.
+ * <p>
+ * A stored hash records the algorithm and iteration count it was made with:
+ * <pre>
+ *   byte 0      algorithm
+ *   bytes 1-4   iterations, big endian
+ *   bytes 5-    derived key
+ * </pre>
+ * Hashes of exactly {@link #LEGACY_KEY_BYTES} bytes predate that header and are raw
+ * PBKDF2WithHmacSHA1 keys of 65536 iterations. A password that checks against a hash made
+ * with other parameters than the current ones is hashed again, so the parameters can be
+ * raised without resetting any password.
+ * <p>
+ * Each hashing thread keeps its own key factories, and each caller thread its own source
+ * of salts.
+ */
+public class PasswordHasher {
+
+    /**
+     * Key derivation functions a stored hash can name, by their header byte
+     */
+    public enum Algorithm {
+        PBKDF2_SHA1(1, "PBKDF2WithHmacSHA1"),
+        PBKDF2_SHA256(2, "PBKDF2WithHmacSHA256"),
+        PBKDF2_SHA512(3, "PBKDF2WithHmacSHA512");
+
+        final byte id;
+        final String jcaName;
+
+        Algorithm(int id, String jcaName) {
+            this.id = (byte) id;
+            this.jcaName = jcaName;
+        }
+
+        static Algorithm of(byte id) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Outcome of checking a password
+     */
+    public static class Verification {
+        final boolean matches;
+        // Set when the password matched a hash made with outdated parameters
+        final byte[] rehash;
+        final byte[] rehashSalt;
+
+        Verification(boolean matches, byte[] rehash, byte[] rehashSalt) {
+            this.matches = matches;
+            this.rehash = rehash;
+            this.rehashSalt = rehashSalt;
+        }
+    }
+
+    // Size of a hash stored before hashes had a header
+    static final int LEGACY_KEY_BYTES = 16;
+    private static final int LEGACY_ITERATIONS = 65536;
+    private static final int HEADER_BYTES = 5;
+    public static final int SALT_BYTES = 16;
+
+    // Shared, since SecureRandom is thread-safe and sessions may each run on a new
+    // virtual thread
+    private static final SecureRandom saltSource = new SecureRandom();
+    // Key factories of a hashing thread, by algorithm
+    private static final ThreadLocal<Map<Algorithm, SecretKeyFactory>> keyFactories =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Algorithm.class));
+
+    private final Algorithm algorithm;
+    private final int iterations;
+    private final int keyBits;
+    private final ThreadPoolExecutor pool;
+
+    // Metrics
+    private final AtomicLong hashes = new AtomicLong();
+    private final AtomicLong rehashes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong hashNanos = new AtomicLong();
+
+    /**
+     * @param algorithm  function new hashes are made with
+     * @param iterations iterations new hashes are made with
+     * @param keyBits    length of the keys new hashes are made with
+     * @param threads    threads hashing at once
+     * @param queueSize  most hashes waiting for a thread, any more are refused
+     */
+    public PasswordHasher(Algorithm algorithm, int iterations, int keyBits, int threads,
+                          int queueSize) {
+        if (iterations < 1 || keyBits < 8 || keyBits % 8 != 0 || threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Hash parameters must be positive");
+        }
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.keyBits = keyBits;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "password-hasher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return a new random salt
+     */
+    public byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        saltSource.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Hashes a password with the current parameters, waiting for a hashing thread.
+     *
+     * @return the hash to store, or null if the queue was full or the wait was interrupted
+     */
+    public byte[] hash(String password, byte[] salt) {
+        return await(() -> encode(password, salt));
+    }
+
+    /**
+     * Checks a password against a stored hash, waiting for a hashing thread. If it
+     * matches a hash made with outdated parameters, it is also hashed again with a new
+     * salt and the current parameters.
+     *
+     * @return the outcome, or null if the queue was full or the wait was interrupted
+     */
+    public Verification verify(String password, byte[] salt, byte[] stored) {
+        return await(() -> {
+            byte[] expected;
+            if (stored.length == LEGACY_KEY_BYTES) {
+                expected = derive(Algorithm.PBKDF2_SHA1, password, salt, LEGACY_ITERATIONS,
+                        LEGACY_KEY_BYTES * 8);
+            } else if (stored.length > HEADER_BYTES && Algorithm.of(stored[0]) != null) {
+                int storedIterations = ByteBuffer.wrap(stored, 1, 4).getInt();
+                byte[] key = derive(Algorithm.of(stored[0]), password, salt, storedIterations,
+                        (stored.length - HEADER_BYTES) * 8);
+                expected = ByteBuffer.allocate(HEADER_BYTES + key.length).put(stored[0])
+                        .putInt(storedIterations).put(key).array();
+            } else {
+                return new Verification(false, null, null);
+            }
+
+            if (!MessageDigest.isEqual(expected, stored)) {
+                return new Verification(false, null, null);
+            } else if (!isCurrent(stored)) {
+                byte[] rehashSalt = newSalt();
+                rehashes.incrementAndGet();
+                return new Verification(true, encode(password, rehashSalt), rehashSalt);
+            }
+            return new Verification(true, null, null);
+        });
+    }
+
+    /**
+     * @return whether a stored hash was made with the current parameters
+     */
+    boolean isCurrent(byte[] stored) {
+        return stored.length == HEADER_BYTES + keyBits / 8 && stored[0] == algorithm.id
+                && ByteBuffer.wrap(stored, 1, 4).getInt() == iterations;
+    }
+
+    private byte[] encode(String password, byte[] salt) {
+        byte[] key = derive(algorithm, password, salt, iterations, keyBits);
+        return ByteBuffer.allocate(HEADER_BYTES + key.length).put(algorithm.id)
+                .putInt(iterations).put(key).array();
+    }
+
+    private byte[] derive(Algorithm algorithm, String password, byte[] salt, int iterations,
+                          int keyBits) {
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyBits);
+        try {
+            SecretKeyFactory factory = keyFactories.get().get(algorithm);
+            if (factory == null) {
+                factory = SecretKeyFactory.getInstance(algorithm.jcaName);
+                keyFactories.get().put(algorithm, factory);
+            }
+            return factory.generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+            hashes.incrementAndGet();
+            hashNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private <T> T await(Callable<T> task) {
+        long submitted = System.nanoTime();
+        Future<T> result;
+        try {
+            result = pool.submit(() -> {
+                queueNanos.addAndGet(System.nanoTime() - submitted);
+                return task.call();
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            return null;
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * @return keys derived, for new hashes, checks and rehashes
+     */
+    public long getHashes() {
+        return hashes.get();
+    }
+
+    /**
+     * @return passwords hashed again with the current parameters after a check
+     */
+    public long getRehashes() {
+        return rehashes.get();
+    }
+
+    /**
+     * @return hashes and checks refused because the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return hashes and checks waiting for a thread right now
+     */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return total time hashes and checks waited for a thread
+     */
+    public long getQueueNanos() {
+        return queueNanos.get();
+    }
+
+    /**
+     * @return total time spent deriving keys
+     */
+    public long getHashNanos() {
+        return hashNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long n = Math.max(1, hashes.get());
+        return String.format("%s x %d: %d hashes, %d rehashes, %d rejected, %d queued, "
+                        + "%.1f ms/hash, %.1f ms queued/hash",
+                algorithm, iterations, hashes.get(), rehashes.get(), rejected.get(), getQueued(),
+                hashNanos.get() / 1e6 / n, queueNanos.get() / 1e6 / n);
+    }
+}
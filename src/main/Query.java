@@ -1,184 +1,84 @@
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.sql.*;
 import java.util.*;
-import java.util.jar.Attributes;
 
 /**
  * Runs queries against a back-end database
  */
 public class Query {
-    // DB Connection
-    private Connection conn;
-
-    // Password hashing parameter constants
-    private static final int HASH_STRENGTH = 65536;
-    private static final int KEY_LENGTH = 128;
-    private static final int ATTEMPTS = 5;
-
     // Flags
     private static final boolean debug = false;
+    // Serve searches from the in-memory flight index instead of the Flights table
+    private static final boolean USE_FLIGHT_INDEX =
+            Boolean.parseBoolean(System.getProperty("flights.searchIndex", "true"));
+
+    // Flight index shared by every session, loaded once
+    private static FlightIndex flightIndex;
+
+    // Most legs in a connecting itinerary served from the flight index
+    private static final int MAX_LEGS = Integer.getInteger("flights.maxLegs", 2);
+
+    // Search results shared by every session, 0 disables caching
+    private static final int SEARCH_CACHE_SIZE =
+            Integer.getInteger("flights.searchCacheSize", 1024);
+    private static final SearchCache searchCache = new SearchCache(SEARCH_CACHE_SIZE);
+    // Search outputs of more itineraries are written out as they are rendered, and cached
+    // without their text
+    private static final int MAX_CACHED_OUTPUT_ITINERARIES = 64;
+
+    // Password hashing shared by every session, on a bounded pool of threads of its own.
+    // Stored hashes made with other parameters are upgraded on the next login
+    private static final PasswordHasher passwordHasher = new PasswordHasher(
+            PasswordHasher.Algorithm.valueOf(System.getProperty("flights.hashAlgorithm",
+                    "PBKDF2_SHA256").toUpperCase(Locale.ROOT)),
+            Integer.getInteger("flights.hashIterations", 65536), 256,
+            Integer.getInteger("flights.hashThreads",
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Integer.getInteger("flights.hashQueue", 256));
+
+    // Answer to a login or create the hasher had no room for. The password was never
+    // checked, so it must not read like a wrong one
+    private static final String HASHER_BUSY = "Server busy, please try again\n";
+
+    // Tokens that log a user back in without their password
+    private static final SessionTokens sessionTokens = new SessionTokens(
+            Long.getLong("flights.sessionTokenMinutes", 60) * 60_000);
+
+    // Where this session's users, reservations and booked seats are kept
+    private final Storage storage;
 
     // Open user session data
     private boolean openSession = false;
     private String openUser;
+    // The logged in user's name as they typed it when logging in
+    private String openUserName;
+    // The logged in user's reservations and balance
+    private ReservationView reservationView;
 
     // Search and reservation data
     private int itineraryNum = 0;   // Used to record number of search results
     private List<Itinerary> directResults = new ArrayList<>();
     private List<Itinerary> indirectResults = new ArrayList<>();
-    private SortedMap<Integer, Itinerary> combinedResults = new TreeMap<>();
-
-    // Canned queries
-    private static final String BEGIN_TRANSACTION_SQL =
-            "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-    protected PreparedStatement beginTransactionStatement;
-
-    private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-    protected PreparedStatement commitTransactionStatement;
-
-    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-    protected PreparedStatement rollbackTransactionStatement;
-
-    private static final String CHECK_FLIGHT_CAPACITY =
-            "SELECT capacity " +
-                    "FROM Flights " +
-                    "WHERE fid = ?";
-    private PreparedStatement checkFlightCapacityStatement;
-
-    private static final String CLEAR_FLIGHTS_USERS =
-            "DELETE FROM Flights_Users";
-    private Statement clearFlightsUsersStatement;
-
-    private static final String CLEAR_FLIGHTS_RESERVATIONS =
-            "DELETE FROM Flights_Reservations " +
-                    "DBCC CHECKIDENT('Flights_Reservations', RESEED, 0)";
-    private Statement clearFlightsReservationsStatement;
-
-    private static final String CLEAR_FLIGHTS_CAPACITY =
-            "DELETE FROM Flights_Capacity";
-    private Statement clearFlightsCapacityStatement;
-
-    private static final String CREATE_USER =
-            "INSERT INTO Flights_Users " +
-                    "VALUES(?, ?, ?, ?)";
-    private PreparedStatement createUserStatement;
-
-    private static final String CHECK_USER_EXISTS =
-            "SELECT *" +
-                    "FROM Flights_Users " +
-                    "WHERE username = ?";
-    private PreparedStatement checkUserExistsStatement;
-
-    private static final String GET_USER =
-            "SELECT * " +
-                    "FROM Flights_Users " +
-                    "WHERE username = ?";
-    private PreparedStatement getUserStatement;
-
-    private static final String GET_FLIGHT =
-            "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city," +
-                    "actual_time, capacity, price " +
-                    "FROM Flights " +
-                    "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? " +
-                    "AND canceled = 0 " +
-                    "ORDER BY actual_time, fid ASC";
-    private PreparedStatement getFlightStatement;
-
-    private static final String GET_INTERMEDIATE_FLIGHT =
-            "WITH Stop_One AS (" +
-                    "SELECT * " +
-                    "FROM Flights " +
-                    "WHERE origin_city = ? AND day_of_month = ?) " +
-                    "SELECT TOP (?) s.fid AS s_fid, s.day_of_month AS s_day_of_month, s.carrier_id AS " +
-                    "s_carrier_id, s.flight_num AS s_flight_num, s.origin_city AS " +
-                    "s_origin_city, s.dest_city AS s_dest_city, s.actual_time AS " +
-                    "s_actual_time, s.capacity AS s_capacity, s.price AS s_price, " +
-                    "s.canceled AS s_canceled, " +
-                    "f.fid AS f_fid, f.day_of_month AS f_day_of_month, f.carrier_id AS " +
-                    "f_carrier_id, f.flight_num AS f_flight_num, f.origin_city AS " +
-                    "f_origin_city, f.dest_city AS f_dest_city, f.actual_time AS " +
-                    "f_actual_time, f.capacity AS f_capacity, f.price AS f_price, " +
-                    "f.canceled AS f_canceled " +
-                    "FROM Stop_One as s, Flights as f " +
-                    "WHERE s.dest_city = f.origin_city AND f.dest_city = ? AND f.day_of_month = ? " +
-                    "AND s.canceled = 0 AND f.canceled = 0 " +
-                    "ORDER BY (s.actual_time + f.actual_time), s.fid, f.fid ASC";
-    private PreparedStatement getIntermediateFlightStatement;
-
-    private static final String CHECK_RESERVATION_DAY_EXISTS =
-            "SELECT * " +
-                    "FROM Flights_Reservations " +
-                    "WHERE username = ? AND day = ?";
-    private PreparedStatement checkReservationDayExistsStatement;
-
-    private static final String BOOK_RESERVATION =
-            "INSERT INTO Flights_Reservations (username, paid, info, day, price, fid1, fid2) " +
-                    "VALUES(?, ?, ?, ?, ?, ?, ?)";
-    private PreparedStatement bookReservationStatement;
-
-    private static final String CHECK_USER_RESERVATION_EXISTS =
-            "SELECT * " +
-                    "FROM Flights_Reservations " +
-                    "WHERE rid = ? AND username = ?";
-    private PreparedStatement checkUserReservationExists;
-
-    private static final String PAY_RESERVATION =
-            "UPDATE Flights_Users " +
-                    "SET balance = balance - ? " +
-                    "OUTPUT inserted.balance AS balance " +
-                    "WHERE username = ?";
-    private PreparedStatement payReservationStatement;
-
-    private static final String MARK_AS_PAID =
-            "UPDATE Flights_Reservations " +
-                    "SET paid = 1 " +
-                    "WHERE username = ? AND rid = ?";
-    private PreparedStatement markAsPaidStatement;
-
-    private static final String GET_USER_RESERVATIONS =
-            "SELECT * " +
-                    "FROM Flights_Reservations " +
-                    "WHERE username = ?";
-    private PreparedStatement getUserReservationsStatement;
-
-    private static final String REFUND_RESERVATION =
-            "UPDATE Flights_Users " +
-                    "SET Balance = balance + ? " +
-                    "WHERE username = ?";
-    private PreparedStatement refundReservationStatement;
-
-    private static final String DELETE_RESERVATION =
-            "DELETE FROM Flights_Reservations " +
-                    "WHERE rid = ? AND username = ?";
-    private PreparedStatement deleteReservationStatement;
-
-    private static final String UPDATE_BOOKED_CAPACITY =
-            "IF EXISTS (SELECT * FROM Flights_Capacity WHERE fid = ?) " +
-                    "UPDATE Flights_Capacity " +
-                    "SET capacity = capacity + ? " +
-                    "WHERE fid = ? " +
-                    "ELSE " +
-                    "INSERT INTO Flights_Capacity (fid, capacity) " +
-                    "VALUES (?, 1)";
-    private PreparedStatement updateBookedCapacityStatement;
-
-    private static final String GET_BOOKED_CAPACITY =
-            "SELECT capacity " +
-                    "FROM Flights_Capacity " +
-                    "WHERE fid = ?";
-    private PreparedStatement getBookedCapacityStatement;
-
-    private static final String REMOVE_BOOKED_CAPACITY =
-            "DELETE FROM Flights_Capacity " +
-                    "WHERE fid = ?";
-    private PreparedStatement removeBookedCapacityStatement;
+    private List<Itinerary> combinedResults = new ArrayList<>();      // Indexed by itinerary id
+    private Map<Integer, Integer> bookedSeats = new HashMap<>();    // Booked seats per fid in the last search
+    // Whether the last search was answered from the cache, whose full flags only reflect
+    // bookings made through this process
+    private boolean cachedResults;
+
+    /**
+     * A session on the storage named by the flights.storage property
+     */
+    public Query() {
+        this(Storage.forSession());
+    }
+
+    /**
+     * A session on the given storage
+     */
+    public Query(Storage storage) {
+        this.storage = storage;
+    }
 
     /**
      * Establishes a new application-to-database connection. Uses the
@@ -188,6 +88,19 @@ public class Query {
      * @throws SQLException
      */
     public void openConnection() throws IOException, SQLException {
+        storage.open();
+    }
+
+    /**
+     * Opens a connection with the dbconn.properties configuration settings, or to the JDBC
+     * URL in the flights.jdbcUrl property when that is set
+     */
+    static Connection connect() throws IOException, SQLException {
+        String jdbcUrl = System.getProperty("flights.jdbcUrl");
+        if (jdbcUrl != null) {
+            return DriverManager.getConnection(jdbcUrl);
+        }
+
         // Connect to the database with the provided connection configuration
         Properties configProps = new Properties();
         configProps.load(new FileInputStream("dbconn.properties"));
@@ -198,20 +111,15 @@ public class Query {
         String connectionUrl = String.format(
                 "jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
                 dbName, adminName, password);
-        conn = DriverManager.getConnection(connectionUrl);
-
-        // By default, automatically commit after each statement
-        conn.setAutoCommit(false);
-
-        // By default, set the transaction isolation level to serializable
-        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        return DriverManager.getConnection(connectionUrl);
     }
 
     /**
-     * Closes the application-to-database connection
+     * Gives back whatever this session's storage still holds. Pooled connections stay
+     * open for other sessions.
      */
     public void closeConnection() throws SQLException {
-        conn.close();
+        storage.close();
     }
 
     /**
@@ -225,64 +133,112 @@ public class Query {
         combinedResults.clear();
         openSession = false;
         openUser = "";
+        reservationView = null;
+        ReservationView.invalidateAll();
+        sessionTokens.clear();
+        searchCache.clear();
         try {
-            beginTransaction();
-            clearFlightsReservationsStatement.execute(CLEAR_FLIGHTS_RESERVATIONS);
-            clearFlightsUsersStatement.execute(CLEAR_FLIGHTS_USERS);
-            clearFlightsCapacityStatement.execute(CLEAR_FLIGHTS_CAPACITY);
-            commitTransaction();
-
+            storage.clear();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /*
-     * prepare all the SQL statements in this method.
+     * Loads what every session shares, the first time any session asks. The flight index
+     * is always loaded for a storage that cannot search the flights itself.
      */
     public void prepareStatements() throws SQLException {
-        // Transaction statements
-        beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-        commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-        rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-        // Flight statements
-        checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-        clearFlightsUsersStatement = conn.createStatement();
-        clearFlightsReservationsStatement = conn.createStatement();
-        clearFlightsCapacityStatement = conn.createStatement();
-        createUserStatement = conn.prepareStatement(CREATE_USER);
-        checkUserExistsStatement = conn.prepareStatement(CHECK_USER_EXISTS);
-        getUserStatement = conn.prepareStatement(GET_USER);
-        getFlightStatement = conn.prepareStatement(GET_FLIGHT);
-        getIntermediateFlightStatement = conn.prepareStatement(GET_INTERMEDIATE_FLIGHT);
-        checkReservationDayExistsStatement = conn.prepareStatement(CHECK_RESERVATION_DAY_EXISTS);
-        bookReservationStatement = conn.prepareStatement(BOOK_RESERVATION,
-                bookReservationStatement.RETURN_GENERATED_KEYS);
-        checkUserReservationExists = conn.prepareStatement(CHECK_USER_RESERVATION_EXISTS);
-        payReservationStatement = conn.prepareStatement(PAY_RESERVATION);
-        markAsPaidStatement = conn.prepareStatement(MARK_AS_PAID);
-        getUserReservationsStatement = conn.prepareStatement(GET_USER_RESERVATIONS);
-        refundReservationStatement = conn.prepareStatement(REFUND_RESERVATION);
-        deleteReservationStatement = conn.prepareStatement(DELETE_RESERVATION);
-        updateBookedCapacityStatement = conn.prepareStatement(UPDATE_BOOKED_CAPACITY);
-        getBookedCapacityStatement = conn.prepareStatement(GET_BOOKED_CAPACITY);
-        removeBookedCapacityStatement = conn.prepareStatement(REMOVE_BOOKED_CAPACITY);
+        prepareShared(storage);
+    }
+
+    private static synchronized void prepareShared(Storage storage) throws SQLException {
+        if (flightIndex == null && (USE_FLIGHT_INDEX || !storage.searchesFlights())) {
+            try {
+                flightIndex = storage.loadFlightIndex();
+            } catch (IOException ex) {
+                throw new SQLException("Could not read the flights", ex);
+            }
+        }
+        if (flightIndex != null) {
+            storage.useFlightIndex(flightIndex);
+        }
+    }
+
+    /**
+     * Serves searches from an already loaded flight store, for example one opened from a
+     * {@link FlightSnapshot}, instead of loading the Flights table. Does nothing when the
+     * flight index is turned off.
+     */
+    public static synchronized void useFlightStore(FlightStore store) {
+        if (USE_FLIGHT_INDEX) {
+            flightIndex = new FlightIndex(store);
+        }
+    }
+
+    /**
+     * Drops the flight index, so the next session to prepare its statements loads it again
+     * from its own storage
+     */
+    static synchronized void forgetFlightIndex() {
+        flightIndex = null;
+    }
+
+    /**
+     * Sets the isolation level used by read-only transactions, on SQL Server only
+     */
+    public void setReadIsolation(ReadIsolation readIsolation) throws SQLException {
+        if (storage instanceof SqlServerStorage) {
+            ((SqlServerStorage) storage).setReadIsolation(readIsolation);
+        }
+    }
+
+    /**
+     * Switches this session between optimistic and serializable book, pay and cancel, on
+     * SQL Server only
+     */
+    public void setOptimistic(boolean optimistic) {
+        if (storage instanceof SqlServerStorage) {
+            ((SqlServerStorage) storage).setOptimistic(optimistic);
+        }
     }
 
-    public void beginTransaction() throws SQLException {
-        conn.setAutoCommit(false);
-        beginTransactionStatement.executeUpdate();
+    /**
+     * @return how many transaction attempts this session aborted and retried
+     */
+    public long getAborts() {
+        TransactionExecutor transactions = storage.getTransactionMetrics();
+        return transactions == null ? 0 : transactions.getRetries();
     }
 
-    public void commitTransaction() throws SQLException {
-        commitTransactionStatement.executeUpdate();
-        conn.setAutoCommit(true);
+    /**
+     * @return attempt and failure counts of this session's transactions, or null if its
+     * storage has none
+     */
+    public TransactionExecutor getTransactionMetrics() {
+        return storage.getTransactionMetrics();
     }
 
-    public void rollbackTransaction() throws SQLException {
-        rollbackTransactionStatement.executeUpdate();
-        conn.setAutoCommit(true);
+    /**
+     * @return the storage this session reads and writes
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return wait, utilization and size of the connection pool every SQL Server session
+     * shares
+     */
+    public static ConnectionPool getConnectionPool() {
+        return SqlServerStorage.getConnectionPool();
+    }
+
+    /**
+     * @return hash, queue and rejection counts of the password hasher every session shares
+     */
+    public static PasswordHasher getPasswordHasher() {
+        return passwordHasher;
     }
 
     /**
@@ -291,67 +247,130 @@ public class Query {
      * @param username user's username
      * @param password user's password
      * @return If someone has already logged in, then return "User already logged
-     * in\n" For all other errors, return "Login failed\n". Otherwise,
-     * return "Logged in as [username]\n".
+     * in\n". If the password could not be checked because the hasher is overloaded,
+     * return "Server busy, please try again\n". For all other errors, return "Login
+     * failed\n". Otherwise, return "Logged in as [username]\n".
      */
     public String transaction_login(String username, String password) {
-        // Check if user account exists
-        for (int i = 0; i < ATTEMPTS; i++) {
-            try {
-                beginTransaction();
-                if (openSession) {
-                    commitTransaction();
-                    return "User already logged in\n";
-                }
+        if (openSession) {
+            return "User already logged in\n";
+        }
+
+        // Convert the username to lowercase
+        String lcUsername = username.toLowerCase();
 
-                //StringBuffer sb = new StringBuffer();
-                // Convert the username to lowercase
-                String lcUsername = username.toLowerCase();
-                directResults.clear();
-                indirectResults.clear();
-                combinedResults.clear();
+        // Check the password on the hasher before the reservations are read, so a failed
+        // login reads nothing else
+        Storage.User user = storage.readPassword(lcUsername);
+        if (user == null) {
+            return "Login failed\n";
+        }
+        PasswordHasher.Verification verification =
+                passwordHasher.verify(password, user.salt, user.hash);
+        if (verification == null) {
+            return HASHER_BUSY;
+        } else if (!verification.matches) {
+            return "Login failed\n";
+        } else if (verification.rehash != null) {
+            storage.updatePassword(lcUsername, user.hash, verification.rehash,
+                    verification.rehashSalt);
+        }
 
-                checkUserExistsStatement.clearParameters();
-                checkUserExistsStatement.setString(1, lcUsername);
-                ResultSet existsResult = checkUserExistsStatement.executeQuery();
+        ReservationView view = new ReservationView(lcUsername);
+        if (readUser(lcUsername, view) == null) {
+            return "Login failed\n";
+        }
+        openSession(lcUsername, username, view);
+        return "Logged in as " + username + "\n";
+    }
 
-                if (!existsResult.isBeforeFirst()) {
-                    commitTransaction();
-                    return "Login failed\n";
-                }
+    /**
+     * Logs in the user a token from {@link #transaction_token} was issued to, without
+     * checking their password.
+     *
+     * @param token the session token
+     * @return If someone has already logged in, then return "User already logged in\n".
+     * If the token is unknown or expired, or for any other error, return "Resume
+     * failed\n". Otherwise, return "Logged in as [username]\n".
+     */
+    public String transaction_resume(String token) {
+        if (openSession) {
+            return "User already logged in\n";
+        }
+
+        SessionTokens.Session session = sessionTokens.resume(token);
+        if (session == null) {
+            return "Resume failed\n";
+        }
+        ReservationView view = new ReservationView(session.username);
+        if (readUser(session.username, view) == null) {
+            return "Resume failed\n";
+        }
+
+        openSession(session.username, session.displayName, view);
+        return "Logged in as " + session.displayName + "\n";
+    }
 
-                getUserStatement.clearParameters();
-                getUserStatement.setString(1, lcUsername);
-                ResultSet userResult = getUserStatement.executeQuery();
-                userResult.next();
-                byte[] queryHash = userResult.getBytes(2);
-                byte[] querySalt = userResult.getBytes(3);
-
-                byte[] userHash = hashPassword(password, querySalt);
-
-                // Check if password is correct
-                if (Arrays.equals(queryHash, userHash)) {
-                    // Password is correct, open user session
-                    openSession = true;
-                    openUser = lcUsername;
-                    commitTransaction();
-                    return "Logged in as " + username + "\n";
+    /**
+     * Issues a token the logged in user can resume this session with from another
+     * connection, until it expires.
+     *
+     * @return If no one is logged in, return "Cannot issue token, not logged in\n".
+     * Otherwise, return "Session token: [token]\n".
+     */
+    public String transaction_token() {
+        if (!openSession) {
+            return "Cannot issue token, not logged in\n";
+        }
+        return "Session token: " + sessionTokens.issue(openUser, openUserName) + "\n";
+    }
+
+    /**
+     * Reads a user, and loads their reservations into the view
+     *
+     * @return the user, or null if the user does not exist or could not be read
+     */
+    private Storage.User readUser(String lcUsername, ReservationView view) {
+        long generation = view.currentGeneration();
+        FlightStore store = flightIndex != null ? flightIndex.store() : null;
+        Storage.User user = storage.readUser(lcUsername, store == null);
+        if (user == null) {
+            return null;
+        }
+
+        List<ReservationView.Reservation> reservations =
+                new ArrayList<>(user.reservations.size());
+        StringBuilder flights = new StringBuilder();
+        for (Storage.Reservation r : user.reservations) {
+            flights.setLength(0);
+            for (int leg = 0; leg < r.fids.length; leg++) {
+                int row = store != null ? store.rowOf(r.fids[leg]) : -1;
+                if (row >= 0) {
+                    store.appendTo(row, flights);
+                } else if (r.flights != null) {
+                    r.flights[leg].appendTo(flights);
                 } else {
-                    commitTransaction();
-                    return "Login failed\n";
-                }
-            } catch (SQLException ex) {
-                if (debug) {
-                    printSQLException(ex);
-                }
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    printSQLException(ex2);
+                    // Not in the index, which skips canceled flights and may be an older
+                    // snapshot
+                    flights.append("ID: ").append(r.fids[leg]);
                 }
+                flights.append('\n');
             }
+            reservations.add(new ReservationView.Reservation(r.rid, r.price, r.paid,
+                    flights.toString()));
         }
-        return "Login failed\n";
+        view.load(generation, user.balance, reservations);
+        return user;
+    }
+
+    private void openSession(String lcUsername, String username, ReservationView view) {
+        directResults.clear();
+        indirectResults.clear();
+        combinedResults.clear();
+        openSession = true;
+        openUser = lcUsername;
+        openUserName = username;
+        reservationView = view;
     }
 
     /**
@@ -362,57 +381,25 @@ public class Query {
      * @param initAmount initial amount to deposit into the user's account, should
      *                   be >= 0 (failure otherwise).
      * @return either "Created user {@code username}\n" or "Failed to create user\n"
-     * if failed.
+     * if failed, or "Server busy, please try again\n" if the hasher is overloaded.
      */
     public String transaction_createCustomer(String username, String password, int initAmount) {
-        for (int i = 0; i < ATTEMPTS; i++) {
-            try {
-                beginTransaction();
-                if (username.length() > 20 || password.length() > 20 || initAmount < 0) {
-                    rollbackTransaction();
-                    continue;
-                }
-
-                // Convert the username to lowercase
-                String lcUsername = username.toLowerCase();
+        if (username.length() > 20 || password.length() > 20 || initAmount < 0) {
+            return "Failed to create user\n";
+        }
 
-                checkUserExistsStatement.clearParameters();
-                checkUserExistsStatement.setString(1, lcUsername);
-                ResultSet existsResult = checkUserExistsStatement.executeQuery();
-                if (existsResult.isBeforeFirst()) {
-                    rollbackTransaction();
-                    continue;
-                }
-				// Generate a random cryptographic salt
-				SecureRandom random = new SecureRandom();
-				byte[] salt = new byte[16];
-				random.nextBytes(salt);
-
-                byte[] hash = hashPassword(password, salt);
-
-                createUserStatement.clearParameters();
-                createUserStatement.setString(1, lcUsername);
-                createUserStatement.setBytes(2, hash);
-                createUserStatement.setBytes(3, salt);
-                createUserStatement.setInt(4, initAmount);
-                createUserStatement.execute();
-                commitTransaction();
-                return "Created user " + username + "\n";
-            } catch (SQLException ex) {
-                if (debug) {
-                    printSQLException(ex);
-                }
+        // Convert the username to lowercase
+        String lcUsername = username.toLowerCase();
 
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    if (debug) {
-                        printSQLException(ex2);
-                    }
-                }
-            }
+        // Hash on the hasher before the transaction, so no lock waits on it
+        byte[] salt = passwordHasher.newSalt();
+        byte[] hash = passwordHasher.hash(password, salt);
+        if (hash == null) {
+            return HASHER_BUSY;
+        } else if (!storage.createUser(lcUsername, hash, salt, initAmount)) {
+            return "Failed to create user\n";
         }
-        return "Failed to create user\n";
+        return "Created user " + username + "\n";
     }
 
     /**
@@ -449,225 +436,224 @@ public class Query {
     public String transaction_search(String originCity, String destinationCity,
                                      boolean directFlight, int dayOfMonth,
                                      int numberOfItineraries) {
-        // Search for flights based on given parameters
-        for (int j = 0; j < ATTEMPTS; j++) {
-            try {
+        StringBuilder sb = new StringBuilder();
+        try {
+            transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+                    numberOfItineraries, sb);
+        } catch (IOException ex) {
+            throw new AssertionError("StringBuilder does not throw", ex);
+        }
+        return sb.toString();
+    }
 
-                beginTransaction();
-                StringBuffer sb = new StringBuffer();
-
-                // Clear the previously stored search results
-                itineraryNum = 0;
-                directResults.clear();
-                indirectResults.clear();
-                combinedResults.clear();
-
-                getFlightStatement.clearParameters();
-                getFlightStatement.setInt(1, numberOfItineraries);
-                getFlightStatement.setString(2, originCity);
-                getFlightStatement.setString(3, destinationCity);
-                getFlightStatement.setInt(4, dayOfMonth);
-
-                // Query for direct flights first
-                ResultSet directResult = getFlightStatement.executeQuery();
-
-                while (directResult.next()) {
-                    Flight f = new Flight();
-                    // Retrieve all necessary data about the flight and store in flight object
-                    f.fid = directResult.getInt("fid");
-                    f.dayOfMonth = directResult.getInt("day_of_month");
-                    f.carrierId = directResult.getString("carrier_id");
-                    f.flightNum = directResult.getString("flight_num");
-                    f.originCity = directResult.getString("origin_city");
-                    f.destCity = directResult.getString("dest_city");
-                    f.time = directResult.getInt("actual_time");
-                    f.capacity = directResult.getInt("capacity");
-                    f.price = directResult.getInt("price");
-
-                    // Store flight and important data in itinerary object
-                    Itinerary direct = new Itinerary();
-                    direct.f1 = f;
-                    direct.totalTime = f.time;
-                    direct.dayOfMonth = f.dayOfMonth;
-                    direct.totalCost = f.price;
-                    direct.numFlights = 1;
-
-                    // Get the number of bookings for this flight
-                    getBookedCapacityStatement.clearParameters();
-                    getBookedCapacityStatement.setInt(1, f.fid);
-                    ResultSet capacityResult = getBookedCapacityStatement.executeQuery();
-
-                    int fCapacity = f.capacity;
-                    if (capacityResult.isBeforeFirst()) {
-                        capacityResult.next();
-                        fCapacity -= capacityResult.getInt("capacity");
-                    }
-
-                    if (fCapacity < 1) {
-                        direct.full = true;
-                    }
-
-                    // Add the itinerary to the direct flight search results
-                    directResults.add(direct);
-                    itineraryNum++;
-                }
+    /**
+     * Implements the search function, writing its output to {@code out} as it is
+     * rendered. A long result is never built into one string, so it is written with
+     * bounded memory.
+     *
+     * @throws IOException if {@code out} fails, after the search itself is done
+     * @see #transaction_search(String, String, boolean, int, int)
+     */
+    public void transaction_search(String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries, Appendable out) throws IOException {
+        // TOP (?) rejects a negative count, fail the same way without a round trip
+        if (numberOfItineraries < 0) {
+            out.append("Failed to search\n");
+            return;
+        }
 
-                // If the user enabled indirect flights and the max number of results hasn't been found,
-                // then search for more indirect flights
-                if (!directFlight && itineraryNum < numberOfItineraries) {
-                    getIntermediateFlightStatement.clearParameters();
-                    getIntermediateFlightStatement.setString(1, originCity);
-                    getIntermediateFlightStatement.setInt(2, dayOfMonth);
-                    getIntermediateFlightStatement.setInt(3,
-                            numberOfItineraries - (itineraryNum));
-                    getIntermediateFlightStatement.setString(4, destinationCity);
-                    getIntermediateFlightStatement.setInt(5, dayOfMonth);
-
-                    // Query for the indirect flight
-                    ResultSet intermediateResult = getIntermediateFlightStatement.executeQuery();
-
-                    while (intermediateResult.next()) {
-                        Flight f1 = new Flight();
-                        Flight f2 = new Flight();
-
-                        // Retrieve all necessary information about the first flight
-                        f1.fid = intermediateResult.getInt("s_fid");
-                        f1.dayOfMonth = intermediateResult.getInt("s_day_of_month");
-                        f1.carrierId = intermediateResult.getString("s_carrier_id");
-                        f1.flightNum = intermediateResult.getString("s_flight_num");
-                        f1.originCity = intermediateResult.getString("s_origin_city");
-                        f1.destCity = intermediateResult.getString("s_dest_city");
-                        f1.time = intermediateResult.getInt("s_actual_time");
-                        f1.capacity = intermediateResult.getInt("s_capacity");
-                        f1.price = intermediateResult.getInt("s_price");
-
-                        // Retrieve all necessary information about the second flight
-                        f2.fid = intermediateResult.getInt("f_fid");
-                        f2.dayOfMonth = intermediateResult.getInt("f_day_of_month");
-                        f2.carrierId = intermediateResult.getString("f_carrier_id");
-                        f2.flightNum = intermediateResult.getString("f_flight_num");
-                        f2.originCity = intermediateResult.getString("f_origin_city");
-                        f2.destCity = intermediateResult.getString("f_dest_city");
-                        f2.time = intermediateResult.getInt("f_actual_time");
-                        f2.capacity = intermediateResult.getInt("f_capacity");
-                        f2.price = intermediateResult.getInt("f_price");
-
-                        // Store flights and important data in itinerary object
-                        Itinerary indirect = new Itinerary();
-                        indirect.f1 = f1;
-                        indirect.f2 = f2;
-                        indirect.totalTime = f1.time + f2.time;
-                        indirect.dayOfMonth = f1.dayOfMonth;
-                        indirect.totalCost = f1.price + f2.price;
-                        indirect.numFlights = 2;
-
-                        // Get the number of bookings for flight1
-                        getBookedCapacityStatement.clearParameters();
-                        getBookedCapacityStatement.setInt(1, f1.fid);
-                        ResultSet capacityResult1 = getBookedCapacityStatement.executeQuery();
-
-
-                        int f1Capacity = f1.capacity;
-                        if (capacityResult1.isBeforeFirst()) {
-                            capacityResult1.next();
-                            f1Capacity -= capacityResult1.getInt("capacity");
-                        }
-
-                        // Get the number of bookings for flight2
-                        getBookedCapacityStatement.clearParameters();
-                        getBookedCapacityStatement.setInt(1, f2.fid);
-                        ResultSet capacityResult2 = getBookedCapacityStatement.executeQuery();
-
-                        int f2Capacity = f2.capacity;
-                        if (capacityResult2.isBeforeFirst()) {
-                            capacityResult2.next();
-                            f2Capacity -= capacityResult2.getInt("capacity");
-                        }
-
-                        if (f1Capacity < 1 || f2Capacity < 1) {
-                            indirect.full = true;
-                        }
-
-                        // Add itinerary to indirect search results
-                        indirectResults.add(indirect);
-                        itineraryNum++;
-                    }
-                }
+        String cacheKey = SearchCache.key(originCity, destinationCity, directFlight, dayOfMonth,
+                numberOfItineraries);
 
-                // Iterate through both the direct and indirect search results, adding to a combined
-                // table ordered by flight time and flight Id
-                int id = 0;
-                while (directResults.size() != 0 && indirectResults.size() != 0) {
-                    if (directResults.get(0).totalTime < indirectResults.get(0).totalTime) {
-                        combinedResults.put(id, directResults.remove(0));
-                    } else if (directResults.get(0).totalTime > indirectResults.get(0).totalTime) {
-                        combinedResults.put(id, indirectResults.remove(0));
-                    } else {
-                        if (directResults.get(0).f1.fid < indirectResults.get(0).f1.fid) {
-                            combinedResults.put(id, directResults.remove(0));
-                        } else {
-                            combinedResults.put(id, indirectResults.remove(0));
-                        }
-                    }
-                    id++;
-                }
+        // Clear the previously stored search results
+        itineraryNum = 0;
+        directResults.clear();
+        indirectResults.clear();
+        combinedResults.clear();
+        bookedSeats.clear();
+        cachedResults = false;
 
-                // Add any remaining flights to the combined table
-                if (directResults.size() != 0) {
-                    while (directResults.size() != 0) {
-                        combinedResults.put(id, directResults.remove(0));
-                        id++;
-                    }
-                } else if (indirectResults.size() != 0) {
-                    while (indirectResults.size() != 0) {
-                        combinedResults.put(id, indirectResults.remove(0));
-                        id++;
-                    }
+        String output;
+        try {
+            // Repeated searches are answered from the shared cache, which only re-reads
+            // the booked counts of flights that were booked or cancelled since
+            long generation = searchCache.generation();
+            SearchCache.Result cached = searchCache.get(cacheKey, storage::bookedCounts);
+            if (cached != null) {
+                combinedResults.addAll(cached.itineraries);
+                itineraryNum = combinedResults.size();
+                cachedResults = true;
+                output = cached.output;
+            } else {
+                if (flightIndex != null) {
+                    searchFlightIndex(originCity, destinationCity, directFlight, dayOfMonth,
+                            numberOfItineraries);
+                } else {
+                    searchFlights(originCity, destinationCity, directFlight, dayOfMonth,
+                            numberOfItineraries);
                 }
 
-                // Generate the itinerary string for each itinerary in the combined table
-                int itineraryId = 0;
-                for (Map.Entry<Integer, Itinerary> entry : combinedResults.entrySet()) {
-                    String itineraryString;
-                    Itinerary i = entry.getValue();
-                    itineraryString = "Itinerary " + itineraryId + ": " + i.numFlights + " flight(s), " + i.totalTime +
-                            " minutes\n" + i.f1.toString() + "\n";
-
-                    if (i.f2 != null) {
-                        itineraryString += i.f2.toString() + "\n";
-                    }
-
-                    entry.getValue().itinerary = itineraryString;
-                    itineraryId++;
-                    sb.append(itineraryString);
-                }
-                commitTransaction();
-                // If no search results were found, clear the tables and let the user know
-                if (sb.toString().length() == 0) {
+                // Merge the direct and indirect search results, both already sorted, into
+                // one list ordered by flight time and flight Id
+                mergeResults(directResults, indirectResults, combinedResults);
+
+                // If no search results were found, clear the tables and let the user know.
+                // Short outputs are rendered once and kept with the cached result
+                if (combinedResults.isEmpty()) {
                     directResults.clear();
                     indirectResults.clear();
-                    combinedResults.clear();
                     itineraryNum = 0;
-                    return "No flights match your selection\n";
+                    output = "No flights match your selection\n";
+                } else if (combinedResults.size() <= MAX_CACHED_OUTPUT_ITINERARIES) {
+                    StringBuilder sb = new StringBuilder();
+                    renderResults(combinedResults, sb);
+                    output = sb.toString();
                 } else {
-                    return sb.toString();
-                }
-            } catch (SQLException ex) {
-                if (debug) {
-                    ex.printStackTrace();
-                    printSQLException(ex);
+                    output = null;
                 }
+                searchCache.put(cacheKey, combinedResults, output, bookedSeats, generation);
+            }
+        } catch (SQLException ex) {
+            directResults.clear();
+            indirectResults.clear();
+            combinedResults.clear();
+            itineraryNum = 0;
+            output = "Failed to search\n";
+        }
 
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    if (debug) {
-                        printSQLException(ex2);
-                    }
-                }
+        if (output != null) {
+            out.append(output);
+        } else {
+            renderResults(combinedResults, out);
+        }
+    }
+
+    /**
+     * Merges the sorted direct and indirect results into {@code combined} in a single pass.
+     * Itineraries are ordered by total flight time; on a tie the direct flight goes first
+     * only if its fid is smaller.
+     */
+    static void mergeResults(List<Itinerary> direct, List<Itinerary> indirect,
+                             List<Itinerary> combined) {
+        int d = 0;
+        int n = 0;
+        int dSize = direct.size();
+        int nSize = indirect.size();
+        if (combined instanceof ArrayList) {
+            ((ArrayList<Itinerary>) combined).ensureCapacity(dSize + nSize);
+        }
+
+        while (d < dSize && n < nSize) {
+            Itinerary a = direct.get(d);
+            Itinerary b = indirect.get(n);
+            if (a.totalTime < b.totalTime || (a.totalTime == b.totalTime && a.fid(0) < b.fid(0))) {
+                combined.add(a);
+                d++;
+            } else {
+                combined.add(b);
+                n++;
+            }
+        }
+        while (d < dSize) {
+            combined.add(direct.get(d++));
+        }
+        while (n < nSize) {
+            combined.add(indirect.get(n++));
+        }
+    }
+
+    /**
+     * Renders every itinerary into {@code out}
+     */
+    static void renderResults(List<Itinerary> combined, StringBuilder out) {
+        // Every flight line is a little under 160 characters
+        out.ensureCapacity(out.length() + combined.size() * 200);
+        for (int id = 0; id < combined.size(); id++) {
+            renderItinerary(id, combined.get(id), out);
+        }
+    }
+
+    /**
+     * Renders every itinerary into {@code out}, one itinerary at a time
+     */
+    static void renderResults(List<Itinerary> combined, Appendable out) throws IOException {
+        StringBuilder sb = new StringBuilder(1024);
+        for (int id = 0; id < combined.size(); id++) {
+            sb.setLength(0);
+            renderItinerary(id, combined.get(id), sb);
+            out.append(sb);
+        }
+    }
+
+    private static void renderItinerary(int id, Itinerary i, StringBuilder out) {
+        out.append("Itinerary ").append(id).append(": ").append(i.numFlights)
+                .append(" flight(s), ").append(i.totalTime).append(" minutes\n");
+        for (int leg = 0; leg < i.numFlights; leg++) {
+            i.appendLeg(leg, out).append('\n');
+        }
+    }
+
+    /**
+     * Fills the direct and indirect search results from the in-memory flight index. Produces
+     * the same rows, in the same order, as a search of the Flights table.
+     */
+    private void searchFlightIndex(String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries) throws SQLException {
+        FlightStore store = flightIndex.store();
+        for (int row : flightIndex.direct(originCity, destinationCity, dayOfMonth,
+                numberOfItineraries)) {
+            directResults.add(new Itinerary(store, row));
+            itineraryNum++;
+        }
+
+        // Connections of up to MAX_LEGS legs fill whatever the direct flights left over
+        if (!directFlight && itineraryNum < numberOfItineraries) {
+            for (int[] rows : flightIndex.connections(originCity, destinationCity, dayOfMonth,
+                    MAX_LEGS, numberOfItineraries - itineraryNum)) {
+                indirectResults.add(new Itinerary(store, rows));
+                itineraryNum++;
+            }
+        }
+
+        // Resolve the booked seats of every leg on the page at once
+        Set<Integer> fids = new HashSet<>();
+        for (Itinerary i : directResults) {
+            fids.add(i.fid(0));
+        }
+        for (Itinerary i : indirectResults) {
+            for (int leg = 0; leg < i.numFlights; leg++) {
+                fids.add(i.fid(leg));
             }
         }
-        return "Failed to search\n";
+        Map<Integer, Integer> booked = storage.bookedCounts(fids);
+        bookedSeats.putAll(booked);
+
+        for (Itinerary i : directResults) {
+            i.full = i.isFull(booked);
+        }
+        for (Itinerary i : indirectResults) {
+            i.full = i.isFull(booked);
+        }
+    }
+
+    /**
+     * Fills the direct and indirect search results from a storage that searches the
+     * flights itself
+     */
+    private void searchFlights(String originCity, String destinationCity,
+                               boolean directFlight, int dayOfMonth,
+                               int numberOfItineraries) throws SQLException {
+        Storage.FlightSearch found = storage.searchFlights(originCity, destinationCity,
+                directFlight, dayOfMonth, numberOfItineraries);
+        if (found == null) {
+            throw new SQLException("Could not search the flights");
+        }
+        directResults.addAll(found.direct);
+        indirectResults.addAll(found.indirect);
+        bookedSeats.putAll(found.booked);
+        itineraryNum = directResults.size() + indirectResults.size();
     }
 
     /**
@@ -688,116 +674,36 @@ public class Query {
      * successful reservation is made by any user in the system.
      */
     public String transaction_book(int itineraryId) {
-        // Check if a reservation has already been made on the same day
-        for (int j = 0; j < ATTEMPTS; j++) {
-            try {
-                beginTransaction();
-                // Check if the user is logged in
-                if (!openSession) {
-                    commitTransaction();
-                    return "Cannot book reservations, not logged in\n";
-                }
-
-                // Check if the iteneraryId is valid
-                if (!(itineraryId >= 0 && itineraryId <= itineraryNum)) {
-                    commitTransaction();
-                    return "No such itinerary " + itineraryId + "\n";
-                }
-
-                // Check if there are any search results
-                if (combinedResults == null || combinedResults.keySet().size() == 0) {
-                    return "No such itinerary " + itineraryId + "\n";
-                }
-                Itinerary i = combinedResults.get(itineraryId);
-                if (i == null) {
-                    return "No such itinerary " + itineraryId + "\n";
-                }
-                int dayOfMonth = i.dayOfMonth;
-
-                if (combinedResults.get(itineraryId).full) {
-                    return "Booking failed\n";
-                }
-
-                checkReservationDayExistsStatement.clearParameters();
-                checkReservationDayExistsStatement.setString(1, openUser);
-                checkReservationDayExistsStatement.setInt(2, dayOfMonth);
-                ResultSet existsResult = checkReservationDayExistsStatement.executeQuery();
-                if (existsResult.isBeforeFirst()) {
-                    commitTransaction();
-                    return "You cannot book two flights in the same day\n";
-                }
-
-                bookReservationStatement.clearParameters();
-                bookReservationStatement.setString(1, openUser);
-                bookReservationStatement.setInt(2, 0);
-                bookReservationStatement.setString(3, combinedResults.get(itineraryId).itinerary);
-                bookReservationStatement.setInt(4, dayOfMonth);
-                bookReservationStatement.setInt(5, combinedResults.get(itineraryId).totalCost);
-                bookReservationStatement.setInt(6, i.f1.fid);
-                if (i.numFlights == 2) {
-                    bookReservationStatement.setInt(7, i.f2.fid);
-                } else {
-                    bookReservationStatement.setInt(7, -1);
-                }
-                int bookingResult = bookReservationStatement.executeUpdate();
+        // Check if the user is logged in
+        if (!openSession) {
+            return "Cannot book reservations, not logged in\n";
+        }
 
-                // If the booking was successful, retrieve the unique reservation ID
-                if (bookingResult == 0) {
-                    rollbackTransaction();
-                    return "Booking failed\n";
-                } else {
-                    try (ResultSet generatedKeys = bookReservationStatement.getGeneratedKeys()) {
-                        if (generatedKeys.next()) {
-                            // Update the capacity of the flight
-                            updateBookedCapacityStatement.clearParameters();
-                            updateBookedCapacityStatement.setInt(1, i.f1.fid);
-                            updateBookedCapacityStatement.setInt(2, 1);
-                            updateBookedCapacityStatement.setInt(3, i.f1.fid);
-                            updateBookedCapacityStatement.setInt(4, i.f1.fid);
-                            int updateResult = updateBookedCapacityStatement.executeUpdate();
-                            if (updateResult == 0) {
-                                rollbackTransaction();
-                                return "Booking failed\n";
-                            }
-
-                            // If indirect flight, update second flight capacity as well
-                            if (i.numFlights == 2) {
-                                updateBookedCapacityStatement.clearParameters();
-                                updateBookedCapacityStatement.setInt(1, i.f2.fid);
-                                updateBookedCapacityStatement.setInt(2, 1);
-                                updateBookedCapacityStatement.setInt(3, i.f2.fid);
-                                updateBookedCapacityStatement.setInt(4, i.f2.fid);
-                                updateResult = updateBookedCapacityStatement.executeUpdate();
-                                if (updateResult == 0) {
-                                    rollbackTransaction();
-                                    return "Booking failed\n";
-                                }
-                            }
-
-                            commitTransaction();
-                            return "Booked flight(s), reservation ID: " + generatedKeys.getInt(1) +
-                                    "\n";
-                        } else {
-                            rollbackTransaction();
-                            return "Booking failed\n";
-                        }
-                    }
-                }
-            } catch (SQLException ex) {
-                if (debug) {
-                    printSQLException(ex);
-                }
+        // Check if the itineraryId is one of the last search's results
+        Itinerary i = itineraryId >= 0 && itineraryId < combinedResults.size() ?
+                combinedResults.get(itineraryId) : null;
+        if (i == null) {
+            return "No such itinerary " + itineraryId + "\n";
+        }
+        // A cached result may be full only because another process has since cancelled,
+        // so storage decides whether it still has room
+        if (i.full && !cachedResults) {
+            return "Booking failed\n";
+        }
 
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    if (debug) {
-                        printSQLException(ex2);
-                    }
-                }
+        long change = reservationView.beginChange();
+        try {
+            int reservationId = storage.book(openUser, i);
+            if (reservationId == Storage.SAME_DAY) {
+                return "You cannot book two flights in the same day\n";
+            } else if (reservationId < 0) {
+                return "Booking failed\n";
             }
+            booked(reservationId, i);
+            return "Booked flight(s), reservation ID: " + reservationId + "\n";
+        } finally {
+            reservationView.endChange(change);
         }
-        return "Booking failed\n";
     }
 
     /**
@@ -817,94 +723,93 @@ public class Query {
      * user's account.
      */
     public String transaction_pay(int reservationId) {
+        // Check if a user is logged in
+        if (!openSession) {
+            return "Cannot pay, not logged in\n";
+        }
 
+        // Refuse what the user's up to date reservations already rule out
+        if (reservationView.isFresh()) {
+            ReservationView.Reservation r = reservationView.get(reservationId);
+            if (r == null || r.paid) {
+                return "Cannot find unpaid reservation " + reservationId + " under " +
+                        "user: " +
+                        openUser + "\n";
+            } else if (r.price > reservationView.balance()) {
+                return "User has only " + reservationView.balance() + " in account but " +
+                        "itinerary costs " + r.price + "\n";
+            }
+        }
 
-        for (int i = 0; i < ATTEMPTS; i++) {
-            try {
-                beginTransaction();
-
-                // Check if a user is logged in
-                if (!openSession) {
-                    return "Cannot pay, not logged in\n";
-                }
-                // Check if reservationId exists for this user
-                checkUserReservationExists.clearParameters();
-                checkUserReservationExists.setInt(1, reservationId);
-                checkUserReservationExists.setString(2, openUser);
-                ResultSet existsResult = checkUserReservationExists.executeQuery();
-
-                if (!existsResult.isBeforeFirst()) {
-                    commitTransaction();
+        long change = reservationView.beginChange();
+        try {
+            Storage.Payment payment = storage.pay(openUser, reservationId);
+            if (payment == null) {
+                return "Failed to pay for reservation " + reservationId + "\n";
+            }
+            switch (payment.status) {
+                case PAID:
+                    reservationView.markPaid(reservationId, payment.balance);
+                    return "Paid reservation: " + reservationId + " remaining balance: " +
+                            payment.balance + "\n";
+                case INSUFFICIENT:
+                    return "User has only " + payment.balance + " in account but itinerary " +
+                            "costs " + payment.cost + "\n";
+                default:
                     return "Cannot find unpaid reservation " + reservationId + " under " +
                             "user: " +
                             openUser + "\n";
-                }
-                existsResult.next();
+            }
+        } finally {
+            reservationView.endChange(change);
+        }
+    }
 
-                // Check if user has already paid
-                int paid = existsResult.getInt("paid");
-                if (paid == 1) {
-                    commitTransaction();
-                    return "Cannot find unpaid reservation " + reservationId + " under " +
-                            "user: " +
-                            openUser + "\n";
-                }
-                // Get the price of the itinerary
-                int price = existsResult.getInt("price");
-
-                // Get the user's balance and check if they have enough funds
-                getUserStatement.clearParameters();
-                getUserStatement.setString(1, openUser);
-                ResultSet userInfo = getUserStatement.executeQuery();
-                userInfo.next();
-                int balance = userInfo.getInt(4);
-                if (price > balance) {
-                    commitTransaction();
-                    return "User has only " + balance + " in account but itinerary costs " + price + "\n";
-                }
-                // Pay for the reservation
-                payReservationStatement.clearParameters();
-                payReservationStatement.setInt(1, price);
-                payReservationStatement.setString(2, openUser);
-                ResultSet payResult = payReservationStatement.executeQuery();
-
-                if (payResult.isBeforeFirst()) {
-                    // Get the remaining balance
-                    payResult.next();
-                    int updatedBalance = payResult.getInt("balance");
-
-                    // Mark the reservation as paid for
-                    markAsPaidStatement.clearParameters();
-                    markAsPaidStatement.setString(1, openUser);
-                    markAsPaidStatement.setInt(2, reservationId);
-                    if (markAsPaidStatement.executeUpdate() == 0) {
-                        rollbackTransaction();
-                        return "Failed to pay for reservation " + reservationId + "\n";
-                    }
-
-                    commitTransaction();
-                    return "Paid reservation: " + reservationId + " remaining balance: " + updatedBalance +
-                            "\n";
-                } else {
-                    rollbackTransaction();
-                    return "Failed to pay for reservation " + reservationId + "\n";
-                }
-            } catch (SQLException ex) {
-                if (debug) {
-                    printSQLException(ex);
-                }
+    /**
+     * Pays for every unpaid reservation of the logged in user in one transaction. Either
+     * all of them are paid or, if the balance does not cover their total, none.
+     *
+     * @return If no user has logged in, then return "Cannot pay, not logged in\n". If the
+     * user has no unpaid reservations, return "No unpaid reservations found\n". If the
+     * user does not have enough money in their account, return "User has only [balance]
+     * in account but reservations cost [total]\n". For all other errors, return "Failed to
+     * pay for reservations\n".
+     * <p>
+     * If successful, return "Paid [count] reservation(s) remaining balance: [balance]\n".
+     */
+    public String transaction_payAll() {
+        if (!openSession) {
+            return "Cannot pay, not logged in\n";
+        }
 
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    if (debug) {
-                        printSQLException(ex2);
-                    }
-                }
-            }
+        if (reservationView.isFresh() && reservationView.unpaidCount() == 0) {
+            return "No unpaid reservations found\n";
+        } else if (reservationView.isFresh() &&
+                reservationView.unpaidTotal() > reservationView.balance()) {
+            return "User has only " + reservationView.balance() + " in account but " +
+                    "reservations cost " + reservationView.unpaidTotal() + "\n";
         }
 
-        return "Failed to pay for reservation " + reservationId + "\n";
+        long change = reservationView.beginChange();
+        try {
+            Storage.Payment payment = storage.payAll(openUser);
+            if (payment == null) {
+                return "Failed to pay for reservations\n";
+            }
+            switch (payment.status) {
+                case PAID:
+                    reservationView.markAllPaid(payment.balance);
+                    return "Paid " + payment.count + " reservation(s) remaining balance: " +
+                            payment.balance + "\n";
+                case INSUFFICIENT:
+                    return "User has only " + payment.balance + " in account but " +
+                            "reservations cost " + payment.cost + "\n";
+                default:
+                    return "No unpaid reservations found\n";
+            }
+        } finally {
+            reservationView.endChange(change);
+        }
     }
 
     /**
@@ -927,55 +832,53 @@ public class Query {
      * @see Flight#toString()
      */
     public String transaction_reservations() {
+        String failed = loadReservations();
+        return failed != null ? failed : reservationView.render();
+    }
 
-        for (int i = 0; i < ATTEMPTS; i++) {
-            try {
-                beginTransaction();
-
-                if (!openSession) {
-                    return "Cannot view reservations, not logged in\n";
-                }
-
-                StringBuffer sb = new StringBuffer();
-
-                getUserReservationsStatement.clearParameters();
-                getUserReservationsStatement.setString(1, openUser);
-                ResultSet userReservations = getUserReservationsStatement.executeQuery();
-
-                if (!userReservations.isBeforeFirst()) {
-                    commitTransaction();
-                    return "No reservations found\n";
-                }
-
-                while (userReservations.next()) {
-                    int reservationId = userReservations.getInt("rid");
-                    int paid = userReservations.getInt("paid");
-                    String paidString = (paid > 0) ? "true" : "false";
-                    String[] flightInfo = userReservations.getString("info").
-                            split("\\r?\\n");
+    /**
+     * Implements the reservations function, writing its output to {@code out} one
+     * reservation at a time
+     *
+     * @throws IOException if {@code out} fails
+     * @see #transaction_reservations()
+     */
+    public void transaction_reservations(Appendable out) throws IOException {
+        String failed = loadReservations();
+        if (failed != null) {
+            out.append(failed);
+        } else {
+            reservationView.render(out);
+        }
+    }
 
-                    String result = "Reservation " + reservationId + " paid: " + paidString + ":\n" +
-                            flightInfo[1] + "\n";
-                    sb.append(result);
-                }
-                commitTransaction();
-                return sb.toString();
-            } catch (SQLException ex) {
-                if (debug) {
-                    printSQLException(ex);
-                }
+    /**
+     * Brings the logged in user's reservation view up to date
+     *
+     * @return null, or the response if there is nothing to list
+     */
+    private String loadReservations() {
+        if (!openSession) {
+            return "Cannot view reservations, not logged in\n";
+        }
 
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    if (debug) {
-                        printSQLException(ex2);
-                    }
-                }
-            }
+        // Unchanged since this session last read or wrote them
+        if (!reservationView.isFresh() && readUser(openUser, reservationView) == null) {
+            return "Failed to retrieve reservations\n";
         }
+        return null;
+    }
 
-        return "Failed to retrieve reservations\n";
+    /**
+     * Returns a booked itinerary as a reservation of the logged in user's view
+     */
+    private static ReservationView.Reservation newReservation(int reservationId, Itinerary i) {
+        StringBuilder flights = new StringBuilder(i.numFlights * 160);
+        for (int leg = 0; leg < i.numFlights; leg++) {
+            i.appendLeg(leg, flights).append('\n');
+        }
+        return new ReservationView.Reservation(reservationId, i.totalCost, false,
+                flights.toString());
     }
 
     /**
@@ -992,140 +895,41 @@ public class Query {
      * reused by the system.
      */
     public String transaction_cancel(int reservationId) {
-        for (int i = 0; i < ATTEMPTS; i++) {
-            try {
-                beginTransaction();
-                // Check if a user is logged in
-                if (!openSession) {
-                    return "Cannot cancel reservations, not logged in\n";
-                }
-
-                // Check if the reservation exists
-                checkUserReservationExists.clearParameters();
-                checkUserReservationExists.setInt(1, reservationId);
-                checkUserReservationExists.setString(2, openUser);
-                ResultSet userReservation = checkUserReservationExists.executeQuery();
-
-                if (!userReservation.isBeforeFirst()) {
-                    commitTransaction();
-                    return "Failed to cancel reservation " + reservationId + "\n";
-                }
-
-                // Check if the reservation has been paid for and retrieve fid's
-                userReservation.next();
-                int paid = userReservation.getInt("paid");
-                int fid1 = userReservation.getInt("fid1");
-                int fid2 = userReservation.getInt("fid2");
-                if (paid == 1) {
-                    // Refund the user for the price of the reservation
-                    int price = userReservation.getInt("price");
-
-                    refundReservationStatement.clearParameters();
-                    refundReservationStatement.setInt(1, price);
-                    refundReservationStatement.setString(2, openUser);
-                    if (refundReservationStatement.executeUpdate() == 0) {
-                        rollbackTransaction();
-                        return "Failed to cancel reservation " + reservationId + "\n";
-                    }
-                }
-
-                // Delete the reservation
-                deleteReservationStatement.clearParameters();
-                deleteReservationStatement.setInt(1, reservationId);
-                deleteReservationStatement.setString(2, openUser);
-                if (deleteReservationStatement.executeUpdate() == 0) {
-                    rollbackTransaction();
-                    return "Failed to cancel reservation " + reservationId + "\n";
-                }
-
-                // Update the booked capacities
-                updateBookedCapacityStatement.clearParameters();
-                updateBookedCapacityStatement.setInt(1, fid1);
-                updateBookedCapacityStatement.setInt(2, -1);
-                updateBookedCapacityStatement.setInt(3, fid1);
-                updateBookedCapacityStatement.setInt(4, fid1);
-                updateBookedCapacityStatement.executeUpdate();
-
-                getBookedCapacityStatement.clearParameters();
-                getBookedCapacityStatement.setInt(1, fid1);
-                ResultSet result = getBookedCapacityStatement.executeQuery();
-
-                result.next();
-                if (result.getInt("capacity") == 0) {
-                    removeBookedCapacityStatement.clearParameters();
-                    removeBookedCapacityStatement.setInt(1, fid1);
-                    removeBookedCapacityStatement.executeUpdate();
-                }
-
-
-                if (fid2 != -1) {
-                    updateBookedCapacityStatement.clearParameters();
-                    updateBookedCapacityStatement.setInt(1, fid2);
-                    updateBookedCapacityStatement.setInt(2, -1);
-                    updateBookedCapacityStatement.setInt(3, fid2);
-                    updateBookedCapacityStatement.setInt(4, fid2);
-                    updateBookedCapacityStatement.executeUpdate();
-
-                    getBookedCapacityStatement.clearParameters();
-                    getBookedCapacityStatement.setInt(1, fid2);
-                    result = getBookedCapacityStatement.executeQuery();
-                    result.next();
-
-                    if (result.getInt("capacity") == 0) {
-                        removeBookedCapacityStatement.clearParameters();
-                        removeBookedCapacityStatement.setInt(1, fid2);
-                        removeBookedCapacityStatement.executeUpdate();
-                    }
-                }
+        // Check if a user is logged in
+        if (!openSession) {
+            return "Cannot cancel reservations, not logged in\n";
+        }
 
-                commitTransaction();
-                return "Canceled reservation " + reservationId + "\n";
-            } catch (SQLException ex) {
-                if (debug) {
-                    printSQLException(ex);
-                }
+        String failed = "Failed to cancel reservation " + reservationId + "\n";
+        if (reservationView.isFresh() && reservationView.get(reservationId) == null) {
+            return failed;
+        }
 
-                try {
-                    rollbackTransaction();
-                } catch (SQLException ex2) {
-                    if (debug) {
-                        printSQLException(ex2);
-                    }
-                }
+        long change = reservationView.beginChange();
+        try {
+            List<Integer> fids = storage.cancel(openUser, reservationId);
+            if (fids == null || fids.isEmpty()) {
+                return failed;
             }
+            reservationView.remove(reservationId);
+            for (int fid : fids) {
+                searchCache.invalidateFlight(fid);
+            }
+            return "Canceled reservation " + reservationId + "\n";
+        } finally {
+            reservationView.endChange(change);
         }
-
-        return "Failed to cancel reservation " + reservationId + "\n";
     }
 
     /**
-     * Example utility function that uses prepared statements
+     * Adds a committed booking to the user's reservation view and refreshes the cached
+     * seat counts of its flights
      */
-    private int checkFlightCapacity(int fid) throws SQLException {
-        checkFlightCapacityStatement.clearParameters();
-        checkFlightCapacityStatement.setInt(1, fid);
-        ResultSet results = checkFlightCapacityStatement.executeQuery();
-        results.next();
-        int capacity = results.getInt("capacity");
-
-        return capacity;
-    }
-
-    private byte[] hashPassword(String password, byte[] salt) {
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
-
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-            throw new IllegalStateException();
+    private void booked(int reservationId, Itinerary i) {
+        reservationView.add(newReservation(reservationId, i));
+        for (int leg = 0; leg < i.numFlights; leg++) {
+            searchCache.invalidateFlight(i.fid(leg));
         }
-
-        return hash;
     }
 
     /**
@@ -1154,10 +958,28 @@ public class Query {
         }
     }
 
+    /**
+     * Isolation levels available to read-only transactions
+     */
+    public enum ReadIsolation {
+        // Same as every other transaction
+        SERIALIZABLE("SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;"),
+        // Row versioned on Azure SQL, where READ_COMMITTED_SNAPSHOT is on by default
+        READ_COMMITTED("SET TRANSACTION ISOLATION LEVEL READ COMMITTED; BEGIN TRANSACTION;"),
+        // Needs ALLOW_SNAPSHOT_ISOLATION on the database
+        SNAPSHOT("SET TRANSACTION ISOLATION LEVEL SNAPSHOT; BEGIN TRANSACTION;");
+
+        final String beginSql;
+
+        ReadIsolation(String beginSql) {
+            this.beginSql = beginSql;
+        }
+    }
+
     /**
      * A class to store flight information.
      */
-    class Flight {
+    static class Flight {
         public int fid;
         public int dayOfMonth;
         public String carrierId;
@@ -1170,20 +992,125 @@ public class Query {
 
         @Override
         public String toString() {
-            return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " +
-                    flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " +
-                    time + " Capacity: " + capacity + " Price: " + price;
+            return appendTo(new StringBuilder(160)).toString();
+        }
+
+        /**
+         * Appends this flight in the {@link #toString()} format
+         */
+        StringBuilder appendTo(StringBuilder sb) {
+            return appendTo(sb, fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time,
+                    capacity, price);
+        }
+
+        /**
+         * Appends a flight given by its fields in the {@link #toString()} format
+         */
+        static StringBuilder appendTo(StringBuilder sb, int fid, int dayOfMonth, String carrierId,
+                                      String flightNum, String originCity, String destCity,
+                                      int time, int capacity, int price) {
+            return sb.append("ID: ").append(fid).append(" Day: ").append(dayOfMonth)
+                    .append(" Carrier: ").append(carrierId).append(" Number: ").append(flightNum)
+                    .append(" Origin: ").append(originCity).append(" Dest: ").append(destCity)
+                    .append(" Duration: ").append(time).append(" Capacity: ").append(capacity)
+                    .append(" Price: ").append(price);
         }
     }
 
-    class Itinerary {
-        Flight f1;
-        Flight f2;
+    /**
+     * A class to store an itinerary of one or more flights, in the order they are flown.
+     * Itineraries served from the flight index refer to rows of the shared
+     * {@link FlightStore} and only build {@link Flight} objects when asked for one.
+     */
+    static class Itinerary {
+        // Legs as rows of the flight store, or null when they were read from the database
+        private final FlightStore store;
+        private final int[] rows;
+        private Flight[] flights;
         int totalTime;
         int totalCost;
         int numFlights;
         int dayOfMonth;
-        String itinerary;
         boolean full;
+
+        Itinerary(Flight... flights) {
+            this.store = null;
+            this.rows = null;
+            this.flights = flights;
+            this.numFlights = flights.length;
+            this.dayOfMonth = flights[0].dayOfMonth;
+            for (Flight f : flights) {
+                totalTime += f.time;
+                totalCost += f.price;
+            }
+        }
+
+        Itinerary(FlightStore store, int... rows) {
+            this.store = store;
+            this.rows = rows;
+            this.numFlights = rows.length;
+            this.dayOfMonth = store.day[rows[0]];
+            for (int row : rows) {
+                totalTime += store.time[row];
+                totalCost += store.price[row];
+            }
+        }
+
+        /**
+         * @return the fid of a leg
+         */
+        int fid(int leg) {
+            return rows != null ? store.fid[rows[leg]] : flights[leg].fid;
+        }
+
+        /**
+         * @return the seat capacity of a leg
+         */
+        int capacity(int leg) {
+            return rows != null ? store.capacity[rows[leg]] : flights[leg].capacity;
+        }
+
+        /**
+         * Returns a leg, building it from the flight store on first use
+         */
+        Flight flight(int leg) {
+            if (flights == null) {
+                flights = new Flight[numFlights];
+            }
+            if (flights[leg] == null) {
+                flights[leg] = store.flight(rows[leg]);
+            }
+            return flights[leg];
+        }
+
+        /**
+         * Appends a leg in the {@code Flight.toString()} format
+         */
+        StringBuilder appendLeg(int leg, StringBuilder sb) {
+            return rows != null ? store.appendTo(rows[leg], sb) : flights[leg].appendTo(sb);
+        }
+
+        /**
+         * Returns whether any leg is already booked to capacity.
+         *
+         * @param booked booked seat counts by fid, missing means none
+         */
+        boolean isFull(Map<Integer, Integer> booked) {
+            for (int leg = 0; leg < numFlights; leg++) {
+                if (booked.getOrDefault(fid(leg), 0) >= capacity(leg)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns a shallow copy; the flights are shared
+         */
+        Itinerary copy() {
+            Itinerary i = rows != null ? new Itinerary(store, rows) : new Itinerary(flights);
+            i.full = full;
+            return i;
+        }
     }
 }
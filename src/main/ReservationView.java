@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One session's copy of its user's reservations and balance, so that listing reservations
+ * or refusing an impossible payment needs no database round trip.
+ * <p>
+ * Every user has a generation counter shared by all sessions in the process. A session
+ * that changes the user's reservations bumps it before its transaction and again after,
+ * and updates its own view in between. The view is fresh while the counter still holds
+ * the generation it was loaded or last updated at; a change by any other session of the
+ * same user leaves it stale, and it is loaded again on next use.
+ * <p>
+ * Changes made by another process against the same database are not seen.
+ */
+class ReservationView {
+
+    private static final long STALE = -1;
+
+    // Generation of every user's reservations, shared by every session in the process.
+    // Held weakly, a user's counter is dropped once no view refers to it
+    private static final ConcurrentHashMap<String, Generation> generations =
+            new ConcurrentHashMap<>();
+    private static final ReferenceQueue<AtomicLong> dropped = new ReferenceQueue<>();
+
+    private static class Generation extends WeakReference<AtomicLong> {
+        final String username;
+
+        Generation(String username, AtomicLong counter) {
+            super(counter, dropped);
+            this.username = username;
+        }
+    }
+
+    /**
+     * A reservation as listed by the reservations command
+     */
+    static class Reservation {
+        final int rid;
+        final int price;
+        boolean paid;
+        // Flight lines, each ending in a newline
+        final String flights;
+
+        Reservation(int rid, int price, boolean paid, String flights) {
+            this.rid = rid;
+            this.price = price;
+            this.paid = paid;
+            this.flights = flights;
+        }
+    }
+
+    private final AtomicLong counter;
+    private long generation = STALE;
+    private int balance;
+    private final SortedMap<Integer, Reservation> reservations = new TreeMap<>();
+    // Rendered reservations, built on first use after a change
+    private String rendered;
+
+    ReservationView(String username) {
+        this.counter = counterOf(username);
+    }
+
+    /**
+     * Returns the user's counter, starting a new one if no view holds it any more. A view
+     * loaded against a new counter is fresh against it, there is no older view to miss.
+     */
+    private static AtomicLong counterOf(String username) {
+        for (Reference<?> ref = dropped.poll(); ref != null; ref = dropped.poll()) {
+            Generation g = (Generation) ref;
+            generations.remove(g.username, g);
+        }
+        while (true) {
+            Generation held = generations.get(username);
+            AtomicLong counter = held == null ? null : held.get();
+            if (counter != null) {
+                return counter;
+            }
+            counter = new AtomicLong();
+            Generation created = new Generation(username, counter);
+            if (held == null ? generations.putIfAbsent(username, created) == null :
+                    generations.replace(username, held, created)) {
+                return counter;
+            }
+        }
+    }
+
+    /**
+     * Marks every session's view of a user's reservations stale, for code that changes
+     * them outside of a view
+     */
+    static void invalidate(String username) {
+        Generation held = generations.get(username);
+        AtomicLong counter = held == null ? null : held.get();
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks every view of every user stale, for when the reservation tables are cleared
+     */
+    static void invalidateAll() {
+        for (Generation held : generations.values()) {
+            AtomicLong counter = held.get();
+            if (counter != null) {
+                counter.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the generation to pass to {@link #load} for a load that starts now
+     */
+    long currentGeneration() {
+        return counter.get();
+    }
+
+    /**
+     * @return whether no session has changed the user's reservations since this view was
+     * loaded or last updated
+     */
+    boolean isFresh() {
+        return generation != STALE && generation == counter.get();
+    }
+
+    /**
+     * Replaces the view with what was read from the database
+     *
+     * @param generation the generation read before the reservations were
+     */
+    void load(long generation, int balance, Collection<Reservation> reservations) {
+        this.balance = balance;
+        this.reservations.clear();
+        for (Reservation r : reservations) {
+            this.reservations.put(r.rid, r);
+        }
+        this.rendered = null;
+        this.generation = generation;
+    }
+
+    /**
+     * Starts a change to the user's reservations, making every other session's view stale
+     *
+     * @return a token for {@link #endChange}
+     */
+    long beginChange() {
+        long next = counter.incrementAndGet();
+        return generation != STALE && next == generation + 1 ? next : STALE;
+    }
+
+    /**
+     * Ends a change started with {@link #beginChange}. The view stays fresh only if no
+     * other session changed the user's reservations in the meantime.
+     */
+    void endChange(long token) {
+        long next = counter.incrementAndGet();
+        generation = token != STALE && next == token + 1 ? next : STALE;
+    }
+
+    int balance() {
+        return balance;
+    }
+
+    int unpaidCount() {
+        int count = 0;
+        for (Reservation r : reservations.values()) {
+            if (!r.paid) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int unpaidTotal() {
+        int total = 0;
+        for (Reservation r : reservations.values()) {
+            if (!r.paid) {
+                total += r.price;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the reservation, or null if the user has none with that ID
+     */
+    Reservation get(int rid) {
+        return reservations.get(rid);
+    }
+
+    void add(Reservation reservation) {
+        reservations.put(reservation.rid, reservation);
+        rendered = null;
+    }
+
+    void markPaid(int rid, int remainingBalance) {
+        Reservation r = reservations.get(rid);
+        if (r != null) {
+            r.paid = true;
+        }
+        balance = remainingBalance;
+        rendered = null;
+    }
+
+    void markAllPaid(int remainingBalance) {
+        for (Reservation r : reservations.values()) {
+            r.paid = true;
+        }
+        balance = remainingBalance;
+        rendered = null;
+    }
+
+    /**
+     * Removes a cancelled reservation, refunding it if it was paid
+     */
+    void remove(int rid) {
+        Reservation r = reservations.remove(rid);
+        if (r != null && r.paid) {
+            balance += r.price;
+        }
+        rendered = null;
+    }
+
+    /**
+     * @return the reservations in the format of the reservations command
+     */
+    String render() {
+        if (rendered == null) {
+            if (reservations.isEmpty()) {
+                rendered = "No reservations found\n";
+            } else {
+                StringBuilder sb = new StringBuilder(reservations.size() * 200);
+                for (Reservation r : reservations.values()) {
+                    sb.append("Reservation ").append(r.rid).append(" paid: ").append(r.paid)
+                            .append(":\n").append(r.flights);
+                }
+                rendered = sb.toString();
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * Writes the reservations in the format of the reservations command, one at a time,
+     * without building them into one string first
+     */
+    void render(Appendable out) throws IOException {
+        if (rendered != null) {
+            out.append(rendered);
+        } else if (reservations.isEmpty()) {
+            out.append("No reservations found\n");
+        } else {
+            for (Reservation r : reservations.values()) {
+                out.append("Reservation ").append(Integer.toString(r.rid)).append(" paid: ")
+                        .append(Boolean.toString(r.paid)).append(":\n").append(r.flights);
+            }
+        }
+    }
+}
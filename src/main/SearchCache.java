@@ -0,0 +1,220 @@
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Bounded LRU cache of assembled search results, shared by every Query session in the
+ * process.
+ * <p>
+ * The flights behind a search never change, so a cached result only goes stale through
+ * the booked seat counts that decide {@code Itinerary.full}. Each entry keeps those counts
+ * per fid; booking and cancelling mark just the affected fids as stale and the next hit
+ * re-reads only those counts. Bookings made by other processes are not seen by this cache.
+ */
+public class SearchCache {
+
+    /**
+     * Reads the booked seat counts of the given flights
+     */
+    public interface CapacityLoader {
+        Map<Integer, Integer> load(Collection<Integer> fids) throws SQLException;
+    }
+
+    /**
+     * A cache hit: fresh itinerary copies the caller may keep, plus the rendered output,
+     * null if it was too long to keep
+     */
+    public static class Result {
+        public final List<Query.Itinerary> itineraries;
+        public final String output;
+
+        Result(List<Query.Itinerary> itineraries, String output) {
+            this.itineraries = itineraries;
+            this.output = output;
+        }
+    }
+
+    private static class Entry {
+        final Query.Itinerary[] itineraries;
+        final String output;
+        final Map<Integer, Integer> booked;
+        final Set<Integer> stale = new HashSet<>();
+        // Bumped whenever a fid is marked stale, so a refresh can tell whether it missed one
+        long invalidations;
+
+        Entry(Query.Itinerary[] itineraries, String output, Map<Integer, Integer> booked) {
+            this.itineraries = itineraries;
+            this.output = output;
+            this.booked = booked;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    // fid -> the entries that contain it
+    private final Map<Integer, Set<Entry>> byFid = new HashMap<>();
+    // Bumped on every invalidation so results loaded across one can be caught
+    private long generation;
+
+    /**
+     * @param maxEntries the most results kept before the least recently used is evicted
+     */
+    public SearchCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SearchCache.this.maxEntries) {
+                    unlink(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Builds the cache key for a search
+     */
+    public static String key(String originCity, String destinationCity, boolean directFlight,
+                             int dayOfMonth, int numberOfItineraries) {
+        return originCity.toLowerCase(Locale.ROOT) + '\n' +
+                destinationCity.toLowerCase(Locale.ROOT) + '\n' + directFlight + '\n' +
+                dayOfMonth + '\n' + numberOfItineraries;
+    }
+
+    /**
+     * Looks up a search result, refreshing the booked counts of any stale fids first.
+     *
+     * @return the cached result, or null if the search is not cached
+     */
+    public Result get(String key, CapacityLoader loader) throws SQLException {
+        Entry e;
+        Set<Integer> refresh;
+        long invalidations;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e == null) {
+                return null;
+            }
+            refresh = new HashSet<>(e.stale);
+            invalidations = e.invalidations;
+        }
+
+        Map<Integer, Integer> booked;
+        if (refresh.isEmpty()) {
+            synchronized (this) {
+                booked = new HashMap<>(e.booked);
+            }
+        } else {
+            // The fids stay stale while they load, so a concurrent hit loads them too
+            // rather than using the old counts
+            Map<Integer, Integer> fresh = loader.load(refresh);
+            synchronized (this) {
+                for (int fid : refresh) {
+                    e.booked.put(fid, fresh.getOrDefault(fid, 0));
+                }
+                // An invalidation during the load may have come after the counts were read
+                if (e.invalidations == invalidations) {
+                    e.stale.removeAll(refresh);
+                }
+                booked = new HashMap<>(e.booked);
+            }
+        }
+
+        List<Query.Itinerary> copies = new ArrayList<>(e.itineraries.length);
+        for (Query.Itinerary i : e.itineraries) {
+            Query.Itinerary copy = i.copy();
+            copy.full = i.isFull(booked);
+            copies.add(copy);
+        }
+        return new Result(copies, e.output);
+    }
+
+    /**
+     * Caches an assembled search result.
+     *
+     * @param itineraries the itineraries in display order
+     * @param output      the rendered search output, or null to render it again on every
+     *                    hit
+     * @param booked      booked seat counts for the fids in the result, missing means none
+     * @param loadedAt    the {@link #generation()} read before the counts were loaded
+     */
+    public synchronized void put(String key, Collection<Query.Itinerary> itineraries,
+                                 String output, Map<Integer, Integer> booked, long loadedAt) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            unlink(old);
+        }
+
+        Query.Itinerary[] copies = new Query.Itinerary[itineraries.size()];
+        Map<Integer, Integer> counts = new HashMap<>();
+        int n = 0;
+        for (Query.Itinerary i : itineraries) {
+            copies[n++] = i.copy();
+            for (int leg = 0; leg < i.numFlights; leg++) {
+                int fid = i.fid(leg);
+                counts.put(fid, booked.getOrDefault(fid, 0));
+            }
+        }
+
+        Entry e = new Entry(copies, output, counts);
+        // A booking or cancel may have landed while the counts were read
+        if (loadedAt != generation) {
+            e.stale.addAll(counts.keySet());
+        }
+        for (int fid : counts.keySet()) {
+            byFid.computeIfAbsent(fid, k -> new HashSet<>()).add(e);
+        }
+        entries.put(key, e);
+    }
+
+    /**
+     * Marks the booked count of a flight as stale in every cached result that contains it
+     */
+    public synchronized void invalidateFlight(int fid) {
+        generation++;
+        Set<Entry> containing = byFid.get(fid);
+        if (containing == null) {
+            return;
+        }
+        for (Entry e : containing) {
+            e.stale.add(fid);
+            e.invalidations++;
+        }
+    }
+
+    /**
+     * Drops every cached result
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        byFid.clear();
+    }
+
+    /**
+     * @return a counter that changes whenever cached booked counts may have gone stale
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void unlink(Entry e) {
+        for (int fid : e.booked.keySet()) {
+            Set<Entry> containing = byFid.get(fid);
+            if (containing != null) {
+                containing.remove(e);
+                if (containing.isEmpty()) {
+                    byFid.remove(fid);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * In-process count of booked seats for every flight in a {@link FlightStore}, shared by
+ * all sessions. Bookings are admitted or refused with a compare-and-set against the
+ * flight's capacity, so no database lock is held to decide whether a seat is free.
+ * <p>
+ * The counts reach Flights_Capacity through a write-behind flusher that upserts the
+ * current count of every flight that changed since the last flush. Flights_Capacity can
+ * therefore lag behind, and is lost on a crash between flushes. It is never trusted: at
+ * startup the counts are rebuilt from the committed reservations and written back.
+ * <p>
+ * The inventory only admits bookings made through this process. Every process writing
+ * reservations to the same database would have to share it.
+ */
+public class SeatInventory {
+
+    // Seats held by committed reservations, counted from their legs. Reservations
+    // booked before legs were recorded fall back to fid1 and fid2
+    private static final String COUNT_BOOKED_SEATS =
+            "SELECT fid, COUNT(*) AS booked " +
+                    "FROM (SELECT l.fid " +
+                    "FROM Flights_Reservation_Legs l " +
+                    "UNION ALL " +
+                    "SELECT r.fid1 " +
+                    "FROM Flights_Reservations r " +
+                    "WHERE NOT EXISTS (SELECT * FROM Flights_Reservation_Legs l WHERE l.rid = r.rid) " +
+                    "UNION ALL " +
+                    "SELECT r.fid2 " +
+                    "FROM Flights_Reservations r " +
+                    "WHERE r.fid2 <> -1 " +
+                    "AND NOT EXISTS (SELECT * FROM Flights_Reservation_Legs l WHERE l.rid = r.rid)) b " +
+                    "GROUP BY fid";
+
+    private static final String CLEAR_CAPACITY =
+            "DELETE FROM Flights_Capacity";
+
+    private static final String WRITE_CAPACITY =
+            "MERGE Flights_Capacity AS t " +
+                    "USING (SELECT ? AS fid, ? AS capacity) AS s " +
+                    "ON t.fid = s.fid " +
+                    "WHEN MATCHED THEN UPDATE SET capacity = s.capacity, version = t.version + 1 " +
+                    "WHEN NOT MATCHED THEN INSERT (fid, capacity) VALUES (s.fid, s.capacity);";
+
+    private final FlightStore store;
+    // Booked seats by store row
+    private final AtomicIntegerArray booked;
+    // 1 while a row waits in the dirty queue
+    private final AtomicIntegerArray dirty;
+    private final Queue<Integer> dirtyRows = new ConcurrentLinkedQueue<>();
+
+    private final long flushMillis;
+    private ScheduledExecutorService flusher;
+    private Connection flushConn;
+    private PreparedStatement writeCapacityStatement;
+
+    /**
+     * @param store       the flights whose seats are counted
+     * @param flushMillis how often changed counts are written to Flights_Capacity
+     */
+    public SeatInventory(FlightStore store, long flushMillis) {
+        this.store = store;
+        this.booked = new AtomicIntegerArray(store.size());
+        this.dirty = new AtomicIntegerArray(store.size());
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Rebuilds every count from the committed reservations and rewrites Flights_Capacity
+     * to match, in one transaction on the given connection.
+     */
+    public synchronized void reconcile(Connection conn) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            int[] counts = new int[store.size()];
+            try (Statement s = conn.createStatement();
+                 ResultSet rs = s.executeQuery(COUNT_BOOKED_SEATS)) {
+                while (rs.next()) {
+                    int row = store.rowOf(rs.getInt("fid"));
+                    if (row >= 0) {
+                        counts[row] = rs.getInt("booked");
+                    }
+                }
+            }
+
+            try (Statement s = conn.createStatement();
+                 PreparedStatement write = conn.prepareStatement(WRITE_CAPACITY)) {
+                s.executeUpdate(CLEAR_CAPACITY);
+                for (int row = 0; row < counts.length; row++) {
+                    if (counts[row] > 0) {
+                        write.setInt(1, store.fid[row]);
+                        write.setInt(2, counts[row]);
+                        write.addBatch();
+                    }
+                }
+                write.executeBatch();
+            }
+            conn.commit();
+
+            dirtyRows.clear();
+            for (int row = 0; row < counts.length; row++) {
+                booked.set(row, counts[row]);
+                dirty.set(row, 0);
+            }
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Starts flushing changed counts in the background on a connection of its own, and
+     * flushes once more when the JVM exits
+     */
+    public synchronized void start() throws IOException, SQLException {
+        if (flusher != null) {
+            return;
+        }
+        flushConn = Query.connect();
+        flushConn.setAutoCommit(true);
+        writeCapacityStatement = flushConn.prepareStatement(WRITE_CAPACITY);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "seat-inventory-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis,
+                TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly));
+    }
+
+    /**
+     * Takes one seat on every leg, or none if any leg is full.
+     *
+     * @param fids the legs of the itinerary
+     * @return whether the seats were taken
+     */
+    public boolean tryBook(int... fids) {
+        for (int leg = 0; leg < fids.length; leg++) {
+            int row = store.rowOf(fids[leg]);
+            if (row < 0 || !tryTake(row)) {
+                for (int taken = 0; taken < leg; taken++) {
+                    give(store.rowOf(fids[taken]));
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives back one seat on every leg, after a cancel or a booking that did not commit
+     */
+    public void release(int... fids) {
+        for (int fid : fids) {
+            int row = store.rowOf(fid);
+            if (row >= 0) {
+                give(row);
+            }
+        }
+    }
+
+    /**
+     * @return booked seat counts of the given flights, flights with none are left out
+     */
+    public Map<Integer, Integer> bookedCounts(Collection<Integer> fids) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int fid : fids) {
+            int row = store.rowOf(fid);
+            if (row >= 0 && booked.get(row) > 0) {
+                counts.put(fid, booked.get(row));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Forgets every booking, for when the reservation tables are cleared
+     */
+    public synchronized void clear() {
+        dirtyRows.clear();
+        for (int row = 0; row < booked.length(); row++) {
+            booked.set(row, 0);
+            dirty.set(row, 0);
+        }
+    }
+
+    /**
+     * Writes the current count of every changed flight to Flights_Capacity
+     */
+    public synchronized void flush() throws SQLException {
+        if (writeCapacityStatement == null) {
+            return;
+        }
+        List<Integer> rows = new ArrayList<>();
+        for (Integer row = dirtyRows.poll(); row != null; row = dirtyRows.poll()) {
+            // Clear the flag before reading the count, so a change after the read
+            // queues the row again
+            dirty.set(row, 0);
+            writeCapacityStatement.setInt(1, store.fid[row]);
+            writeCapacityStatement.setInt(2, booked.get(row));
+            writeCapacityStatement.addBatch();
+            rows.add(row);
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            writeCapacityStatement.executeBatch();
+        } catch (SQLException ex) {
+            writeCapacityStatement.clearBatch();
+            for (int row : rows) {
+                markDirty(row);
+            }
+            throw ex;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException ex) {
+            // Left dirty, the next flush retries
+        }
+    }
+
+    private boolean tryTake(int row) {
+        int capacity = store.capacity[row];
+        while (true) {
+            int current = booked.get(row);
+            if (current >= capacity) {
+                return false;
+            }
+            if (booked.compareAndSet(row, current, current + 1)) {
+                markDirty(row);
+                return true;
+            }
+        }
+    }
+
+    private void give(int row) {
+        while (true) {
+            int current = booked.get(row);
+            if (current <= 0) {
+                return;
+            }
+            if (booked.compareAndSet(row, current, current - 1)) {
+                markDirty(row);
+                return;
+            }
+        }
+    }
+
+    private void markDirty(int row) {
+        if (dirty.compareAndSet(row, 0, 1)) {
+            dirtyRows.add(row);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tokens that log a user back in without their password, shared by every session in the
+ * process. A token is a random string that stays valid until it expires, so a client that
+ * reconnects presents it instead of paying for a password check again.
+ * <p>
+ * Tokens only live in memory and are all lost when the process exits.
+ */
+class SessionTokens {
+
+    private static final int TOKEN_BYTES = 24;
+    // Expired tokens are swept once every this many issued
+    private static final int SWEEP_EVERY = 1024;
+
+    /**
+     * The user a token was issued to
+     */
+    static class Session {
+        final String username;
+        // The username as the user typed it when they logged in
+        final String displayName;
+        final long expiresAtMillis;
+
+        Session(String username, String displayName, long expiresAtMillis) {
+            this.username = username;
+            this.displayName = displayName;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong issued = new AtomicLong();
+    private final long ttlMillis;
+
+    /**
+     * @param ttlMillis how long a token stays valid after it is issued
+     */
+    SessionTokens(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param displayName the username as the user typed it when they logged in
+     * @return a new token for the user
+     */
+    String issue(String username, String displayName) {
+        long now = System.currentTimeMillis();
+        if (issued.incrementAndGet() % SWEEP_EVERY == 0) {
+            sessions.values().removeIf(s -> s.expiresAtMillis <= now);
+        }
+
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username, displayName, now + ttlMillis));
+        return token;
+    }
+
+    /**
+     * @return the user the token was issued to, or null if it is unknown or expired
+     */
+    Session resume(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        } else if (session.expiresAtMillis <= System.currentTimeMillis()) {
+            sessions.remove(token, session);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Revokes every token, for when the users table is cleared
+     */
+    void clear() {
+        sessions.clear();
+    }
+}
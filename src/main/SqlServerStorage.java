@@ -0,0 +1,1315 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a session's data in SQL Server, through the server in dbconn.properties or the
+ * JDBC URL in the flights.jdbcUrl property. Book, pay and cancel are each one batch of
+ * T-SQL and one round trip.
+ * <p>
+ * A session borrows a pooled connection when a transaction begins and gives it back when
+ * the transaction ends. Only this storage can search the Flights table without the flight
+ * index, run book, pay and cancel optimistically, or admit bookings against an
+ * in-process seat inventory.
+ */
+public class SqlServerStorage implements Storage {
+    // Connections shared by every session. A session borrows one when a transaction
+    // begins and gives it back when the transaction ends
+    private static final ConnectionPool connectionPool = new ConnectionPool(
+            SqlServerStorage::openPooled, Integer.getInteger("flights.poolSize", 16),
+            Long.getLong("flights.poolWaitMillis", 5000));
+
+    // The connection borrowed for the current transaction, and the statements below are
+    // bound to it. All null between transactions
+    private ConnectionPool.Lease lease;
+    private Connection conn;
+
+    private static final int ATTEMPTS = 5;
+    // Bound of the random wait before the first retry of a transaction, doubled per retry
+    private static final long RETRY_BACKOFF_MILLIS = 5;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 200;
+
+    // Run the direct and one-stop queries of a SQL search at the same time on two connections
+    private static final boolean PARALLEL_SEARCH =
+            Boolean.parseBoolean(System.getProperty("flights.parallelSearch", "false"));
+    private static final ExecutorService searchExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "flight-search");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Admit bookings against an in-process seat count instead of locking Flights_Capacity.
+    // Needs the flight index, and assumes this process makes every booking
+    private static final boolean SEAT_INVENTORY =
+            Boolean.parseBoolean(System.getProperty("flights.seatInventory", "false"));
+    private static final long SEAT_FLUSH_MILLIS = Long.getLong("flights.seatFlushMillis", 100);
+
+    // Seat inventory shared by every session, loaded once
+    private static SeatInventory seatInventory;
+
+    // Every this many cancels in the process, one of them drops the zero seat counts left
+    // in Flights_Capacity, 0 never does
+    private static final int COMPACT_CAPACITY_EVERY =
+            Integer.getInteger("flights.compactCapacityEvery", 1000);
+    private static final AtomicLong cancels = new AtomicLong();
+
+    // Book, pay and cancel with version checked writes at read committed instead of
+    // serializable locking
+    private boolean optimistic =
+            Boolean.parseBoolean(System.getProperty("flights.optimistic", "false"));
+
+    // Runs and retries every transaction of this session
+    private final TransactionExecutor transactions = new TransactionExecutor(
+            this::commitTransaction, this::rollbackTransaction, ATTEMPTS, RETRY_BACKOFF_MILLIS,
+            MAX_RETRY_BACKOFF_MILLIS);
+
+    // Canned queries
+    private static final String BEGIN_TRANSACTION_SQL =
+            "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+    private PreparedStatement beginTransactionStatement;
+
+    // Read-only transactions (search, reservations) use this session's read isolation
+    private Query.ReadIsolation readIsolation = Query.ReadIsolation.valueOf(
+            System.getProperty("flights.readIsolation", "READ_COMMITTED").toUpperCase(Locale.ROOT));
+    private PreparedStatement beginReadTransactionStatement;
+
+    // Optimistic transactions only lock the rows they write
+    private PreparedStatement beginOptimisticTransactionStatement;
+
+    private static final String COMMIT_SQL = "COMMIT TRANSACTION";
+    private PreparedStatement commitTransactionStatement;
+
+    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+    private PreparedStatement rollbackTransactionStatement;
+
+    private static final String CLEAR_FLIGHTS_USERS =
+            "DELETE FROM Flights_Users";
+    private Statement clearFlightsUsersStatement;
+
+    private static final String CLEAR_FLIGHTS_RESERVATION_LEGS =
+            "DELETE FROM Flights_Reservation_Legs";
+    private Statement clearFlightsReservationLegsStatement;
+
+    private static final String CLEAR_FLIGHTS_RESERVATIONS =
+            "DELETE FROM Flights_Reservations " +
+                    "DBCC CHECKIDENT('Flights_Reservations', RESEED, 0)";
+    private Statement clearFlightsReservationsStatement;
+
+    private static final String CLEAR_FLIGHTS_CAPACITY =
+            "DELETE FROM Flights_Capacity";
+    private Statement clearFlightsCapacityStatement;
+
+    private static final String CREATE_USER =
+            "INSERT INTO Flights_Users (username, pass, salt, balance) " +
+                    "VALUES(?, ?, ?, ?)";
+    private PreparedStatement createUserStatement;
+
+    private static final String UPDATE_PASSWORD =
+            "UPDATE Flights_Users " +
+                    "SET pass = ?, salt = ? " +
+                    "WHERE username = ? AND pass = ?";
+    private PreparedStatement updatePasswordStatement;
+
+    private static final String CHECK_USER_EXISTS =
+            "SELECT *" +
+                    "FROM Flights_Users " +
+                    "WHERE username = ?";
+    private PreparedStatement checkUserExistsStatement;
+
+    private static final String GET_USER =
+            "SELECT * " +
+                    "FROM Flights_Users " +
+                    "WHERE username = ?";
+    private PreparedStatement getUserStatement;
+
+    private static final String GET_FLIGHT =
+            "SELECT TOP (?) f.fid, f.day_of_month, f.carrier_id, f.flight_num, f.origin_city, " +
+                    "f.dest_city, f.actual_time, f.capacity, f.price, " +
+                    "ISNULL(c.capacity, 0) AS booked " +
+                    "FROM Flights AS f " +
+                    "LEFT OUTER JOIN Flights_Capacity AS c ON c.fid = f.fid " +
+                    "WHERE f.origin_city = ? AND f.dest_city = ? AND f.day_of_month = ? " +
+                    "AND f.canceled = 0 " +
+                    "ORDER BY f.actual_time, f.fid ASC";
+    private PreparedStatement getFlightStatement;
+
+    private static final String GET_INTERMEDIATE_FLIGHT =
+            "WITH Stop_One AS (" +
+                    "SELECT * " +
+                    "FROM Flights " +
+                    "WHERE origin_city = ? AND day_of_month = ?) " +
+                    "SELECT TOP (?) s.fid AS s_fid, s.day_of_month AS s_day_of_month, s.carrier_id AS " +
+                    "s_carrier_id, s.flight_num AS s_flight_num, s.origin_city AS " +
+                    "s_origin_city, s.dest_city AS s_dest_city, s.actual_time AS " +
+                    "s_actual_time, s.capacity AS s_capacity, s.price AS s_price, " +
+                    "s.canceled AS s_canceled, ISNULL(sc.capacity, 0) AS s_booked, " +
+                    "f.fid AS f_fid, f.day_of_month AS f_day_of_month, f.carrier_id AS " +
+                    "f_carrier_id, f.flight_num AS f_flight_num, f.origin_city AS " +
+                    "f_origin_city, f.dest_city AS f_dest_city, f.actual_time AS " +
+                    "f_actual_time, f.capacity AS f_capacity, f.price AS f_price, " +
+                    "f.canceled AS f_canceled, ISNULL(fc.capacity, 0) AS f_booked " +
+                    "FROM Stop_One AS s " +
+                    "JOIN Flights AS f ON s.dest_city = f.origin_city " +
+                    "LEFT OUTER JOIN Flights_Capacity AS sc ON sc.fid = s.fid " +
+                    "LEFT OUTER JOIN Flights_Capacity AS fc ON fc.fid = f.fid " +
+                    "WHERE f.dest_city = ? AND f.day_of_month = ? " +
+                    "AND s.canceled = 0 AND f.canceled = 0 " +
+                    "ORDER BY (s.actual_time + f.actual_time), s.fid, f.fid ASC";
+    private PreparedStatement getIntermediateFlightStatement;
+
+    private static final String CHECK_RESERVATION_DAY_EXISTS =
+            "SELECT * " +
+                    "FROM Flights_Reservations " +
+                    "WHERE username = ? AND day = ?";
+    private PreparedStatement checkReservationDayExistsStatement;
+
+    private static final String BOOK_RESERVATION =
+            "INSERT INTO Flights_Reservations (username, paid, day, price, fid1, fid2) " +
+                    "VALUES(?, ?, ?, ?, ?, ?)";
+    private PreparedStatement bookReservationStatement;
+
+    private static final String INSERT_RESERVATION_LEG =
+            "INSERT INTO Flights_Reservation_Legs (rid, leg, fid) " +
+                    "VALUES(?, ?, ?)";
+    private PreparedStatement insertReservationLegStatement;
+
+    // Books a whole itinerary in one round trip: the reservation is only inserted if the
+    // user has none on that day and, when seats are counted here, no leg is full, and then
+    // its legs and seat counts are written. Returns the new rid, or no row if nothing was
+    // written. The leg rows and the seat count statements are filled in per leg count.
+    private static final String BOOK_ITINERARY =
+            "SET NOCOUNT ON; " +
+                    "DECLARE @legs TABLE (leg int, fid int, capacity int); " +
+                    "INSERT INTO @legs (leg, fid, capacity) VALUES %s; " +
+                    "DECLARE @rid TABLE (rid int); " +
+                    "INSERT INTO Flights_Reservations (username, paid, day, price, fid1, fid2) " +
+                    "OUTPUT inserted.rid INTO @rid " +
+                    "SELECT ?, 0, ?, ?, ?, ? " +
+                    "WHERE NOT EXISTS (SELECT * FROM Flights_Reservations " +
+                    "WHERE username = ? AND day = ?)%s; " +
+                    "INSERT INTO Flights_Reservation_Legs (rid, leg, fid) " +
+                    "SELECT r.rid, l.leg, l.fid FROM @rid r CROSS JOIN @legs l; " +
+                    "%s" +
+                    "SET NOCOUNT OFF; " +
+                    "SELECT rid FROM @rid;";
+
+    private static final String BOOK_ITINERARY_SEATS_LEFT =
+            " AND NOT EXISTS (SELECT * FROM @legs l " +
+                    "JOIN Flights_Capacity c WITH (UPDLOCK) ON c.fid = l.fid " +
+                    "WHERE c.capacity >= l.capacity)";
+
+    private static final String BOOK_ITINERARY_TAKE_SEATS =
+            "MERGE Flights_Capacity WITH (HOLDLOCK) AS t " +
+                    "USING (SELECT l.fid FROM @rid r CROSS JOIN @legs l) AS s " +
+                    "ON t.fid = s.fid " +
+                    "WHEN MATCHED THEN UPDATE SET capacity = t.capacity + 1, version = t.version + 1 " +
+                    "WHEN NOT MATCHED THEN INSERT (fid, capacity) VALUES (s.fid, 1); ";
+
+    // BOOK_ITINERARY by number of legs
+    private static final Map<Integer, String> bookItinerarySql = new ConcurrentHashMap<>();
+
+    // Every leg of every reservation of a user, in order, for rendering from the flight index
+    private static final String GET_USER_RESERVATIONS =
+            "SELECT r.rid, r.paid, r.price AS total_price, l.fid " +
+                    "FROM Flights_Reservations r " +
+                    "JOIN Flights_Reservation_Legs l ON l.rid = r.rid " +
+                    "WHERE r.username = ? " +
+                    "ORDER BY r.rid, l.leg";
+    private PreparedStatement getUserReservationsStatement;
+
+    // The same with each leg's flight joined in, when there is no flight index
+    private static final String GET_USER_RESERVATION_FLIGHTS =
+            "SELECT r.rid, r.paid, r.price AS total_price, f.fid, f.day_of_month, " +
+                    "f.carrier_id, f.flight_num, " +
+                    "f.origin_city, f.dest_city, f.actual_time, f.capacity, f.price " +
+                    "FROM Flights_Reservations r " +
+                    "JOIN Flights_Reservation_Legs l ON l.rid = r.rid " +
+                    "JOIN Flights f ON f.fid = l.fid " +
+                    "WHERE r.username = ? " +
+                    "ORDER BY r.rid, l.leg";
+    private PreparedStatement getUserReservationFlightsStatement;
+
+    // Pays for a reservation in one round trip. The debit only happens if the reservation
+    // is unpaid and the balance covers it, and the reservation row stays locked until the
+    // transaction ends so a concurrent pay of it waits and then finds it paid. Returns the
+    // remaining balance, or a null remaining with what is needed to explain why not.
+    private static final String PAY_RESERVATION =
+            "SET NOCOUNT ON; " +
+                    "DECLARE @pay TABLE (balance int); " +
+                    "UPDATE u " +
+                    "SET balance = u.balance - r.price, version = u.version + 1 " +
+                    "OUTPUT inserted.balance INTO @pay " +
+                    "FROM Flights_Users u " +
+                    "JOIN Flights_Reservations r WITH (UPDLOCK) ON r.username = u.username " +
+                    "WHERE u.username = ? AND r.rid = ? AND r.paid = 0 AND u.balance >= r.price; " +
+                    "UPDATE Flights_Reservations " +
+                    "SET paid = 1, version = version + 1 " +
+                    "WHERE rid = ? AND username = ? AND EXISTS (SELECT * FROM @pay); " +
+                    "SET NOCOUNT OFF; " +
+                    "SELECT (SELECT balance FROM @pay) AS remaining, u.balance, r.paid, r.price " +
+                    "FROM Flights_Users u " +
+                    "LEFT OUTER JOIN Flights_Reservations r ON r.username = u.username AND r.rid = ? " +
+                    "WHERE u.username = ?";
+    private PreparedStatement payReservationStatement;
+
+    // Pays for every unpaid reservation of a user at once, or for none of them if the
+    // balance does not cover their total
+    private static final String PAY_ALL_RESERVATIONS =
+            "SET NOCOUNT ON; " +
+                    "DECLARE @due TABLE (rid int, price int); " +
+                    "INSERT INTO @due (rid, price) " +
+                    "SELECT rid, price FROM Flights_Reservations WITH (UPDLOCK) " +
+                    "WHERE username = ? AND paid = 0; " +
+                    "DECLARE @total int = (SELECT SUM(price) FROM @due); " +
+                    "DECLARE @pay TABLE (balance int); " +
+                    "UPDATE Flights_Users " +
+                    "SET balance = balance - @total, version = version + 1 " +
+                    "OUTPUT inserted.balance INTO @pay " +
+                    "WHERE username = ? AND balance >= @total; " +
+                    "UPDATE r " +
+                    "SET paid = 1, version = r.version + 1 " +
+                    "FROM Flights_Reservations r JOIN @due d ON d.rid = r.rid " +
+                    "WHERE r.username = ? AND EXISTS (SELECT * FROM @pay); " +
+                    "SET NOCOUNT OFF; " +
+                    "SELECT (SELECT COUNT(*) FROM @due) AS due, @total AS total, " +
+                    "(SELECT balance FROM @pay) AS remaining, balance " +
+                    "FROM Flights_Users " +
+                    "WHERE username = ?";
+    private PreparedStatement payAllReservationsStatement;
+
+    // Cancels a reservation in one round trip: deletes it and its legs, refunds it if it
+    // was paid, and gives back a seat on every leg. Seat counts that reach zero stay in
+    // Flights_Capacity for the next booking to update. Returns the fids of the legs, or no
+    // row if the user has no such reservation. Reservations booked before legs were
+    // recorded fall back to fid1 and fid2.
+    private static final String CANCEL_RESERVATION =
+            "SET NOCOUNT ON; " +
+                    "DECLARE @r TABLE (paid bit, price int, fid1 int, fid2 int); " +
+                    "DELETE FROM Flights_Reservations " +
+                    "OUTPUT deleted.paid, deleted.price, deleted.fid1, deleted.fid2 INTO @r " +
+                    "WHERE rid = ? AND username = ?; " +
+                    "DECLARE @legs TABLE (fid int); " +
+                    "DELETE FROM Flights_Reservation_Legs " +
+                    "OUTPUT deleted.fid INTO @legs " +
+                    "WHERE rid = ? AND EXISTS (SELECT * FROM @r); " +
+                    "IF NOT EXISTS (SELECT * FROM @legs) " +
+                    "INSERT INTO @legs (fid) " +
+                    "SELECT fid1 FROM @r UNION ALL SELECT fid2 FROM @r WHERE fid2 <> -1; " +
+                    "UPDATE u " +
+                    "SET balance = u.balance + r.price, version = u.version + 1 " +
+                    "FROM Flights_Users u JOIN @r r ON r.paid = 1 " +
+                    "WHERE u.username = ?; " +
+                    "%s" +
+                    "SET NOCOUNT OFF; " +
+                    "SELECT fid FROM @legs;";
+
+    private static final String CANCEL_RESERVATION_RETURN_SEATS =
+            "UPDATE c " +
+                    "SET capacity = c.capacity - 1, version = c.version + 1 " +
+                    "FROM Flights_Capacity c JOIN @legs l ON l.fid = c.fid " +
+                    "WHERE c.capacity > 0; ";
+    private PreparedStatement cancelReservationStatement;
+
+    // Drops the zero seat counts cancels leave behind
+    private static final String COMPACT_CAPACITY =
+            "DELETE FROM Flights_Capacity " +
+                    "WHERE capacity = 0";
+    private PreparedStatement compactCapacityStatement;
+
+    // Takes a comma separated list of fids so a whole result page is one round trip
+    private static final String GET_BOOKED_CAPACITIES =
+            "SELECT fid, capacity " +
+                    "FROM Flights_Capacity " +
+                    "WHERE fid IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+    private PreparedStatement getBookedCapacitiesStatement;
+
+    // Optimistic mode statements. Each write is conditional on the version read earlier in
+    // the transaction, or on the capacity left, and changes no row when it lost a race
+    private static final String GET_USER_VERSION =
+            "SELECT balance, version " +
+                    "FROM Flights_Users " +
+                    "WHERE username = ?";
+    private PreparedStatement getUserVersionStatement;
+
+    private static final String CLAIM_USER_VERSION =
+            "UPDATE Flights_Users " +
+                    "SET version = version + 1 " +
+                    "WHERE username = ? AND version = ?";
+    private PreparedStatement claimUserVersionStatement;
+
+    private static final String TAKE_SEAT =
+            "UPDATE Flights_Capacity " +
+                    "SET capacity = capacity + 1, version = version + 1 " +
+                    "WHERE fid = ? AND capacity < ?";
+    private PreparedStatement takeSeatStatement;
+
+    // A concurrent first booking on the same flight fails this with a duplicate key
+    private static final String TAKE_FIRST_SEAT =
+            "INSERT INTO Flights_Capacity (fid, capacity) " +
+                    "SELECT ?, 1 " +
+                    "WHERE ? > 0 AND NOT EXISTS (SELECT * FROM Flights_Capacity WHERE fid = ?)";
+    private PreparedStatement takeFirstSeatStatement;
+
+    /**
+     * Sessions borrow pooled connections per transaction, this only checks that the
+     * database can be reached
+     */
+    @Override
+    public void open() throws SQLException {
+        acquire();
+        release();
+    }
+
+    /**
+     * Opens a connection for the pool, committing after each statement until a
+     * transaction begins
+     */
+    private static Connection openPooled() throws IOException, SQLException {
+        Connection connection = Query.connect();
+        connection.setAutoCommit(true);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        return connection;
+    }
+
+    /**
+     * Gives back the connection this session still holds, if any. The pooled connections
+     * stay open for other sessions.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * Borrows a connection for this session and binds the statements to it, unless it
+     * already holds one
+     */
+    private void acquire() throws SQLException {
+        if (lease == null) {
+            lease = connectionPool.borrow();
+            conn = lease.connection();
+            bindStatements();
+        }
+    }
+
+    /**
+     * Gives this session's connection back to the pool, rolling back anything left open
+     */
+    private void release() {
+        if (lease != null) {
+            ConnectionPool.Lease returned = lease;
+            lease = null;
+            conn = null;
+            try {
+                bindStatements();
+            } catch (SQLException ex) {
+                // Unbinding prepares nothing
+            }
+            returned.close();
+        }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return lease == null ? null : lease.prepare(sql);
+    }
+
+    private Statement statement(String name) throws SQLException {
+        return lease == null ? null : lease.statement(name);
+    }
+
+    /*
+     * Points every statement at the borrowed connection, or at nothing between
+     * transactions. Each connection prepares a statement once and keeps it.
+     */
+    private void bindStatements() throws SQLException {
+        // Transaction statements
+        beginTransactionStatement = prepare(BEGIN_TRANSACTION_SQL);
+        beginReadTransactionStatement = prepare(readIsolation.beginSql);
+        beginOptimisticTransactionStatement = prepare(Query.ReadIsolation.READ_COMMITTED.beginSql);
+        commitTransactionStatement = prepare(COMMIT_SQL);
+        rollbackTransactionStatement = prepare(ROLLBACK_SQL);
+
+        // Flight statements
+        clearFlightsUsersStatement = statement("clearFlightsUsers");
+        clearFlightsReservationLegsStatement = statement("clearFlightsReservationLegs");
+        clearFlightsReservationsStatement = statement("clearFlightsReservations");
+        clearFlightsCapacityStatement = statement("clearFlightsCapacity");
+        createUserStatement = prepare(CREATE_USER);
+        checkUserExistsStatement = prepare(CHECK_USER_EXISTS);
+        getUserStatement = prepare(GET_USER);
+        updatePasswordStatement = prepare(UPDATE_PASSWORD);
+        getFlightStatement = prepare(GET_FLIGHT);
+        getIntermediateFlightStatement = prepare(GET_INTERMEDIATE_FLIGHT);
+        checkReservationDayExistsStatement = prepare(CHECK_RESERVATION_DAY_EXISTS);
+        bookReservationStatement = lease == null ? null
+                : lease.prepareReturningKeys(BOOK_RESERVATION);
+        insertReservationLegStatement = prepare(INSERT_RESERVATION_LEG);
+        getUserReservationsStatement = prepare(GET_USER_RESERVATIONS);
+        getUserReservationFlightsStatement = prepare(GET_USER_RESERVATION_FLIGHTS);
+        getBookedCapacitiesStatement = prepare(GET_BOOKED_CAPACITIES);
+        getUserVersionStatement = prepare(GET_USER_VERSION);
+        claimUserVersionStatement = prepare(CLAIM_USER_VERSION);
+        takeSeatStatement = prepare(TAKE_SEAT);
+        takeFirstSeatStatement = prepare(TAKE_FIRST_SEAT);
+
+        // The seat inventory gives seats back itself and writes Flights_Capacity later
+        cancelReservationStatement = prepare(String.format(CANCEL_RESERVATION,
+                seatInventory == null ? CANCEL_RESERVATION_RETURN_SEATS : ""));
+        compactCapacityStatement = prepare(COMPACT_CAPACITY);
+        payReservationStatement = prepare(PAY_RESERVATION);
+        payAllReservationsStatement = prepare(PAY_ALL_RESERVATIONS);
+    }
+
+    /**
+     * Loads every non-canceled flight from the Flights table
+     */
+    @Override
+    public FlightIndex loadFlightIndex() throws SQLException {
+        acquire();
+        try {
+            conn.setAutoCommit(false);
+            FlightIndex index = FlightIndex.load(conn);
+            // Reading the index must not leave the load open as a transaction
+            conn.commit();
+            return index;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Builds the shared seat inventory on the flight index, if it is turned on
+     */
+    @Override
+    public void useFlightIndex(FlightIndex index) throws SQLException {
+        if (SEAT_INVENTORY) {
+            loadSeatInventory(index);
+        }
+    }
+
+    /**
+     * Builds the shared seat inventory from the committed reservations the first time any
+     * session asks for it, and starts its flusher
+     */
+    private void loadSeatInventory(FlightIndex index) throws SQLException {
+        synchronized (SqlServerStorage.class) {
+            if (seatInventory != null) {
+                return;
+            }
+            acquire();
+            try {
+                conn.setAutoCommit(false);
+                SeatInventory inventory = new SeatInventory(index.store(), SEAT_FLUSH_MILLIS);
+                inventory.reconcile(conn);
+                try {
+                    inventory.start();
+                } catch (IOException ex) {
+                    throw new SQLException("Could not read dbconn.properties", ex);
+                }
+                seatInventory = inventory;
+            } finally {
+                release();
+            }
+        }
+    }
+
+    public void beginTransaction() throws SQLException {
+        acquire();
+        conn.setAutoCommit(false);
+        beginTransactionStatement.executeUpdate();
+    }
+
+    /**
+     * Begins a read-only transaction at this session's read isolation level. Unlike
+     * {@link #beginTransaction()} it does not take serializable range locks, so searches and
+     * reservation listings do not block concurrent bookings.
+     */
+    public void beginReadTransaction() throws SQLException {
+        acquire();
+        conn.setAutoCommit(false);
+        beginReadTransactionStatement.executeUpdate();
+    }
+
+    /**
+     * Sets the isolation level used by read-only transactions
+     */
+    public void setReadIsolation(Query.ReadIsolation readIsolation) throws SQLException {
+        this.readIsolation = readIsolation;
+        beginReadTransactionStatement = prepare(readIsolation.beginSql);
+    }
+
+    /**
+     * Begins an optimistic transaction at read committed. Reads take no locks that outlive
+     * them, and every write checks that what was read is still current.
+     */
+    public void beginOptimisticTransaction() throws SQLException {
+        acquire();
+        conn.setAutoCommit(false);
+        beginOptimisticTransactionStatement.executeUpdate();
+    }
+
+    /**
+     * Switches this session between optimistic and serializable book, pay and cancel
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    @Override
+    public TransactionExecutor getTransactionMetrics() {
+        return transactions;
+    }
+
+    /**
+     * @return wait, utilization and size of the connection pool every session shares
+     */
+    public static ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void commitTransaction() throws SQLException {
+        commitTransactionStatement.executeUpdate();
+        conn.setAutoCommit(true);
+        release();
+    }
+
+    public void rollbackTransaction() throws SQLException {
+        if (lease == null) {
+            // The transaction never got a connection
+            return;
+        }
+        try {
+            rollbackTransactionStatement.executeUpdate();
+            conn.setAutoCommit(true);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void clear() throws SQLException {
+        if (seatInventory != null) {
+            seatInventory.clear();
+        }
+        try {
+            beginTransaction();
+            clearFlightsReservationLegsStatement.execute(CLEAR_FLIGHTS_RESERVATION_LEGS);
+            clearFlightsReservationsStatement.execute(CLEAR_FLIGHTS_RESERVATIONS);
+            clearFlightsUsersStatement.execute(CLEAR_FLIGHTS_USERS);
+            clearFlightsCapacityStatement.execute(CLEAR_FLIGHTS_CAPACITY);
+            commitTransaction();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public User readUser(String username, boolean withFlights) {
+        return transactions.execute(this::beginReadTransaction, tx -> {
+            getUserStatement.clearParameters();
+            getUserStatement.setString(1, username);
+            ResultSet userResult = getUserStatement.executeQuery();
+            if (!userResult.next()) {
+                return null;
+            }
+            byte[] hash = userResult.getBytes("pass");
+            byte[] salt = userResult.getBytes("salt");
+            int balance = userResult.getInt("balance");
+
+            PreparedStatement statement = withFlights ?
+                    getUserReservationFlightsStatement : getUserReservationsStatement;
+            statement.clearParameters();
+            statement.setString(1, username);
+            return new User(hash, salt, balance,
+                    Reservation.read(statement.executeQuery(), withFlights));
+        }, null);
+    }
+
+    @Override
+    public User readPassword(String username) {
+        return transactions.execute(this::beginReadTransaction, tx -> {
+            getUserStatement.clearParameters();
+            getUserStatement.setString(1, username);
+            ResultSet userResult = getUserStatement.executeQuery();
+            if (!userResult.next()) {
+                return null;
+            }
+            return new User(userResult.getBytes("pass"), userResult.getBytes("salt"),
+                    userResult.getInt("balance"), Collections.emptyList());
+        }, null);
+    }
+
+    @Override
+    public boolean createUser(String username, byte[] hash, byte[] salt, int balance) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            checkUserExistsStatement.clearParameters();
+            checkUserExistsStatement.setString(1, username);
+            ResultSet existsResult = checkUserExistsStatement.executeQuery();
+            if (existsResult.isBeforeFirst()) {
+                tx.setRollbackOnly();
+                return false;
+            }
+            createUserStatement.clearParameters();
+            createUserStatement.setString(1, username);
+            createUserStatement.setBytes(2, hash);
+            createUserStatement.setBytes(3, salt);
+            createUserStatement.setInt(4, balance);
+            createUserStatement.execute();
+            return true;
+        }, false);
+    }
+
+    @Override
+    public void updatePassword(String username, byte[] oldHash, byte[] hash, byte[] salt) {
+        try {
+            acquire();
+            updatePasswordStatement.clearParameters();
+            updatePasswordStatement.setBytes(1, hash);
+            updatePasswordStatement.setBytes(2, salt);
+            updatePasswordStatement.setString(3, username);
+            updatePasswordStatement.setBytes(4, oldHash);
+            updatePasswordStatement.executeUpdate();
+        } catch (SQLException ex) {
+            // Upgraded on a later login
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public boolean searchesFlights() {
+        return true;
+    }
+
+    /**
+     * Searches the Flights table
+     */
+    @Override
+    public FlightSearch searchFlights(String originCity, String destinationCity,
+                                      boolean directFlight, int dayOfMonth, int limit) {
+        return transactions.execute(this::beginReadTransaction, tx -> {
+            FlightSearch found = new FlightSearch();
+            searchFlightsTable(found, originCity, destinationCity, directFlight, dayOfMonth,
+                    limit);
+            return found;
+        }, null);
+    }
+
+    private void searchFlightsTable(FlightSearch found, String originCity,
+                                    String destinationCity, boolean directFlight,
+                                    int dayOfMonth, int numberOfItineraries)
+            throws SQLException {
+        // In parallel mode the one-stop query starts right away on a second pooled
+        // connection, asking for a full page since the number of direct flights is not
+        // known yet. It only runs if a connection is free at once, a search never waits
+        // for a second one while holding its first
+        OneStopQuery speculative = null;
+        ConnectionPool.Lease searchLease = PARALLEL_SEARCH && !directFlight &&
+                numberOfItineraries > 0 ? connectionPool.tryBorrow() : null;
+        if (searchLease != null) {
+            OneStopQuery query = new OneStopQuery();
+            Query.ReadIsolation isolation = readIsolation;
+            query.result = searchExecutor.submit(() -> {
+                // Its own read transaction at the session's read isolation. A connection
+                // given back inside it is rolled back by the pool
+                try (ConnectionPool.Lease oneStopLease = searchLease) {
+                    Connection connection = oneStopLease.connection();
+                    connection.setAutoCommit(false);
+                    oneStopLease.prepare(isolation.beginSql).executeUpdate();
+                    PreparedStatement statement = oneStopLease.prepare(GET_INTERMEDIATE_FLIGHT);
+                    query.statement = statement;
+                    if (query.abandoned) {
+                        return null;
+                    }
+                    Map<Integer, Integer> booked = new HashMap<>();
+                    List<Query.Itinerary> itineraries = queryConnections(statement, originCity,
+                            destinationCity, dayOfMonth, numberOfItineraries, booked);
+                    oneStopLease.prepare(COMMIT_SQL).executeUpdate();
+                    connection.setAutoCommit(true);
+                    return new SpeculativeSearch(itineraries, booked);
+                } finally {
+                    query.statement = null;
+                }
+            });
+            speculative = query;
+        }
+
+        try {
+            searchDirectFlights(found, originCity, destinationCity, dayOfMonth,
+                    numberOfItineraries);
+        } catch (SQLException ex) {
+            if (speculative != null) {
+                abandonConnections(speculative);
+            }
+            throw ex;
+        }
+
+        // If the user enabled indirect flights and the max number of results hasn't been found,
+        // then search for more indirect flights
+        int itineraryNum = found.direct.size();
+        if (!directFlight && itineraryNum < numberOfItineraries) {
+            List<Query.Itinerary> indirect;
+            if (speculative != null) {
+                indirect = awaitConnections(speculative, found.booked);
+            } else {
+                indirect = queryConnections(getIntermediateFlightStatement, originCity,
+                        destinationCity, dayOfMonth, numberOfItineraries - itineraryNum,
+                        found.booked);
+            }
+
+            // The speculative query asked for a full page, keep what the direct flights left
+            for (Query.Itinerary i : indirect) {
+                if (itineraryNum == numberOfItineraries) {
+                    break;
+                }
+                found.indirect.add(i);
+                itineraryNum++;
+            }
+        } else if (speculative != null) {
+            // Enough direct flights were found, the one-stop query is not needed
+            abandonConnections(speculative);
+        }
+    }
+
+    /**
+     * Cancels a speculative one-stop query. Its connection goes back to the pool once the
+     * query stops, without this session waiting for it.
+     */
+    private static void abandonConnections(OneStopQuery speculative) {
+        // Not cancelled through its future, it has to run to give back its connection
+        speculative.abandoned = true;
+        PreparedStatement statement = speculative.statement;
+        if (statement != null) {
+            try {
+                statement.cancel();
+            } catch (SQLException ex) {
+                // Finished already
+            }
+        }
+    }
+
+    /**
+     * Runs GET_FLIGHT and adds the direct flights to the search results
+     */
+    private void searchDirectFlights(FlightSearch found, String originCity,
+                                     String destinationCity, int dayOfMonth,
+                                     int numberOfItineraries) throws SQLException {
+        getFlightStatement.clearParameters();
+        getFlightStatement.setInt(1, numberOfItineraries);
+        getFlightStatement.setString(2, originCity);
+        getFlightStatement.setString(3, destinationCity);
+        getFlightStatement.setInt(4, dayOfMonth);
+
+        // Query for direct flights first
+        ResultSet directResult = getFlightStatement.executeQuery();
+
+        while (directResult.next()) {
+            Query.Flight f = new Query.Flight();
+            // Retrieve all necessary data about the flight and store in flight object
+            f.fid = directResult.getInt("fid");
+            f.dayOfMonth = directResult.getInt("day_of_month");
+            f.carrierId = directResult.getString("carrier_id");
+            f.flightNum = directResult.getString("flight_num");
+            f.originCity = directResult.getString("origin_city");
+            f.destCity = directResult.getString("dest_city");
+            f.time = directResult.getInt("actual_time");
+            f.capacity = directResult.getInt("capacity");
+            f.price = directResult.getInt("price");
+
+            // Store flight and important data in itinerary object
+            Query.Itinerary direct = new Query.Itinerary(f);
+
+            // The number of bookings for this flight is joined into the row
+            found.booked.put(f.fid, directResult.getInt("booked"));
+            int fCapacity = f.capacity - found.booked.get(f.fid);
+
+            if (fCapacity < 1) {
+                direct.full = true;
+            }
+
+            // Add the itinerary to the direct flight search results
+            found.direct.add(direct);
+        }
+    }
+
+    /**
+     * Runs GET_INTERMEDIATE_FLIGHT on the given statement and reads the one-stop itineraries.
+     *
+     * @param booked receives the booked seat count of every leg read
+     */
+    private static List<Query.Itinerary> queryConnections(PreparedStatement statement,
+                                                          String originCity,
+                                                          String destinationCity,
+                                                          int dayOfMonth, int limit,
+                                                          Map<Integer, Integer> booked)
+            throws SQLException {
+        List<Query.Itinerary> results = new ArrayList<>();
+        statement.clearParameters();
+        statement.setString(1, originCity);
+        statement.setInt(2, dayOfMonth);
+        statement.setInt(3, limit);
+        statement.setString(4, destinationCity);
+        statement.setInt(5, dayOfMonth);
+
+        // Query for the indirect flight
+        ResultSet intermediateResult = statement.executeQuery();
+
+        while (intermediateResult.next()) {
+            Query.Flight f1 = new Query.Flight();
+            Query.Flight f2 = new Query.Flight();
+
+            // Retrieve all necessary information about the first flight
+            f1.fid = intermediateResult.getInt("s_fid");
+            f1.dayOfMonth = intermediateResult.getInt("s_day_of_month");
+            f1.carrierId = intermediateResult.getString("s_carrier_id");
+            f1.flightNum = intermediateResult.getString("s_flight_num");
+            f1.originCity = intermediateResult.getString("s_origin_city");
+            f1.destCity = intermediateResult.getString("s_dest_city");
+            f1.time = intermediateResult.getInt("s_actual_time");
+            f1.capacity = intermediateResult.getInt("s_capacity");
+            f1.price = intermediateResult.getInt("s_price");
+
+            // Retrieve all necessary information about the second flight
+            f2.fid = intermediateResult.getInt("f_fid");
+            f2.dayOfMonth = intermediateResult.getInt("f_day_of_month");
+            f2.carrierId = intermediateResult.getString("f_carrier_id");
+            f2.flightNum = intermediateResult.getString("f_flight_num");
+            f2.originCity = intermediateResult.getString("f_origin_city");
+            f2.destCity = intermediateResult.getString("f_dest_city");
+            f2.time = intermediateResult.getInt("f_actual_time");
+            f2.capacity = intermediateResult.getInt("f_capacity");
+            f2.price = intermediateResult.getInt("f_price");
+
+            // Store flights and important data in itinerary object
+            Query.Itinerary indirect = new Query.Itinerary(f1, f2);
+
+            // The number of bookings for both flights is joined into the row
+            booked.put(f1.fid, intermediateResult.getInt("s_booked"));
+            booked.put(f2.fid, intermediateResult.getInt("f_booked"));
+            int f1Capacity = f1.capacity - booked.get(f1.fid);
+            int f2Capacity = f2.capacity - booked.get(f2.fid);
+
+            if (f1Capacity < 1 || f2Capacity < 1) {
+                indirect.full = true;
+            }
+
+            // Add itinerary to indirect search results
+            results.add(indirect);
+        }
+        return results;
+    }
+
+    /**
+     * Waits for a speculative one-stop query and folds its booked seat counts into this
+     * search's
+     */
+    private static List<Query.Itinerary> awaitConnections(OneStopQuery speculative,
+                                                          Map<Integer, Integer> booked)
+            throws SQLException {
+        try {
+            SpeculativeSearch result = speculative.result.get();
+            booked.putAll(result.booked);
+            return result.itineraries;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the one-stop query", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new SQLException("One-stop query failed", ex.getCause());
+        }
+    }
+
+    /**
+     * A one-stop query running on a second pooled connection for one search
+     */
+    private static class OneStopQuery {
+        Future<SpeculativeSearch> result;
+        // Set while the query runs, so it can be cancelled
+        volatile PreparedStatement statement;
+        // Set when the search no longer needs the result
+        volatile boolean abandoned;
+    }
+
+    /**
+     * Result of a one-stop query run on a second pooled connection
+     */
+    private static class SpeculativeSearch {
+        final List<Query.Itinerary> itineraries;
+        final Map<Integer, Integer> booked;
+
+        SpeculativeSearch(List<Query.Itinerary> itineraries, Map<Integer, Integer> booked) {
+            this.itineraries = itineraries;
+            this.booked = booked;
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> bookedCounts(Collection<Integer> fids) throws SQLException {
+        if (seatInventory != null) {
+            return seatInventory.bookedCounts(fids);
+        } else if (fids.isEmpty()) {
+            return new HashMap<>();
+        }
+        Map<Integer, Integer> booked = transactions.execute(this::beginReadTransaction,
+                tx -> getBookedCapacities(fids), null);
+        if (booked == null) {
+            throw new SQLException("Could not read the booked seats");
+        }
+        return booked;
+    }
+
+    private Map<Integer, Integer> getBookedCapacities(Collection<Integer> fids)
+            throws SQLException {
+        StringBuilder fidList = new StringBuilder();
+        for (int fid : fids) {
+            if (fidList.length() > 0) {
+                fidList.append(',');
+            }
+            fidList.append(fid);
+        }
+
+        Map<Integer, Integer> booked = new HashMap<>();
+        getBookedCapacitiesStatement.clearParameters();
+        getBookedCapacitiesStatement.setString(1, fidList.toString());
+        ResultSet capacityResult = getBookedCapacitiesStatement.executeQuery();
+        while (capacityResult.next()) {
+            booked.put(capacityResult.getInt("fid"), capacityResult.getInt("capacity"));
+        }
+        return booked;
+    }
+
+    @Override
+    public int book(String username, Query.Itinerary i) {
+        return optimistic ? bookOptimistic(username, i) : bookSerializable(username, i);
+    }
+
+    /**
+     * Books an itinerary in a serializable transaction
+     */
+    private int bookSerializable(String username, Query.Itinerary i) {
+        return transactions.execute(this::beginTransaction, tx -> {
+            if (!holdSeats(tx, i)) {
+                tx.setRollbackOnly();
+                return FULL;
+            }
+
+            int reservationId = bookItinerary(username, i);
+            if (reservationId >= 0) {
+                return reservationId;
+            }
+
+            // Nothing was written, find out whether it was the day or the seats
+            tx.setRollbackOnly();
+            checkReservationDayExistsStatement.clearParameters();
+            checkReservationDayExistsStatement.setString(1, username);
+            checkReservationDayExistsStatement.setInt(2, i.dayOfMonth);
+            if (checkReservationDayExistsStatement.executeQuery().isBeforeFirst()) {
+                return SAME_DAY;
+            }
+            return FULL;
+        }, FAILED);
+    }
+
+    /**
+     * Takes a seat on every leg from the seat inventory, if there is one, and gives them
+     * back unless the transaction commits
+     *
+     * @return false if a leg is full
+     */
+    private boolean holdSeats(TransactionExecutor.Transaction tx, Query.Itinerary i) {
+        if (seatInventory == null) {
+            return true;
+        }
+        int[] fids = new int[i.numFlights];
+        for (int leg = 0; leg < fids.length; leg++) {
+            fids[leg] = i.fid(leg);
+        }
+        if (!seatInventory.tryBook(fids)) {
+            return false;
+        }
+        tx.afterRollback(() -> seatInventory.release(fids));
+        return true;
+    }
+
+    /**
+     * Runs BOOK_ITINERARY for an itinerary
+     *
+     * @return the new reservation ID, or -1 if the user already has a reservation that day
+     * or a leg is full
+     */
+    private int bookItinerary(String username, Query.Itinerary i) throws SQLException {
+        String sql = bookItinerarySql.computeIfAbsent(i.numFlights, numFlights -> {
+            StringBuilder legs = new StringBuilder();
+            for (int leg = 0; leg < numFlights; leg++) {
+                legs.append(leg == 0 ? "" : ", ").append('(').append(leg).append(", ?, ?)");
+            }
+            // The seat inventory admits the seats itself and writes Flights_Capacity later
+            boolean countSeats = seatInventory == null;
+            return String.format(BOOK_ITINERARY, legs,
+                    countSeats ? BOOK_ITINERARY_SEATS_LEFT : "",
+                    countSeats ? BOOK_ITINERARY_TAKE_SEATS : "");
+        });
+        PreparedStatement statement = lease.prepare(sql);
+
+        statement.clearParameters();
+        int p = 1;
+        for (int leg = 0; leg < i.numFlights; leg++) {
+            statement.setInt(p++, i.fid(leg));
+            statement.setInt(p++, i.capacity(leg));
+        }
+        statement.setString(p++, username);
+        statement.setInt(p++, i.dayOfMonth);
+        statement.setInt(p++, i.totalCost);
+        // fid1 and fid2 keep the first two legs, every leg goes in Flights_Reservation_Legs
+        statement.setInt(p++, i.fid(0));
+        statement.setInt(p++, i.numFlights >= 2 ? i.fid(1) : -1);
+        statement.setString(p++, username);
+        statement.setInt(p, i.dayOfMonth);
+
+        ResultSet rid = resultOf(statement);
+        return rid != null && rid.next() ? rid.getInt("rid") : -1;
+    }
+
+    /**
+     * Books an itinerary without serializable locks. The user's version is claimed before
+     * the reservation is written, so two bookings of the same user serialize on it and the
+     * same-day check cannot be raced. Seats are taken with a conditional update that only
+     * succeeds while the flight has room.
+     */
+    private int bookOptimistic(String username, Query.Itinerary i) {
+        return transactions.execute(this::beginOptimisticTransaction, tx -> {
+            // Two first bookings on a flight race to insert its Flights_Capacity row
+            tx.retryOn(TransactionExecutor.Failure.CONSTRAINT);
+
+            getUserVersionStatement.clearParameters();
+            getUserVersionStatement.setString(1, username);
+            ResultSet user = getUserVersionStatement.executeQuery();
+            if (!user.next()) {
+                tx.setRollbackOnly();
+                return FAILED;
+            }
+            int userVersion = user.getInt("version");
+
+            checkReservationDayExistsStatement.clearParameters();
+            checkReservationDayExistsStatement.setString(1, username);
+            checkReservationDayExistsStatement.setInt(2, i.dayOfMonth);
+            if (checkReservationDayExistsStatement.executeQuery().isBeforeFirst()) {
+                return SAME_DAY;
+            }
+
+            claimUserVersionStatement.clearParameters();
+            claimUserVersionStatement.setString(1, username);
+            claimUserVersionStatement.setInt(2, userVersion);
+            if (claimUserVersionStatement.executeUpdate() == 0) {
+                return tx.retry();
+            }
+
+            if (!holdSeats(tx, i)) {
+                tx.setRollbackOnly();
+                return FULL;
+            }
+            if (seatInventory == null) {
+                for (int leg = 0; leg < i.numFlights; leg++) {
+                    if (!takeSeat(i.fid(leg), i.capacity(leg))) {
+                        tx.setRollbackOnly();
+                        return FULL;
+                    }
+                }
+            }
+
+            int reservationId = insertReservation(username, i);
+            if (reservationId < 0) {
+                tx.setRollbackOnly();
+                return FAILED;
+            }
+            return reservationId;
+        }, FAILED);
+    }
+
+    /**
+     * Takes a seat on a flight if it has one left
+     *
+     * @return false if the flight is full
+     */
+    private boolean takeSeat(int fid, int capacity) throws SQLException {
+        takeSeatStatement.clearParameters();
+        takeSeatStatement.setInt(1, fid);
+        takeSeatStatement.setInt(2, capacity);
+        if (takeSeatStatement.executeUpdate() > 0) {
+            return true;
+        }
+        takeFirstSeatStatement.clearParameters();
+        takeFirstSeatStatement.setInt(1, fid);
+        takeFirstSeatStatement.setInt(2, capacity);
+        takeFirstSeatStatement.setInt(3, fid);
+        return takeFirstSeatStatement.executeUpdate() > 0;
+    }
+
+    /**
+     * Inserts an unpaid reservation for the itinerary and every one of its legs
+     *
+     * @return the new reservation ID, or -1 if none was generated
+     */
+    private int insertReservation(String username, Query.Itinerary i) throws SQLException {
+        bookReservationStatement.clearParameters();
+        bookReservationStatement.setString(1, username);
+        bookReservationStatement.setInt(2, 0);
+        bookReservationStatement.setInt(3, i.dayOfMonth);
+        bookReservationStatement.setInt(4, i.totalCost);
+        // fid1 and fid2 keep the first two legs, every leg goes in Flights_Reservation_Legs
+        bookReservationStatement.setInt(5, i.fid(0));
+        bookReservationStatement.setInt(6, i.numFlights >= 2 ? i.fid(1) : -1);
+        if (bookReservationStatement.executeUpdate() == 0) {
+            return -1;
+        }
+
+        int reservationId;
+        try (ResultSet generatedKeys = bookReservationStatement.getGeneratedKeys()) {
+            if (!generatedKeys.next()) {
+                return -1;
+            }
+            reservationId = generatedKeys.getInt(1);
+        }
+        for (int leg = 0; leg < i.numFlights; leg++) {
+            insertReservationLegStatement.clearParameters();
+            insertReservationLegStatement.setInt(1, reservationId);
+            insertReservationLegStatement.setInt(2, leg);
+            insertReservationLegStatement.setInt(3, i.fid(leg));
+            insertReservationLegStatement.executeUpdate();
+        }
+        return reservationId;
+    }
+
+    @Override
+    public Payment pay(String username, int reservationId) {
+        return transactions.execute(beginWrite(), tx -> {
+            payReservationStatement.clearParameters();
+            payReservationStatement.setString(1, username);
+            payReservationStatement.setInt(2, reservationId);
+            payReservationStatement.setInt(3, reservationId);
+            payReservationStatement.setString(4, username);
+            payReservationStatement.setInt(5, reservationId);
+            payReservationStatement.setString(6, username);
+            ResultSet payResult = resultOf(payReservationStatement);
+            if (payResult == null || !payResult.next()) {
+                tx.setRollbackOnly();
+                return null;
+            }
+
+            int remaining = payResult.getInt("remaining");
+            boolean paid = !payResult.wasNull();
+            int price = payResult.getInt("price");
+            if (paid) {
+                return new Payment(Payment.Status.PAID, remaining, price, 1);
+            }
+            // Nothing was paid, either there is no unpaid reservation or not enough money
+            if (payResult.wasNull() || payResult.getInt("paid") == 1) {
+                return new Payment(Payment.Status.NOT_FOUND, 0, 0, 0);
+            }
+            return new Payment(Payment.Status.INSUFFICIENT, payResult.getInt("balance"), price,
+                    0);
+        }, null);
+    }
+
+    @Override
+    public Payment payAll(String username) {
+        return transactions.execute(beginWrite(), tx -> {
+            payAllReservationsStatement.clearParameters();
+            payAllReservationsStatement.setString(1, username);
+            payAllReservationsStatement.setString(2, username);
+            payAllReservationsStatement.setString(3, username);
+            payAllReservationsStatement.setString(4, username);
+            ResultSet payResult = resultOf(payAllReservationsStatement);
+            if (payResult == null || !payResult.next()) {
+                tx.setRollbackOnly();
+                return null;
+            }
+
+            int due = payResult.getInt("due");
+            if (due == 0) {
+                return new Payment(Payment.Status.NOTHING_DUE, 0, 0, 0);
+            }
+            int total = payResult.getInt("total");
+            int remaining = payResult.getInt("remaining");
+            if (payResult.wasNull()) {
+                return new Payment(Payment.Status.INSUFFICIENT, payResult.getInt("balance"),
+                        total, 0);
+            }
+            return new Payment(Payment.Status.PAID, remaining, total, due);
+        }, null);
+    }
+
+    @Override
+    public List<Integer> cancel(String username, int reservationId) {
+        return transactions.execute(beginWrite(), tx -> {
+            cancelReservationStatement.clearParameters();
+            cancelReservationStatement.setInt(1, reservationId);
+            cancelReservationStatement.setString(2, username);
+            cancelReservationStatement.setInt(3, reservationId);
+            cancelReservationStatement.setString(4, username);
+
+            List<Integer> fids = new ArrayList<>();
+            ResultSet legs = resultOf(cancelReservationStatement);
+            while (legs != null && legs.next()) {
+                fids.add(legs.getInt("fid"));
+            }
+            if (fids.isEmpty()) {
+                return fids;
+            }
+
+            tx.afterCommit(() -> {
+                if (seatInventory != null) {
+                    for (int fid : fids) {
+                        seatInventory.release(fid);
+                    }
+                }
+                if (COMPACT_CAPACITY_EVERY > 0 &&
+                        cancels.incrementAndGet() % COMPACT_CAPACITY_EVERY == 0) {
+                    compactCapacity();
+                }
+            });
+            return fids;
+        }, null);
+    }
+
+    /**
+     * Drops the zero seat counts left in Flights_Capacity, in a transaction of its own. A
+     * booking that races the delete either keeps its row or inserts a new one.
+     */
+    private void compactCapacity() {
+        transactions.execute(this::beginOptimisticTransaction, tx -> {
+            compactCapacityStatement.executeUpdate();
+            return null;
+        }, null);
+    }
+
+    /**
+     * Runs a statement batch and returns its first result set, skipping any update counts
+     * ahead of it
+     *
+     * @return null if the batch returned no result set
+     */
+    private static ResultSet resultOf(PreparedStatement statement) throws SQLException {
+        boolean isResultSet = statement.execute();
+        while (!isResultSet && statement.getUpdateCount() != -1) {
+            isResultSet = statement.getMoreResults();
+        }
+        return isResultSet ? statement.getResultSet() : null;
+    }
+
+    /**
+     * Begins book, pay and cancel transactions: serializable, or read committed in
+     * optimistic mode
+     */
+    private TransactionExecutor.Step beginWrite() {
+        return optimistic ? this::beginOptimisticTransaction : this::beginTransaction;
+    }
+}
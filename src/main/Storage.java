@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Where one session keeps users, reservations and booked seats. {@link Query} keeps the
+ * session itself, its messages and caches, and asks its storage for nothing but data, so
+ * every storage answers the same commands the same way.
+ * <p>
+ * Each method is one transaction of its own, run and retried inside the storage. A method
+ * that gives up returns null, or {@link #FAILED} for a booking, and leaves nothing
+ * written.
+ * <p>
+ * The flights.storage property picks the storage of a new session:
+ * <ul>
+ *   <li>{@code sqlserver}, the default: SQL Server, see {@link SqlServerStorage}</li>
+ *   <li>{@code jdbc}: any JDBC database in standard SQL, typically an embedded one seeded
+ *   from the flights CSV, see {@link JdbcStorage}</li>
+ *   <li>{@code memory}: collections in this process, see {@link MemoryStorage}</li>
+ * </ul>
+ */
+public interface Storage {
+
+    // Outcomes of book other than a reservation ID
+    int SAME_DAY = -1;
+    int FULL = -2;
+    int FAILED = -3;
+
+    /**
+     * A user's password hash, balance and reservations, as read in one transaction
+     */
+    class User {
+        final byte[] hash;
+        final byte[] salt;
+        final int balance;
+        final List<Reservation> reservations;
+
+        User(byte[] hash, byte[] salt, int balance, List<Reservation> reservations) {
+            this.hash = hash;
+            this.salt = salt;
+            this.balance = balance;
+            this.reservations = reservations;
+        }
+    }
+
+    /**
+     * A reservation and the fids of its legs, in order. The legs' flights are only read
+     * when asked for, otherwise they are null.
+     */
+    class Reservation {
+        final int rid;
+        final boolean paid;
+        final int price;
+        final int[] fids;
+        final Query.Flight[] flights;
+
+        Reservation(int rid, boolean paid, int price, int[] fids, Query.Flight[] flights) {
+            this.rid = rid;
+            this.paid = paid;
+            this.price = price;
+            this.fids = fids;
+            this.flights = flights;
+        }
+
+        /**
+         * Reads reservations from rows of one leg each, with columns rid, paid,
+         * total_price and fid, and with flights also the columns of the leg's flight. A
+         * reservation's legs follow each other in order.
+         */
+        static List<Reservation> read(ResultSet legs, boolean withFlights)
+                throws SQLException {
+            List<Reservation> reservations = new ArrayList<>();
+            List<Integer> fids = new ArrayList<>();
+            List<Query.Flight> flights = new ArrayList<>();
+            int reservationId = -1;
+            int price = 0;
+            boolean paid = false;
+            while (legs.next()) {
+                if (legs.getInt("rid") != reservationId) {
+                    if (reservationId != -1) {
+                        reservations.add(of(reservationId, paid, price, fids, flights,
+                                withFlights));
+                    }
+                    reservationId = legs.getInt("rid");
+                    price = legs.getInt("total_price");
+                    paid = legs.getInt("paid") > 0;
+                    fids.clear();
+                    flights.clear();
+                }
+                fids.add(legs.getInt("fid"));
+                if (withFlights) {
+                    Query.Flight f = new Query.Flight();
+                    f.fid = legs.getInt("fid");
+                    f.dayOfMonth = legs.getInt("day_of_month");
+                    f.carrierId = legs.getString("carrier_id");
+                    f.flightNum = legs.getString("flight_num");
+                    f.originCity = legs.getString("origin_city");
+                    f.destCity = legs.getString("dest_city");
+                    f.time = legs.getInt("actual_time");
+                    f.capacity = legs.getInt("capacity");
+                    f.price = legs.getInt("price");
+                    flights.add(f);
+                }
+            }
+            if (reservationId != -1) {
+                reservations.add(of(reservationId, paid, price, fids, flights, withFlights));
+            }
+            return reservations;
+        }
+
+        private static Reservation of(int reservationId, boolean paid, int price,
+                                      List<Integer> fids, List<Query.Flight> flights,
+                                      boolean withFlights) {
+            int[] legs = new int[fids.size()];
+            for (int leg = 0; leg < legs.length; leg++) {
+                legs[leg] = fids.get(leg);
+            }
+            return new Reservation(reservationId, paid, price, legs,
+                    withFlights ? flights.toArray(new Query.Flight[0]) : null);
+        }
+    }
+
+    /**
+     * Outcome of paying for one or every unpaid reservation
+     */
+    class Payment {
+        enum Status {PAID, NOT_FOUND, INSUFFICIENT, NOTHING_DUE}
+
+        final Status status;
+        // The balance left when paid, or the balance that fell short
+        final int balance;
+        // What was paid, or what the balance fell short of
+        final int cost;
+        // Reservations paid
+        final int count;
+
+        Payment(Status status, int balance, int cost, int count) {
+            this.status = status;
+            this.balance = balance;
+            this.cost = cost;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Itineraries found by a storage that searches the flights itself, each marked full
+     * or not, with the booked seat counts of their legs
+     */
+    class FlightSearch {
+        final List<Query.Itinerary> direct = new ArrayList<>();
+        final List<Query.Itinerary> indirect = new ArrayList<>();
+        final Map<Integer, Integer> booked = new HashMap<>();
+    }
+
+    /**
+     * @return a storage for a new session, of the kind the flights.storage property names
+     */
+    static Storage forSession() {
+        String kind = System.getProperty("flights.storage", "sqlserver");
+        switch (kind.toLowerCase(Locale.ROOT)) {
+            case "sqlserver":
+                return new SqlServerStorage();
+            case "jdbc":
+                return new JdbcStorage();
+            case "memory":
+                return MemoryStorage.shared();
+            default:
+                throw new IllegalArgumentException("Unknown flights.storage " + kind);
+        }
+    }
+
+    /**
+     * Makes sure the storage can be reached, setting it up the first time any session of
+     * the process asks
+     */
+    void open() throws IOException, SQLException;
+
+    /**
+     * Gives back anything this session still holds
+     */
+    void close();
+
+    /**
+     * Loads every non-canceled flight
+     */
+    FlightIndex loadFlightIndex() throws IOException, SQLException;
+
+    /**
+     * Lets the storage build what it shares across sessions on the flight index, once
+     */
+    default void useFlightIndex(FlightIndex index) throws SQLException {
+    }
+
+    /**
+     * @return whether {@link #searchFlights} works, so searches need no flight index
+     */
+    default boolean searchesFlights() {
+        return false;
+    }
+
+    /**
+     * Searches the flights for up to {@code limit} itineraries, direct flights first and
+     * one-stop flights after them, each list sorted by flight time. A storage that does
+     * not search the flights itself, see {@link #searchesFlights()}, always fails.
+     *
+     * @return the itineraries, or null if the search failed
+     */
+    default FlightSearch searchFlights(String originCity, String destinationCity,
+                                       boolean directFlight, int dayOfMonth, int limit) {
+        return null;
+    }
+
+    /**
+     * Reads a user and their reservations.
+     *
+     * @param withFlights also read the flight of every leg
+     * @return the user, or null if there is no such user or the read failed
+     */
+    User readUser(String username, boolean withFlights);
+
+    /**
+     * Reads a user's password hash, salt and balance, without their reservations, so a
+     * password can be checked before anything else is read
+     *
+     * @return the user with an empty list of reservations, or null if there is no such
+     * user or the read failed
+     */
+    User readPassword(String username);
+
+    /**
+     * Adds a user, unless one by that name exists
+     *
+     * @return false if the user exists or the write failed
+     */
+    boolean createUser(String username, byte[] hash, byte[] salt, int balance);
+
+    /**
+     * Replaces a user's password hash, unless it changed since {@code oldHash} was read.
+     * Nothing is reported, a hash that is not replaced keeps working.
+     */
+    void updatePassword(String username, byte[] oldHash, byte[] hash, byte[] salt);
+
+    /**
+     * Returns the number of seats already booked on each of the given flights. Flights
+     * without any bookings may be left out of the map.
+     */
+    Map<Integer, Integer> bookedCounts(Collection<Integer> fids) throws SQLException;
+
+    /**
+     * Books an unpaid reservation of every leg of an itinerary, unless the user already
+     * has a reservation that day or a leg is booked to capacity
+     *
+     * @return the new reservation ID, counting from 1 across all users, or
+     * {@link #SAME_DAY}, {@link #FULL} or {@link #FAILED}
+     */
+    int book(String username, Query.Itinerary itinerary);
+
+    /**
+     * Pays for an unpaid reservation of the user if their balance covers it
+     *
+     * @return the outcome, or null if the write failed
+     */
+    Payment pay(String username, int reservationId);
+
+    /**
+     * Pays for every unpaid reservation of the user, or for none if their balance does not
+     * cover the total
+     *
+     * @return the outcome, or null if the write failed
+     */
+    Payment payAll(String username);
+
+    /**
+     * Deletes a reservation of the user, refunds it if it was paid and gives back its
+     * seats
+     *
+     * @return the fids of its legs, empty if the user has no such reservation, or null if
+     * the write failed
+     */
+    List<Integer> cancel(String username, int reservationId);
+
+    /**
+     * Deletes every user, reservation and booked seat, and starts reservation IDs from 1
+     * again. The flights stay.
+     */
+    void clear() throws SQLException;
+
+    /**
+     * @return attempt and failure counts of this session's transactions, or null if the
+     * storage has no transactions to retry
+     */
+    default TransactionExecutor getTransactionMetrics() {
+        return null;
+    }
+}
@@ -0,0 +1,330 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a unit of work in a database transaction, and runs it again when it failed because
+ * of another transaction: a deadlock, a serialization failure, a lock timeout, or a
+ * conditional write the work itself found to have lost a race. Any other failure ends the
+ * work at once. Each retry first waits a random time of up to an exponentially growing
+ * bound, so two transactions that just deadlocked do not collide again straight away.
+ * <p>
+ * An executor belongs to one session, like the connection it runs on, and is not thread
+ * safe.
+ */
+public class TransactionExecutor {
+
+    /**
+     * Why an attempt failed
+     */
+    public enum Failure {
+        DEADLOCK(true),
+        SERIALIZATION(true),
+        LOCK_TIMEOUT(true),
+        CONSTRAINT(false),
+        // A conditional write found its row changed, reported with Transaction.retry()
+        CONFLICT(true),
+        OTHER(false);
+
+        final boolean retryable;
+
+        Failure(boolean retryable) {
+            this.retryable = retryable;
+        }
+    }
+
+    /**
+     * Begins, commits or rolls back a transaction on the session's connection
+     */
+    public interface Step {
+        void run() throws SQLException;
+    }
+
+    /**
+     * The work of one attempt. Its result is returned once the transaction commits.
+     */
+    public interface Work<T> {
+        T run(Transaction tx) throws SQLException;
+    }
+
+    /**
+     * Handle the work uses to steer the attempt it runs in
+     */
+    public static class Transaction {
+        private final int attempt;
+        private boolean rollbackOnly;
+        private boolean retry;
+        private final Set<Failure> alsoRetried = EnumSet.noneOf(Failure.class);
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private final List<Runnable> afterRollback = new ArrayList<>();
+
+        Transaction(int attempt) {
+            this.attempt = attempt;
+        }
+
+        /**
+         * @return the attempt this is, starting at 1
+         */
+        public int attempt() {
+            return attempt;
+        }
+
+        /**
+         * Rolls back instead of committing, and still returns the work's result
+         */
+        public void setRollbackOnly() {
+            rollbackOnly = true;
+        }
+
+        /**
+         * Rolls back and tries again, for a conditional write that changed no row. Returns
+         * null so the work can {@code return tx.retry();}
+         */
+        public <T> T retry() {
+            retry = true;
+            return null;
+        }
+
+        /**
+         * Also retries failures of a kind that is usually final, for work where that kind
+         * of failure can only come from a race
+         */
+        public void retryOn(Failure failure) {
+            alsoRetried.add(failure);
+        }
+
+        /**
+         * Runs once this attempt has committed
+         */
+        public void afterCommit(Runnable action) {
+            afterCommit.add(action);
+        }
+
+        /**
+         * Runs if this attempt does not commit, whether or not it is retried
+         */
+        public void afterRollback(Runnable action) {
+            afterRollback.add(action);
+        }
+
+        private boolean retries(Failure failure) {
+            return failure.retryable || alsoRetried.contains(failure);
+        }
+    }
+
+    private final Step commit;
+    private final Step rollback;
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    // Metrics
+    private long transactions = 0;
+    private long attempts = 0;
+    private long retries = 0;
+    private final long[] failures = new long[Failure.values().length];
+    // Transactions that finished after 1, 2, ... maxAttempts attempts
+    private final long[] attemptCounts;
+
+    /**
+     * @param commit            commits the session's transaction
+     * @param rollback          rolls back the session's transaction
+     * @param maxAttempts       most attempts of one unit of work
+     * @param baseBackoffMillis bound of the wait before the first retry, doubled for each
+     *                          retry after it
+     * @param maxBackoffMillis  largest bound of any wait
+     */
+    public TransactionExecutor(Step commit, Step rollback, int maxAttempts,
+                               long baseBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.commit = commit;
+        this.rollback = rollback;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.attemptCounts = new long[maxAttempts];
+    }
+
+    /**
+     * Runs the work in a transaction started by {@code begin}, retrying as needed.
+     *
+     * @param failed returned when the work failed for good or ran out of attempts
+     * @return the result of the attempt that committed, or that asked to roll back
+     */
+    public <T> T execute(Step begin, Work<T> work, T failed) {
+        transactions++;
+        for (int attempt = 1; ; attempt++) {
+            attempts++;
+            Transaction tx = new Transaction(attempt);
+            Failure failure;
+            boolean ended = false;
+            try {
+                begin.run();
+                T result = work.run(tx);
+                if (!tx.retry) {
+                    if (tx.rollbackOnly) {
+                        ended = true;
+                        rollbackQuietly();
+                        runAll(tx.afterRollback);
+                    } else {
+                        commit.run();
+                        ended = true;
+                        runAll(tx.afterCommit);
+                    }
+                    attemptCounts[attempt - 1]++;
+                    return result;
+                }
+                failure = Failure.CONFLICT;
+            } catch (SQLException ex) {
+                failure = classify(ex);
+            } catch (RuntimeException ex) {
+                // Not retried, but a transaction that did not end is still rolled back so
+                // its connection goes back
+                if (!ended) {
+                    rollbackQuietly();
+                    runAll(tx.afterRollback);
+                }
+                failures[Failure.OTHER.ordinal()]++;
+                attemptCounts[attempt - 1]++;
+                throw ex;
+            }
+
+            rollbackQuietly();
+            runAll(tx.afterRollback);
+            failures[failure.ordinal()]++;
+            if (!tx.retries(failure) || attempt == maxAttempts || !backoff(attempt)) {
+                attemptCounts[attempt - 1]++;
+                return failed;
+            }
+            retries++;
+        }
+    }
+
+    /**
+     * Classifies a failure by its vendor error code, for SQL Server, or else by its
+     * SQLState
+     */
+    public static Failure classify(SQLException ex) {
+        switch (ex.getErrorCode()) {
+            case 1205:
+                return Failure.DEADLOCK;
+            case 3960:
+            case 3961:
+                // Snapshot isolation update conflicts
+                return Failure.SERIALIZATION;
+            case 1222:
+                return Failure.LOCK_TIMEOUT;
+            case 2627:
+            case 2601:
+            case 547:
+                // Primary key, unique index and foreign key or check violations
+                return Failure.CONSTRAINT;
+            default:
+                break;
+        }
+
+        String state = ex.getSQLState();
+        if (state != null) {
+            if (state.equals("40P01")) {
+                return Failure.DEADLOCK;
+            } else if (state.equals("40001")) {
+                return Failure.SERIALIZATION;
+            } else if (state.equals("55P03")) {
+                return Failure.LOCK_TIMEOUT;
+            } else if (state.startsWith("23")) {
+                return Failure.CONSTRAINT;
+            }
+        }
+        if (ex instanceof SQLTransactionRollbackException) {
+            return Failure.SERIALIZATION;
+        } else if (ex instanceof SQLIntegrityConstraintViolationException) {
+            return Failure.CONSTRAINT;
+        }
+        return Failure.OTHER;
+    }
+
+    /**
+     * Waits before the next attempt, for a random time up to a bound that doubles with
+     * every attempt
+     *
+     * @return false if interrupted while waiting
+     */
+    private boolean backoff(int attempt) {
+        long bound = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+        if (bound <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void rollbackQuietly() {
+        try {
+            rollback.run();
+        } catch (SQLException ex) {
+            // No transaction left to roll back, the server may already have ended it
+        }
+    }
+
+    private static void runAll(List<Runnable> actions) {
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * @return units of work run
+     */
+    public long getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * @return attempts made, first attempts included
+     */
+    public long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return attempts that failed and were tried again
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return attempts that failed the given way, retried or not
+     */
+    public long getFailures(Failure failure) {
+        return failures[failure.ordinal()];
+    }
+
+    /**
+     * @return how many units of work finished, committed or not, after 1, 2, ... attempts
+     */
+    public long[] getAttemptCounts() {
+        return attemptCounts.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(transactions).append(" transactions, ").append(attempts).append(" attempts, ")
+                .append(retries).append(" retries");
+        for (Failure failure : Failure.values()) {
+            if (failures[failure.ordinal()] > 0) {
+                sb.append(", ").append(failures[failure.ordinal()]).append(' ')
+                        .append(failure.name().toLowerCase(Locale.ROOT));
+            }
+        }
+        return sb.toString();
+    }
+}
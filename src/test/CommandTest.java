@@ -0,0 +1,117 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that Command splits commands exactly like the regular expression tokenizer it
+ * replaced, and that it parses ints without ever overflowing
+ */
+public class CommandTest {
+
+  /** The tokenizer FlightService used before Command */
+  private static List<String> regexTokens(String command) {
+    Matcher m = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(command.trim());
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  private static List<String> words(Command c) {
+    List<String> words = new ArrayList<>();
+    for (int i = 0; i <= c.argCount(); i++) {
+      words.add(c.arg(i));
+    }
+    return words;
+  }
+
+  @Test
+  public void splitsLikeTheRegexTokenizer() {
+    String[] commands = {
+        "", "   ", "\t\n", "login user1 pass1", "  login   user1\tpass1  ",
+        "search \"Seattle WA\" \"Boston MA\" 1 1 1", "search \"Seattle WA\"\"Boston MA\" 0 1 1",
+        "x \"\" y", "a\"b\"c", "\"abc", "\"a b\"c d", "x \"a\tb\" \"unclosed", "a\"",
+        "\"a\"\"b\"", " \"  \" ", "x\u000By", "x\u0000y", "\u0000x ", "pay \"all\"",
+    };
+    Command c = new Command();
+    for (String command : commands) {
+      assertEquals("words of [" + command + "]", regexTokens(command), words(c.parse(command)));
+    }
+  }
+
+  @Test
+  public void namesItsOp() {
+    Command c = new Command();
+    assertEquals(Command.Op.NONE, c.parse("  ").op());
+    assertEquals(Command.Op.LOGIN, c.parse("login a b").op());
+    assertEquals(Command.Op.SEARCH, c.parse("search a b 1 1 1").op());
+    assertEquals(Command.Op.PAY, c.parse("pay 3").op());
+    assertEquals(Command.Op.PAY_ALL, c.parse("pay all").op());
+    assertEquals(Command.Op.PAY_ALL, c.parse("pay \"all\"").op());
+    assertEquals(Command.Op.PAY, c.parse("pay all now").op());
+    assertEquals(Command.Op.QUIT, c.parse("quit").op());
+    assertEquals(Command.Op.UNKNOWN, c.parse("Login a b").op());
+    assertEquals(Command.Op.UNKNOWN, c.parse("logins").op());
+    // The old tokenizer split this into login and x too
+    assertEquals(Command.Op.LOGIN, c.parse("\"login\"x").op());
+  }
+
+  @Test
+  public void parsesIntsLikeIntegerParseInt() {
+    String[] words = {
+        "0", "7", "-7", "+7", "007", "2147483647", "-2147483648", "2147483648", "-2147483649",
+        "99999999999", "-", "+", "", "1x", "x1", "1.5", " 1", "--1", "+-1", "\u0661\u0662",
+    };
+    Command c = new Command();
+    for (String word : words) {
+      c.parse("book \"" + word + "\"");
+      Integer expected;
+      try {
+        expected = Integer.parseInt(word);
+      } catch (NumberFormatException e) {
+        expected = null;
+      }
+      assertEquals("[" + word + "] is a number", expected != null, c.isNumber(1));
+      if (expected != null) {
+        assertEquals("value of [" + word + "]", (long) expected, c.number(1));
+      }
+    }
+  }
+
+  @Test
+  public void forgetsThePreviousCommand() {
+    Command c = new Command();
+    c.parse("search \"A B\" \"C D\" 1 5 10");
+    assertTrue(c.isNumber(4));
+    c.parse("book x");
+    assertEquals(1, c.argCount());
+    assertFalse(c.isNumber(1));
+    c.parse("");
+    assertEquals(-1, c.argCount());
+    assertEquals(Command.Op.NONE, c.op());
+  }
+
+  @Test
+  public void countsWordsBeyondThoseItKeeps() {
+    Command c = new Command();
+    c.parse("search a b c d e f g h i j k");
+    assertEquals(11, c.argCount());
+    assertEquals("a", c.arg(1));
+  }
+
+  @Test
+  public void malformedNumbersAreReportedNotThrown() {
+    Query q = new Query(new MemoryStorage());
+    assertEquals("Failed to parse integer", FlightService.execute(q, "book 99999999999"));
+    assertEquals("Failed to parse integer", FlightService.execute(q, "pay x"));
+    assertEquals("Failed to parse integer", FlightService.execute(q, "cancel 1.5"));
+    assertEquals("Failed to parse integer", FlightService.execute(q, "create u p lots"));
+    assertEquals("Cannot book reservations, not logged in\n", FlightService.execute(q, "book 1"));
+  }
+}
@@ -0,0 +1,89 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares serializable and optimistic book, pay and cancel under contention. Every session
+ * books one of a few seats on the same flight, pays for it and cancels it again, so
+ * sessions race for the same capacity row, and pairs of sessions share a user so their
+ * balance and reservations race too.
+ * <p>
+ * Runs against the database in dbconn.properties and clears its tables first. Run with
+ * {@code java ConcurrencyBenchmark [sessions] [seconds]}.
+ */
+public class ConcurrencyBenchmark {
+    private static final String ORIGIN = "Seattle WA";
+    private static final String DESTINATION = "Boston MA";
+    private static final int DAY = 1;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.printf("%-12s %12s %12s %12s %12s%n", "mode", "operations/s", "failed",
+                "aborts", "abort rate");
+        for (boolean optimistic : new boolean[]{false, true}) {
+            run(optimistic, sessions, seconds);
+        }
+    }
+
+    private static void run(boolean optimistic, int sessions, int seconds) throws Exception {
+        Query setup = new Query();
+        setup.openConnection();
+        setup.prepareStatements();
+        setup.clearTables();
+        for (int u = 0; u < (sessions + 1) / 2; u++) {
+            setup.transaction_createCustomer("bench" + u, "bench", 1000000);
+        }
+        setup.closeConnection();
+
+        AtomicLong operations = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            String user = "bench" + s / 2;
+            workers.add(pool.submit(() -> {
+                Query q = new Query();
+                q.openConnection();
+                q.prepareStatements();
+                q.setOptimistic(optimistic);
+                q.transaction_login(user, "bench");
+                while (System.nanoTime() < deadline) {
+                    q.transaction_search(ORIGIN, DESTINATION, true, DAY, 1);
+                    String booked = q.transaction_book(0);
+                    operations.incrementAndGet();
+                    if (!booked.startsWith("Booked")) {
+                        failures.incrementAndGet();
+                        continue;
+                    }
+                    int rid = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1)
+                            .trim());
+                    if (!q.transaction_pay(rid).startsWith("Paid")) {
+                        failures.incrementAndGet();
+                    }
+                    if (!q.transaction_cancel(rid).startsWith("Canceled")) {
+                        failures.incrementAndGet();
+                    }
+                    operations.addAndGet(2);
+                }
+                aborts.addAndGet(q.getAborts());
+                q.closeConnection();
+                return null;
+            }));
+        }
+        for (Future<?> f : workers) {
+            f.get();
+        }
+        pool.shutdown();
+
+        long attempts = operations.get() + aborts.get();
+        System.out.printf("%-12s %12.1f %12d %12d %11.1f%%%n",
+                optimistic ? "optimistic" : "serializable",
+                operations.get() / (double) seconds, failures.get(), aborts.get(),
+                attempts > 0 ? 100.0 * aborts.get() / attempts : 0);
+    }
+}
@@ -0,0 +1,126 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads records through CsvReader, covering quoting, line endings and int fields
+ */
+public class CsvReaderTest {
+
+  private static List<List<String>> read(String text) throws IOException {
+    List<List<String>> records = new ArrayList<>();
+    try (CsvReader in = new CsvReader(new StringReader(text))) {
+      while (in.next()) {
+        List<String> fields = new ArrayList<>();
+        for (int i = 0; i < in.fieldCount(); i++) {
+          fields.add(in.get(i));
+        }
+        records.add(fields);
+      }
+    }
+    return records;
+  }
+
+  private static CsvReader first(String text) throws IOException {
+    CsvReader in = new CsvReader(new StringReader(text));
+    assertTrue(in.next());
+    return in;
+  }
+
+  @Test
+  public void splitsFieldsAndRecords() throws IOException {
+    assertEquals(Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("d", "", "f")),
+        read("a,b,c\nd,,f\n"));
+  }
+
+  @Test
+  public void acceptsEveryLineEnding() throws IOException {
+    List<List<String>> expected = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c"),
+        Arrays.asList("d"));
+    assertEquals(expected, read("a,b\nc\nd"));
+    assertEquals(expected, read("a,b\r\nc\r\nd\r\n"));
+    assertEquals(expected, read("\n\r\na,b\r\n\r\nc\n\nd\n\n"));
+  }
+
+  @Test
+  public void unquotesFields() throws IOException {
+    assertEquals(Arrays.asList(Arrays.asList("Seattle, WA", "say \"hi\"", "", "x")),
+        read("\"Seattle, WA\",\"say \"\"hi\"\"\",\"\",x\n"));
+    assertEquals(Arrays.asList(Arrays.asList("two\nlines", "end")),
+        read("\"two\nlines\",end\r\n"));
+    // Whatever follows the closing quote stays part of the field
+    assertEquals(Arrays.asList(Arrays.asList("ab c", "d")), read("\"ab\" c,d"));
+  }
+
+  @Test
+  public void keepsATrailingEmptyField() throws IOException {
+    assertEquals(Arrays.asList(Arrays.asList("a", ""), Arrays.asList("b", "")),
+        read("a,\nb,\r\n"));
+    assertEquals(Arrays.asList(Arrays.asList("a", "")), read("a,"));
+  }
+
+  @Test
+  public void skipsAByteOrderMark() throws IOException {
+    assertEquals(Arrays.asList(Arrays.asList("fid", "day")), read("\uFEFFfid,day\n"));
+  }
+
+  @Test(expected = EOFException.class)
+  public void rejectsAnUnterminatedQuote() throws IOException {
+    read("a,\"b\nc\n");
+  }
+
+  @Test
+  public void countsRecords() throws IOException {
+    CsvReader in = new CsvReader(new StringReader("a\n\nb\nc"));
+    assertEquals(0, in.recordNumber());
+    while (in.next()) {
+    }
+    assertEquals(3, in.recordNumber());
+  }
+
+  @Test
+  public void parsesInts() throws IOException {
+    CsvReader in = first("0,42,-7,+7,,2147483647,-2147483648,\"12\"");
+    assertEquals(0, in.getInt(0));
+    assertEquals(42, in.getInt(1));
+    assertEquals(-7, in.getInt(2));
+    assertEquals(7, in.getInt(3));
+    assertTrue(in.isEmpty(4));
+    assertEquals(0, in.getInt(4));
+    assertEquals(Integer.MAX_VALUE, in.getInt(5));
+    assertEquals(Integer.MIN_VALUE, in.getInt(6));
+    assertEquals(12, in.getInt(7));
+  }
+
+  @Test
+  public void rejectsIntsThatDoNotFit() throws IOException {
+    CsvReader in = first("2147483648,-2147483649,99999999999999999999,1.5,x,-, 1");
+    for (int i = 0; i < in.fieldCount(); i++) {
+      try {
+        in.getInt(i);
+        fail("parsed " + in.get(i));
+      } catch (NumberFormatException ex) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void growsForLongRecords() throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      line.append(i == 0 ? "" : ",").append(i).append('-');
+      for (int x = 0; x < 50; x++) {
+        line.append('x');
+      }
+    }
+    CsvReader in = first(line + "\n");
+    assertEquals(100, in.fieldCount());
+    assertTrue(in.get(99).startsWith("99-x"));
+  }
+}
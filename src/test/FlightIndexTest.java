@@ -0,0 +1,204 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares FlightIndex searches with every itinerary a random set of flights allows
+ */
+public class FlightIndexTest {
+  private static final String[] CITIES = {
+      "Alpha AK", "Beta BK", "Gamma GK", "Delta DK", "Epsilon EK", "Zeta ZK", "Eta HK",
+  };
+
+  private static class Leg {
+    final int fid;
+    final int day;
+    final int origin;
+    final int dest;
+    final int time;
+
+    Leg(int fid, int day, int origin, int dest, int time) {
+      this.fid = fid;
+      this.day = day;
+      this.origin = origin;
+      this.dest = dest;
+      this.time = time;
+    }
+  }
+
+  private List<Leg> legs;
+  private FlightIndex index;
+
+  @Before
+  public void setup() {
+    Random random = new Random(344);
+    legs = new ArrayList<>();
+    FlightStore.Builder builder = new FlightStore.Builder();
+    // Few distinct times, so many itineraries tie and are ordered by fid
+    for (int fid = 1; fid <= 300; fid++) {
+      int origin = random.nextInt(CITIES.length);
+      int dest = random.nextInt(CITIES.length - 1);
+      if (dest >= origin) {
+        dest++;
+      }
+      Leg leg = new Leg(fid, 1 + random.nextInt(3), origin, dest,
+          10 * (1 + random.nextInt(8)));
+      legs.add(leg);
+      builder.add(leg.fid, leg.day, "AA", "F" + leg.fid, CITIES[leg.origin], CITIES[leg.dest],
+          leg.time, 1 + random.nextInt(5), 100);
+    }
+    builder.add(1001, 0, "AA", "F1001", CITIES[0], CITIES[1], 1, 1, 1);
+    builder.add(1002, 32, "AA", "F1002", CITIES[0], CITIES[1], 1, 1, 1);
+    index = new FlightIndex(builder.build());
+  }
+
+  private static int totalTime(List<Leg> path) {
+    int total = 0;
+    for (Leg leg : path) {
+      total += leg.time;
+    }
+    return total;
+  }
+
+  private static final Comparator<List<Leg>> ORDER = (a, b) -> {
+    int c = Integer.compare(totalTime(a), totalTime(b));
+    for (int i = 0; c == 0 && i < Math.min(a.size(), b.size()); i++) {
+      c = Integer.compare(a.get(i).fid, b.get(i).fid);
+    }
+    return c != 0 ? c : Integer.compare(a.size(), b.size());
+  };
+
+  /** Every connection from origin to dest by brute force, best first */
+  private List<List<Leg>> allConnections(int origin, int dest, int day, int maxLegs) {
+    List<List<Leg>> found = new ArrayList<>();
+    walk(new ArrayList<>(), origin, dest, day, maxLegs, found);
+    found.sort(ORDER);
+    return found;
+  }
+
+  private void walk(List<Leg> path, int city, int dest, int day, int maxLegs,
+                    List<List<Leg>> found) {
+    for (Leg leg : legs) {
+      if (leg.day != day || leg.origin != city || onPath(path, leg.dest)) {
+        continue;
+      }
+      path.add(leg);
+      if (leg.dest == dest) {
+        if (path.size() > 1) {
+          found.add(new ArrayList<>(path));
+        }
+      } else if (path.size() < maxLegs) {
+        walk(path, leg.dest, dest, day, maxLegs, found);
+      }
+      path.remove(path.size() - 1);
+    }
+  }
+
+  private static boolean onPath(List<Leg> path, int city) {
+    if (!path.isEmpty() && path.get(0).origin == city) {
+      return true;
+    }
+    for (Leg leg : path) {
+      if (leg.dest == city) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<Integer> fids(int[] rows) {
+    List<Integer> fids = new ArrayList<>();
+    for (int row : rows) {
+      fids.add(index.store().flight(row).fid);
+    }
+    return fids;
+  }
+
+  private static List<Integer> fids(List<Leg> path) {
+    List<Integer> fids = new ArrayList<>();
+    for (Leg leg : path) {
+      fids.add(leg.fid);
+    }
+    return fids;
+  }
+
+  @Test
+  public void findsDirectFlightsByTimeThenFid() {
+    for (int day = 1; day <= 3; day++) {
+      for (int origin = 0; origin < CITIES.length; origin++) {
+        for (int dest = 0; dest < CITIES.length; dest++) {
+          List<List<Leg>> expected = new ArrayList<>();
+          for (Leg leg : legs) {
+            if (leg.day == day && leg.origin == origin && leg.dest == dest) {
+              expected.add(Collections.singletonList(leg));
+            }
+          }
+          expected.sort(ORDER);
+          for (int limit : new int[] {1, 2, 100}) {
+            List<List<Integer>> want = new ArrayList<>();
+            for (List<Leg> path : expected.subList(0, Math.min(limit, expected.size()))) {
+              want.add(fids(path));
+            }
+            List<List<Integer>> got = new ArrayList<>();
+            for (int row : index.direct(CITIES[origin], CITIES[dest], day, limit)) {
+              got.add(fids(new int[] {row}));
+            }
+            assertEquals(want, got);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void findsTheBestConnections() {
+    int found = 0;
+    for (int maxLegs = 2; maxLegs <= 3; maxLegs++) {
+      for (int day = 1; day <= 3; day++) {
+        for (int origin = 0; origin < CITIES.length; origin++) {
+          for (int dest = 0; dest < CITIES.length; dest++) {
+            if (origin == dest) {
+              continue;
+            }
+            List<List<Leg>> expected = allConnections(origin, dest, day, maxLegs);
+            found += expected.size();
+            for (int limit : new int[] {1, 5, 40}) {
+              List<List<Integer>> want = new ArrayList<>();
+              for (List<Leg> path : expected.subList(0, Math.min(limit, expected.size()))) {
+                want.add(fids(path));
+              }
+              List<List<Integer>> got = new ArrayList<>();
+              for (int[] rows : index.connections(CITIES[origin], CITIES[dest], day, maxLegs,
+                  limit)) {
+                got.add(fids(rows));
+              }
+              assertEquals(CITIES[origin] + " to " + CITIES[dest] + " on " + day, want, got);
+            }
+          }
+        }
+      }
+    }
+    assertTrue(found > 1000);
+  }
+
+  @Test
+  public void matchesCitiesIgnoringCase() {
+    assertArrayEquals(index.direct("Alpha AK", "Beta BK", 1, 10),
+        index.direct("ALPHA ak", "beta bk", 1, 10));
+  }
+
+  @Test
+  public void findsNothingForBadArguments() {
+    assertEquals(0, index.direct("Nowhere NK", "Beta BK", 1, 10).length);
+    assertEquals(0, index.direct("Alpha AK", "Beta BK", 1, 0).length);
+    assertEquals(0, index.direct("Alpha AK", "Beta BK", 0, 10).length);
+    assertEquals(0, index.direct("Alpha AK", "Beta BK", 32, 10).length);
+    assertTrue(index.connections("Alpha AK", "Nowhere NK", 1, 2, 10).isEmpty());
+    assertTrue(index.connections("Alpha AK", "Beta BK", 1, 2, 0).isEmpty());
+    assertTrue(index.connections("Alpha AK", "Beta BK", 1, 1, 10).isEmpty());
+  }
+}
@@ -25,6 +25,8 @@ public class FlightServiceTest {
   private static final int RESPONSE_TIME = 60;
   /** Thread pool used to run different users */
   private static ExecutorService pool;
+  /** Run each user's commands through AsyncQuery instead of on the thread pool */
+  private static final boolean ASYNC = Boolean.getBoolean("flights.async");
   /** Folder name and path that contains the test cases */
   private static String casesFolder;
 
@@ -65,6 +67,20 @@ public class FlightServiceTest {
       return sb.toString();
     }
 
+    /**
+     * Starts every command at once on an AsyncQuery, which runs them in order
+     */
+    public CompletableFuture<String> callAsync() {
+      AsyncQuery async = new AsyncQuery(q);
+      List<CompletableFuture<String>> responses = new ArrayList<>();
+      for (String cmd : cmds) {
+        responses.add(async.execute(cmd));
+      }
+
+      return CompletableFuture.allOf(responses.toArray(new CompletableFuture[0]))
+          .thenApply(done -> responses.stream().map(CompletableFuture::join).collect(Collectors.joining()));
+    }
+
     public void shutdown() throws Exception {
       this.q.closeConnection();
     }
@@ -208,7 +224,7 @@ public class FlightServiceTest {
     List<User> users = parse(this.file);
     List<Future<String>> futures = new ArrayList<>();
     for (User user : users) {
-      futures.add(pool.submit(user));
+      futures.add(ASYNC ? user.callAsync() : pool.submit(user));
     }
 
     // Waits for an output for each user
@@ -0,0 +1,147 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes flight snapshots and reads them back, including files that were damaged after
+ * they were written
+ */
+public class FlightSnapshotTest {
+  private static final String FLIGHTS =
+      "1,7,1,1,AA,11,Alpha AK,AK,Beta BK,BK,0,0,0,0,100,500,5,10\r\n" +
+      "\"2\",7,1,1,AA,\"1,2\",Beta BK,BK,Gamma GK,GK,0,0,0,0,120,500,5,20\r\n" +
+      "3,7,1,1,AA,13,Beta BK,BK,Gamma GK,GK,0,0,0,1,50,500,5,20\r\n" +
+      "\r\n" +
+      "4,7,2,1,\"B\"\"B\",14,Gamma GK,GK,Alpha AK,AK,0,0,0,0,75,500,9,30\r\n";
+
+  private Path dir;
+
+  @Before
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("snapshots");
+  }
+
+  @After
+  public void teardown() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  private FlightStore fromCsv() throws IOException {
+    Path csv = dir.resolve("flights.csv");
+    Files.write(csv, FLIGHTS.getBytes(StandardCharsets.UTF_8));
+    return FlightSnapshot.fromCsv(csv);
+  }
+
+  private static String describe(FlightStore store) {
+    StringBuilder sb = new StringBuilder();
+    for (int row = 0; row < store.size(); row++) {
+      store.appendTo(row, sb);
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void readsTheCsvWithoutCanceledFlights() throws IOException {
+    FlightStore store = fromCsv();
+    assertEquals(3, store.size());
+    assertEquals(-1, store.rowOf(3));
+    assertEquals("1,2", store.flight(store.rowOf(2)).flightNum);
+    assertEquals("B\"B", store.flight(store.rowOf(4)).carrierId);
+    assertEquals(2, store.flight(store.rowOf(4)).dayOfMonth);
+    assertTrue(store.cityCode("gamma gk") >= 0);
+  }
+
+  @Test
+  public void readsBackWhatItWrote() throws IOException {
+    FlightStore store = fromCsv();
+    Path file = dir.resolve("flights.snapshot");
+    FlightSnapshot.write(store, file);
+    FlightStore read = FlightSnapshot.open(file);
+
+    assertEquals(store.size(), read.size());
+    assertEquals(describe(store), describe(read));
+    int[][] written = store.columns();
+    int[][] columns = read.columns();
+    for (int c = 0; c < written.length; c++) {
+      assertArrayEquals(written[c], columns[c]);
+    }
+    assertArrayEquals(store.nodeStarts(), read.nodeStarts());
+    assertArrayEquals(store.destOrder(), read.destOrder());
+    assertArrayEquals(store.fidOrder(), read.fidOrder());
+    for (String city : new String[] {"Alpha AK", "BETA BK", "gamma gk", "Delta DK"}) {
+      assertEquals(store.cityCode(city), read.cityCode(city));
+    }
+  }
+
+  @Test
+  public void writesAnEmptyStore() throws IOException {
+    Path file = dir.resolve("empty.snapshot");
+    FlightSnapshot.write(new FlightStore.Builder().build(), file);
+    assertEquals(0, FlightSnapshot.open(file).size());
+  }
+
+  @Test
+  public void rejectsAChangedPayload() throws IOException {
+    Path file = dir.resolve("flights.snapshot");
+    FlightSnapshot.write(fromCsv(), file);
+    byte[] bytes = Files.readAllBytes(file);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(file, bytes);
+
+    try {
+      FlightSnapshot.open(file);
+      fail("opened a snapshot whose payload changed");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().endsWith("failed its checksum"));
+    }
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws IOException {
+    Path file = dir.resolve("flights.snapshot");
+    FlightSnapshot.write(fromCsv(), file);
+    byte[] bytes = Files.readAllBytes(file);
+    bytes[0] = 'X';
+    Files.write(file, bytes);
+
+    try {
+      FlightSnapshot.open(file);
+      fail("opened a file with the wrong magic");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().endsWith("is not a flight snapshot"));
+    }
+  }
+
+  @Test
+  public void rejectsATruncatedFile() throws IOException {
+    Path file = dir.resolve("flights.snapshot");
+    FlightSnapshot.write(fromCsv(), file);
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, java.util.Arrays.copyOf(bytes, bytes.length - 4));
+
+    try {
+      FlightSnapshot.open(file);
+      fail("opened a truncated snapshot");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("truncated"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsCsvRecordsWithTooFewFields() throws IOException {
+    Path csv = dir.resolve("short.csv");
+    Files.write(csv, "1,7,1,1,AA,11,Alpha AK\n".getBytes(StandardCharsets.UTF_8));
+    FlightSnapshot.fromCsv(csv);
+  }
+}
@@ -0,0 +1,89 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hashes and checks passwords with few iterations, including hashes made with other
+ * parameters and hashes stored before hashes had a header
+ */
+public class PasswordHasherTest {
+  private PasswordHasher hasher;
+
+  @Before
+  public void setup() {
+    hasher = new PasswordHasher(PasswordHasher.Algorithm.PBKDF2_SHA256, 1000, 256, 2, 16);
+  }
+
+  @Test
+  public void matchesOnlyTheRightPassword() {
+    byte[] salt = hasher.newSalt();
+    byte[] stored = hasher.hash("secret", salt);
+    assertTrue(hasher.isCurrent(stored));
+
+    PasswordHasher.Verification right = hasher.verify("secret", salt, stored);
+    assertTrue(right.matches);
+    assertNull(right.rehash);
+    assertFalse(hasher.verify("Secret", salt, stored).matches);
+    assertFalse(hasher.verify("secret", hasher.newSalt(), stored).matches);
+  }
+
+  @Test
+  public void saltsEveryHash() {
+    byte[] salt = hasher.newSalt();
+    assertEquals(PasswordHasher.SALT_BYTES, salt.length);
+    assertFalse(java.util.Arrays.equals(salt, hasher.newSalt()));
+    assertArrayEquals(hasher.hash("secret", salt), hasher.hash("secret", salt));
+    assertFalse(java.util.Arrays.equals(hasher.hash("secret", salt),
+        hasher.hash("secret", hasher.newSalt())));
+  }
+
+  @Test
+  public void rehashesWhenTheParametersChange() {
+    PasswordHasher old = new PasswordHasher(PasswordHasher.Algorithm.PBKDF2_SHA1, 500, 128, 1,
+        4);
+    byte[] salt = old.newSalt();
+    byte[] stored = old.hash("secret", salt);
+    assertFalse(hasher.isCurrent(stored));
+
+    PasswordHasher.Verification v = hasher.verify("secret", salt, stored);
+    assertTrue(v.matches);
+    assertNotNull(v.rehash);
+    assertTrue(hasher.isCurrent(v.rehash));
+    assertTrue(hasher.verify("secret", v.rehashSalt, v.rehash).matches);
+    assertNull(hasher.verify("secret", v.rehashSalt, v.rehash).rehash);
+
+    // A wrong password is never rehashed
+    assertNull(hasher.verify("wrong", salt, stored).rehash);
+    assertEquals(1, hasher.getRehashes());
+  }
+
+  @Test
+  public void checksHashesStoredWithoutAHeader() throws Exception {
+    byte[] salt = hasher.newSalt();
+    PBEKeySpec spec = new PBEKeySpec("secret".toCharArray(), salt, 65536, 128);
+    byte[] legacy = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec)
+        .getEncoded();
+
+    PasswordHasher.Verification v = hasher.verify("secret", salt, legacy);
+    assertTrue(v.matches);
+    assertTrue(hasher.isCurrent(v.rehash));
+    assertFalse(hasher.verify("wrong", salt, legacy).matches);
+  }
+
+  @Test
+  public void rejectsUnknownHashes() {
+    byte[] salt = hasher.newSalt();
+    assertFalse(hasher.verify("secret", salt, new byte[0]).matches);
+    assertFalse(hasher.verify("secret", salt, new byte[37]).matches);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsKeysOfPartialBytes() {
+    new PasswordHasher(PasswordHasher.Algorithm.PBKDF2_SHA256, 1000, 250, 1, 1);
+  }
+}
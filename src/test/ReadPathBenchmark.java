@@ -0,0 +1,102 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures booking throughput under a mixed search/book workload for each read isolation
+ * level. Searcher sessions search one busy route in a loop while booker sessions search,
+ * book and cancel on the same route.
+ * <p>
+ * Runs against the database in dbconn.properties and clears its tables first. Run with
+ * {@code java ReadPathBenchmark [searchers] [bookers] [seconds]}.
+ */
+public class ReadPathBenchmark {
+    private static final String ORIGIN = "Seattle WA";
+    private static final String DESTINATION = "Boston MA";
+    private static final int DAY = 1;
+    private static final int ITINERARIES = 10;
+
+    public static void main(String[] args) throws Exception {
+        int searchers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int bookers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        // Every search has to reach the database for this comparison to mean anything
+        System.setProperty("flights.searchCacheSize", "0");
+
+        Query setup = new Query();
+        setup.openConnection();
+        setup.prepareStatements();
+        setup.clearTables();
+        for (int b = 0; b < bookers; b++) {
+            setup.transaction_createCustomer("bench" + b, "bench", 1000000);
+        }
+        setup.closeConnection();
+
+        System.out.printf("%-15s %12s %12s %12s%n", "read isolation", "bookings/s",
+                "searches/s", "failed books");
+        for (Query.ReadIsolation isolation : new Query.ReadIsolation[]{
+                Query.ReadIsolation.SERIALIZABLE, Query.ReadIsolation.READ_COMMITTED}) {
+            run(isolation, searchers, bookers, seconds);
+        }
+    }
+
+    private static void run(Query.ReadIsolation isolation, int searchers, int bookers,
+                            int seconds) throws Exception {
+        AtomicLong bookings = new AtomicLong();
+        AtomicLong searches = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService pool = Executors.newFixedThreadPool(searchers + bookers);
+        List<Future<?>> sessions = new ArrayList<>();
+        for (int s = 0; s < searchers; s++) {
+            sessions.add(pool.submit(() -> {
+                Query q = open(isolation);
+                while (System.nanoTime() < deadline) {
+                    q.transaction_search(ORIGIN, DESTINATION, false, DAY, ITINERARIES);
+                    searches.incrementAndGet();
+                }
+                q.closeConnection();
+                return null;
+            }));
+        }
+        for (int b = 0; b < bookers; b++) {
+            String user = "bench" + b;
+            sessions.add(pool.submit(() -> {
+                Query q = open(isolation);
+                q.transaction_login(user, "bench");
+                while (System.nanoTime() < deadline) {
+                    q.transaction_search(ORIGIN, DESTINATION, false, DAY, ITINERARIES);
+                    String booked = q.transaction_book(0);
+                    if (booked.startsWith("Booked")) {
+                        bookings.incrementAndGet();
+                        int rid = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1)
+                                .trim());
+                        q.transaction_cancel(rid);
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+                q.closeConnection();
+                return null;
+            }));
+        }
+        for (Future<?> f : sessions) {
+            f.get();
+        }
+        pool.shutdown();
+
+        System.out.printf("%-15s %12.1f %12.1f %12d%n", isolation,
+                bookings.get() / (double) seconds, searches.get() / (double) seconds,
+                failures.get());
+    }
+
+    private static Query open(Query.ReadIsolation isolation) throws Exception {
+        Query q = new Query();
+        q.openConnection();
+        q.prepareStatements();
+        q.setReadIsolation(isolation);
+        return q;
+    }
+}
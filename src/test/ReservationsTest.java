@@ -0,0 +1,71 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Lists a booked one-stop itinerary, which must show both of its legs. The flights are a
+ * fixed set of three in memory, so the expected output does not depend on the flights
+ * data behind the cases/ scenarios.
+ */
+public class ReservationsTest {
+  private static final String FLIGHTS =
+      "1,7,1,1,AA,11,Alpha AK,AK,Beta BK,BK,0,0,0,0,100,500,5,10\n" +
+      "2,7,1,1,AA,12,Beta BK,BK,Gamma GK,GK,0,0,0,0,120,500,5,20\n" +
+      "3,7,1,1,AA,13,Beta BK,BK,Gamma GK,GK,0,0,0,1,50,500,5,20\n";
+
+  private static final String LEG_1 =
+      "ID: 1 Day: 1 Carrier: AA Number: 11 Origin: Alpha AK Dest: Beta BK Duration: 100 Capacity: 5 Price: 10\n";
+  private static final String LEG_2 =
+      "ID: 2 Day: 1 Carrier: AA Number: 12 Origin: Beta BK Dest: Gamma GK Duration: 120 Capacity: 5 Price: 20\n";
+
+  private MemoryStorage storage;
+
+  @Before
+  public void setup() throws Exception {
+    Path csv = Files.createTempFile("flights", ".csv");
+    try {
+      Files.write(csv, FLIGHTS.getBytes(StandardCharsets.UTF_8));
+      Query.useFlightStore(FlightSnapshot.fromCsv(csv));
+    } finally {
+      Files.delete(csv);
+    }
+    storage = new MemoryStorage();
+  }
+
+  @After
+  public void teardown() {
+    Query.forgetFlightIndex();
+  }
+
+  private Query open() throws Exception {
+    Query q = new Query(storage);
+    q.openConnection();
+    q.prepareStatements();
+    return q;
+  }
+
+  @Test
+  public void listsBothLegsOfAOneStopItinerary() throws Exception {
+    Query q = open();
+    assertEquals("Created user user1\n", q.transaction_createCustomer("user1", "pw", 100));
+    assertEquals("Logged in as user1\n", q.transaction_login("user1", "pw"));
+    assertEquals("Itinerary 0: 2 flight(s), 220 minutes\n" + LEG_1 + LEG_2,
+        q.transaction_search("Alpha AK", "Gamma GK", false, 1, 5));
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(0));
+
+    String listed = "Reservation 1 paid: false:\n" + LEG_1 + LEG_2;
+    assertEquals(listed, q.transaction_reservations());
+
+    // Another session reads the reservation back from storage rather than its own view
+    Query other = open();
+    assertEquals("Logged in as user1\n", other.transaction_login("user1", "pw"));
+    assertEquals(listed, other.transaction_reservations());
+    q.closeConnection();
+    other.closeConnection();
+  }
+}
@@ -0,0 +1,203 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which booked seat counts SearchCache re-reads, and when it forgets results
+ */
+public class SearchCacheTest {
+  private SearchCache cache;
+  // Booked seats the loader reports, and the fids it was asked for
+  private Map<Integer, Integer> booked;
+  private List<Set<Integer>> loads;
+  private SearchCache.CapacityLoader loader;
+
+  @Before
+  public void setup() {
+    cache = new SearchCache(2);
+    booked = new HashMap<>();
+    loads = new ArrayList<>();
+    loader = fids -> {
+      loads.add(new HashSet<>(fids));
+      Map<Integer, Integer> counts = new HashMap<>();
+      for (int fid : fids) {
+        counts.put(fid, booked.getOrDefault(fid, 0));
+      }
+      return counts;
+    };
+  }
+
+  private static Query.Flight flight(int fid, int capacity) {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = 1;
+    f.carrierId = "AA";
+    f.flightNum = "F" + fid;
+    f.originCity = "Alpha AK";
+    f.destCity = "Beta BK";
+    f.time = 60;
+    f.capacity = capacity;
+    f.price = 10;
+    return f;
+  }
+
+  private static final String KEY = SearchCache.key("Alpha AK", "Beta BK", false, 1, 2);
+
+  /** Caches a direct flight 1 with 2 seats and a one-stop of 2 and 3 with 1 seat each */
+  private void putTwoItineraries() {
+    List<Query.Itinerary> itineraries = Arrays.asList(new Query.Itinerary(flight(1, 2)),
+        new Query.Itinerary(flight(2, 1), flight(3, 1)));
+    cache.put(KEY, itineraries, "output", new HashMap<>(), cache.generation());
+  }
+
+  private static boolean[] full(SearchCache.Result result) {
+    boolean[] full = new boolean[result.itineraries.size()];
+    for (int i = 0; i < full.length; i++) {
+      full[i] = result.itineraries.get(i).full;
+    }
+    return full;
+  }
+
+  @Test
+  public void keysIgnoreCityCase() {
+    assertEquals(KEY, SearchCache.key("ALPHA ak", "beta BK", false, 1, 2));
+    assertNotEquals(KEY, SearchCache.key("Alpha AK", "Beta BK", true, 1, 2));
+    assertNotEquals(KEY, SearchCache.key("Alpha AK", "Beta BK", false, 1, 3));
+  }
+
+  @Test
+  public void servesAHitWithoutLoading() throws SQLException {
+    assertNull(cache.get(KEY, loader));
+    putTwoItineraries();
+    SearchCache.Result result = cache.get(KEY, loader);
+    assertEquals("output", result.output);
+    assertEquals(2, result.itineraries.size());
+    assertEquals(3, result.itineraries.get(1).fid(1));
+    assertFalse(result.itineraries.get(0).full);
+    assertTrue(loads.isEmpty());
+  }
+
+  @Test
+  public void reloadsOnlyInvalidatedFlights() throws SQLException {
+    putTwoItineraries();
+    booked.put(3, 1);
+    booked.put(1, 1);
+    cache.invalidateFlight(3);
+    cache.invalidateFlight(99);
+
+    assertArrayEquals(new boolean[] {false, true}, full(cache.get(KEY, loader)));
+    assertEquals(Collections.singletonList(Collections.singleton(3)), loads);
+
+    // Already fresh
+    assertArrayEquals(new boolean[] {false, true}, full(cache.get(KEY, loader)));
+    assertEquals(1, loads.size());
+
+    booked.put(3, 0);
+    booked.put(1, 2);
+    cache.invalidateFlight(3);
+    cache.invalidateFlight(1);
+    assertArrayEquals(new boolean[] {true, false}, full(cache.get(KEY, loader)));
+    assertEquals(new HashSet<>(Arrays.asList(1, 3)), loads.get(1));
+  }
+
+  @Test
+  public void keepsFlightsStaleWhenLoadingFails() throws SQLException {
+    putTwoItineraries();
+    cache.invalidateFlight(2);
+    SearchCache.CapacityLoader failing = fids -> {
+      throw new SQLException("down");
+    };
+    try {
+      cache.get(KEY, failing);
+      fail("the loader failure was swallowed");
+    } catch (SQLException ex) {
+      assertEquals("down", ex.getMessage());
+    }
+
+    booked.put(2, 1);
+    assertArrayEquals(new boolean[] {false, true}, full(cache.get(KEY, loader)));
+    assertEquals(Collections.singletonList(Collections.singleton(2)), loads);
+  }
+
+  @Test
+  public void keepsFlightsStaleWhileTheyLoad() throws SQLException {
+    putTwoItineraries();
+    booked.put(2, 1);
+    cache.invalidateFlight(2);
+    // Another hit on the same search while the first one is still loading
+    List<boolean[]> during = new ArrayList<>();
+    SearchCache.CapacityLoader first = fids -> {
+      during.add(full(cache.get(KEY, loader)));
+      return loader.load(fids);
+    };
+
+    assertArrayEquals(new boolean[] {false, true}, full(cache.get(KEY, first)));
+    assertArrayEquals(new boolean[] {false, true}, during.get(0));
+    assertEquals(2, loads.size());
+  }
+
+  @Test
+  public void reloadsAFlightInvalidatedDuringItsLoad() throws SQLException {
+    putTwoItineraries();
+    cache.invalidateFlight(2);
+    SearchCache.CapacityLoader racing = fids -> {
+      Map<Integer, Integer> counts = loader.load(fids);
+      // A booking commits after the counts were read
+      booked.put(2, 1);
+      cache.invalidateFlight(2);
+      return counts;
+    };
+
+    assertArrayEquals(new boolean[] {false, false}, full(cache.get(KEY, racing)));
+    assertArrayEquals(new boolean[] {false, true}, full(cache.get(KEY, loader)));
+    assertEquals(2, loads.size());
+  }
+
+  @Test
+  public void distrustsCountsLoadedAcrossAnInvalidation() throws SQLException {
+    long loadedAt = cache.generation();
+    cache.invalidateFlight(1);
+    booked.put(1, 2);
+    cache.put(KEY, Collections.singletonList(new Query.Itinerary(flight(1, 2))), null,
+        new HashMap<>(), loadedAt);
+
+    SearchCache.Result result = cache.get(KEY, loader);
+    assertNull(result.output);
+    assertTrue(result.itineraries.get(0).full);
+    assertEquals(Collections.singletonList(Collections.singleton(1)), loads);
+  }
+
+  @Test
+  public void handsOutCopies() throws SQLException {
+    putTwoItineraries();
+    cache.get(KEY, loader).itineraries.get(0).full = true;
+    assertFalse(cache.get(KEY, loader).itineraries.get(0).full);
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsed() throws SQLException {
+    String second = SearchCache.key("Beta BK", "Alpha AK", false, 1, 2);
+    String third = SearchCache.key("Gamma GK", "Alpha AK", false, 1, 2);
+    putTwoItineraries();
+    cache.put(second, Collections.singletonList(new Query.Itinerary(flight(4, 1))), "second",
+        new HashMap<>(), cache.generation());
+    assertNotNull(cache.get(KEY, loader));
+    cache.put(third, Collections.singletonList(new Query.Itinerary(flight(5, 1))), "third",
+        new HashMap<>(), cache.generation());
+
+    assertEquals(2, cache.size());
+    assertNull(cache.get(second, loader));
+    assertNotNull(cache.get(KEY, loader));
+    assertNotNull(cache.get(third, loader));
+
+    long generation = cache.generation();
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertTrue(cache.generation() != generation);
+  }
+}
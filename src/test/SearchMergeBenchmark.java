@@ -0,0 +1,137 @@
+import java.util.*;
+
+/**
+ * Micro-benchmark for the merge and render step of search. Compares the original
+ * {@code ArrayList.remove(0)} / {@code TreeMap} / string concatenation approach against
+ * {@link Query#mergeResults} and {@link Query#renderResults} for growing result sizes.
+ * <p>
+ * Run with {@code java SearchMergeBenchmark [k ...]}; no database is needed.
+ */
+public class SearchMergeBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int[] sizes = {100, 1000, 5000, 20000};
+        if (args.length > 0) {
+            sizes = Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        }
+
+        System.out.printf("%8s %14s %14s %9s%n", "k", "legacy (ms)", "current (ms)", "speedup");
+        for (int k : sizes) {
+            List<Query.Itinerary> direct = new ArrayList<>();
+            List<Query.Itinerary> indirect = new ArrayList<>();
+            generate(k, direct, indirect);
+
+            // Both approaches must produce identical output
+            if (!legacy(direct, indirect).equals(current(direct, indirect))) {
+                throw new IllegalStateException("Outputs differ for k = " + k);
+            }
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                legacy(direct, indirect);
+                current(direct, indirect);
+            }
+            double legacyMs = time(() -> legacy(direct, indirect));
+            double currentMs = time(() -> current(direct, indirect));
+            System.out.printf("%8d %14.3f %14.3f %8.1fx%n", k, legacyMs, currentMs,
+                    legacyMs / currentMs);
+        }
+    }
+
+    private static double time(Runnable r) {
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            r.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+    }
+
+    /**
+     * Builds k sorted itineraries, a third of them direct
+     */
+    private static void generate(int k, List<Query.Itinerary> direct,
+                                 List<Query.Itinerary> indirect) {
+        Random random = new Random(344);
+        for (int n = 0; n < k; n++) {
+            Query.Flight f1 = flight(random, n * 2);
+            if (n % 3 == 0) {
+                direct.add(new Query.Itinerary(f1));
+            } else {
+                indirect.add(new Query.Itinerary(f1, flight(random, n * 2 + 1)));
+            }
+        }
+        Comparator<Query.Itinerary> order = Comparator.<Query.Itinerary>comparingInt(
+                i -> i.totalTime).thenComparingInt(i -> i.fid(0));
+        direct.sort(order);
+        indirect.sort(order);
+    }
+
+    private static Query.Flight flight(Random random, int fid) {
+        Query.Flight f = new Query.Flight();
+        f.fid = fid;
+        f.dayOfMonth = 1 + random.nextInt(31);
+        f.carrierId = "AS";
+        f.flightNum = String.valueOf(random.nextInt(3000));
+        f.originCity = "Seattle WA";
+        f.destCity = "Boston MA";
+        f.time = 60 + random.nextInt(400);
+        f.capacity = random.nextInt(20);
+        f.price = 100 + random.nextInt(900);
+        return f;
+    }
+
+    private static String current(List<Query.Itinerary> direct, List<Query.Itinerary> indirect) {
+        List<Query.Itinerary> combined = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        Query.mergeResults(direct, indirect, combined);
+        Query.renderResults(combined, sb);
+        return sb.toString();
+    }
+
+    /**
+     * The merge and render step as it was originally written in transaction_search
+     */
+    private static String legacy(List<Query.Itinerary> directSource,
+                                 List<Query.Itinerary> indirectSource) {
+        List<Query.Itinerary> directResults = new ArrayList<>(directSource);
+        List<Query.Itinerary> indirectResults = new ArrayList<>(indirectSource);
+        SortedMap<Integer, Query.Itinerary> combinedResults = new TreeMap<>();
+        StringBuffer sb = new StringBuffer();
+
+        int id = 0;
+        while (directResults.size() != 0 && indirectResults.size() != 0) {
+            if (directResults.get(0).totalTime < indirectResults.get(0).totalTime) {
+                combinedResults.put(id, directResults.remove(0));
+            } else if (directResults.get(0).totalTime > indirectResults.get(0).totalTime) {
+                combinedResults.put(id, indirectResults.remove(0));
+            } else {
+                if (directResults.get(0).fid(0) < indirectResults.get(0).fid(0)) {
+                    combinedResults.put(id, directResults.remove(0));
+                } else {
+                    combinedResults.put(id, indirectResults.remove(0));
+                }
+            }
+            id++;
+        }
+        while (directResults.size() != 0) {
+            combinedResults.put(id++, directResults.remove(0));
+        }
+        while (indirectResults.size() != 0) {
+            combinedResults.put(id++, indirectResults.remove(0));
+        }
+
+        int itineraryId = 0;
+        for (Map.Entry<Integer, Query.Itinerary> entry : combinedResults.entrySet()) {
+            Query.Itinerary i = entry.getValue();
+            String itineraryString = "Itinerary " + itineraryId + ": " + i.numFlights +
+                    " flight(s), " + i.totalTime + " minutes\n";
+            for (int leg = 0; leg < i.numFlights; leg++) {
+                itineraryString += i.flight(leg).toString() + "\n";
+            }
+            itineraryId++;
+            sb.append(itineraryString);
+        }
+        return sb.toString();
+    }
+}
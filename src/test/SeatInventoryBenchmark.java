@@ -0,0 +1,70 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures seat admission in {@link SeatInventory} under contention. Every thread books
+ * and releases seats on the same few hot flights, and the benchmark fails if a flight is
+ * ever seen booked beyond its capacity.
+ * <p>
+ * Run with {@code java SeatInventoryBenchmark [threads] [seconds]}; no database is needed,
+ * nothing is flushed.
+ */
+public class SeatInventoryBenchmark {
+    private static final int FLIGHTS = 4;
+    private static final int CAPACITY = 3;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        FlightStore.Builder builder = new FlightStore.Builder();
+        for (int fid = 0; fid < FLIGHTS; fid++) {
+            builder.add(fid, 1, "AS", String.valueOf(fid), "Seattle WA", "Boston MA", 300,
+                    CAPACITY, 100);
+        }
+        SeatInventory inventory = new SeatInventory(builder.build(), 100);
+
+        AtomicLong admitted = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers.add(pool.submit(() -> {
+                Random random = new Random(seed);
+                while (System.nanoTime() < deadline) {
+                    // A two-leg itinerary over two of the hot flights
+                    int first = random.nextInt(FLIGHTS);
+                    int second = (first + 1 + random.nextInt(FLIGHTS - 1)) % FLIGHTS;
+                    if (inventory.tryBook(first, second)) {
+                        admitted.incrementAndGet();
+                        for (int booked : inventory.bookedCounts(Arrays.asList(first, second))
+                                .values()) {
+                            if (booked > CAPACITY) {
+                                throw new IllegalStateException("Oversold: " + booked);
+                            }
+                        }
+                        inventory.release(first, second);
+                    } else {
+                        refused.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : workers) {
+            f.get();
+        }
+        pool.shutdown();
+
+        long attempts = admitted.get() + refused.get();
+        System.out.printf("%d threads: %d attempts, %d admitted, %d refused, %.0f ns/attempt%n",
+                threads, attempts, admitted.get(), refused.get(),
+                seconds * 1e9 * threads / attempts);
+        if (!inventory.bookedCounts(Arrays.asList(0, 1, 2, 3)).isEmpty()) {
+            throw new IllegalStateException("Seats left booked after every release");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load client for {@link FlightServer}. It opens many connections that stay idle for the
+ * whole run, plus a few active ones that each keep a window of pipelined commands in
+ * flight, and reports the active connections' command throughput and round trip times.
+ * <p>
+ * Run with {@code java ServerLoadBenchmark [host] [port] [idle] [active] [pipeline]
+ * [seconds] [command]} against a running server. The default command is a direct search,
+ * which needs the server's database but no login. Idle connections never send a command,
+ * so they never open a database connection.
+ */
+public class ServerLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9090;
+        int idle = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int active = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int pipeline = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        String command = args.length > 6 ? args[6] : "search \"Seattle WA\" \"Boston MA\" 1 1 5";
+
+        List<Socket> idleSockets = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < idle; i++) {
+            idleSockets.add(new Socket(host, port));
+        }
+        System.out.printf("%d idle connections opened in %.1f s%n", idle,
+                (System.nanoTime() - start) / 1e9);
+
+        AtomicLong responses = new AtomicLong();
+        AtomicLong batchNanos = new AtomicLong();
+        AtomicLong batches = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(active);
+        List<Future<?>> clients = new ArrayList<>();
+        for (int c = 0; c < active; c++) {
+            clients.add(pool.submit(() -> {
+                try (Socket socket = new Socket(host, port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(
+                             socket.getInputStream(), StandardCharsets.UTF_8));
+                     Writer out = new BufferedWriter(new OutputStreamWriter(
+                             socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                    socket.setTcpNoDelay(true);
+                    while (System.nanoTime() < deadline) {
+                        long sent = System.nanoTime();
+                        for (int i = 0; i < pipeline; i++) {
+                            out.write(command);
+                            out.write('\n');
+                        }
+                        out.flush();
+                        for (int i = 0; i < pipeline; i++) {
+                            readResponse(in);
+                        }
+                        responses.addAndGet(pipeline);
+                        batchNanos.addAndGet(System.nanoTime() - sent);
+                        batches.incrementAndGet();
+                    }
+                    out.write("quit\n");
+                    out.flush();
+                    readResponse(in);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : clients) {
+            f.get();
+        }
+        pool.shutdown();
+        for (Socket socket : idleSockets) {
+            socket.close();
+        }
+
+        System.out.printf("%d active connections, pipeline %d: %d responses, %.0f responses/s, "
+                        + "%.2f ms per pipelined batch%n",
+                active, pipeline, responses.get(), responses.get() / (double) seconds,
+                batchNanos.get() / 1e6 / Math.max(1, batches.get()));
+    }
+
+    /**
+     * Reads one response, up to and including the empty line that ends it
+     */
+    private static void readResponse(BufferedReader in) throws IOException {
+        for (String line = in.readLine(); ; line = in.readLine()) {
+            if (line == null) {
+                throw new EOFException("Server closed the connection");
+            } else if (line.isEmpty()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs work through TransactionExecutor with recording steps, and classifies the errors
+ * SQL Server and other drivers report
+ */
+public class TransactionExecutorTest {
+  // What the executor did, in order
+  private List<String> log;
+  private TransactionExecutor executor;
+
+  @Before
+  public void setup() {
+    log = new ArrayList<>();
+    executor = new TransactionExecutor(() -> log.add("commit"), () -> log.add("rollback"), 3,
+        0, 0);
+  }
+
+  private final TransactionExecutor.Step begin = () -> log.add("begin");
+
+  private static SQLException vendor(int code) {
+    return new SQLException("failed", "S0001", code);
+  }
+
+  @Test
+  public void classifiesByErrorCode() {
+    assertEquals(TransactionExecutor.Failure.DEADLOCK, TransactionExecutor.classify(vendor(1205)));
+    assertEquals(TransactionExecutor.Failure.SERIALIZATION,
+        TransactionExecutor.classify(vendor(3960)));
+    assertEquals(TransactionExecutor.Failure.SERIALIZATION,
+        TransactionExecutor.classify(vendor(3961)));
+    assertEquals(TransactionExecutor.Failure.LOCK_TIMEOUT,
+        TransactionExecutor.classify(vendor(1222)));
+    assertEquals(TransactionExecutor.Failure.CONSTRAINT,
+        TransactionExecutor.classify(vendor(2627)));
+    assertEquals(TransactionExecutor.Failure.CONSTRAINT,
+        TransactionExecutor.classify(vendor(2601)));
+    assertEquals(TransactionExecutor.Failure.CONSTRAINT, TransactionExecutor.classify(vendor(547)));
+    assertEquals(TransactionExecutor.Failure.OTHER, TransactionExecutor.classify(vendor(208)));
+  }
+
+  @Test
+  public void classifiesBySqlState() {
+    assertEquals(TransactionExecutor.Failure.DEADLOCK,
+        TransactionExecutor.classify(new SQLException("x", "40P01")));
+    assertEquals(TransactionExecutor.Failure.SERIALIZATION,
+        TransactionExecutor.classify(new SQLException("x", "40001")));
+    assertEquals(TransactionExecutor.Failure.LOCK_TIMEOUT,
+        TransactionExecutor.classify(new SQLException("x", "55P03")));
+    assertEquals(TransactionExecutor.Failure.CONSTRAINT,
+        TransactionExecutor.classify(new SQLException("x", "23505")));
+    assertEquals(TransactionExecutor.Failure.SERIALIZATION,
+        TransactionExecutor.classify(new SQLTransactionRollbackException("x")));
+    assertEquals(TransactionExecutor.Failure.CONSTRAINT,
+        TransactionExecutor.classify(new SQLIntegrityConstraintViolationException("x")));
+    assertEquals(TransactionExecutor.Failure.OTHER,
+        TransactionExecutor.classify(new SQLException("x")));
+    assertEquals(TransactionExecutor.Failure.OTHER,
+        TransactionExecutor.classify(new SQLException("x", "08S01")));
+  }
+
+  @Test
+  public void commitsWorkThatSucceeds() {
+    String result = executor.execute(begin, tx -> {
+      tx.afterCommit(() -> log.add("after commit"));
+      tx.afterRollback(() -> log.add("after rollback"));
+      return "done";
+    }, "failed");
+    assertEquals("done", result);
+    assertEquals(Arrays.asList("begin", "commit", "after commit"), log);
+    assertEquals(1, executor.getAttemptCounts()[0]);
+  }
+
+  @Test
+  public void rollsBackOnRequest() {
+    String result = executor.execute(begin, tx -> {
+      tx.afterRollback(() -> log.add("after rollback"));
+      tx.setRollbackOnly();
+      return "kept";
+    }, "failed");
+    assertEquals("kept", result);
+    assertEquals(Arrays.asList("begin", "rollback", "after rollback"), log);
+  }
+
+  @Test
+  public void retriesDeadlocksUntilOneCommits() {
+    String result = executor.execute(begin, tx -> {
+      if (tx.attempt() < 3) {
+        throw vendor(1205);
+      }
+      return "third";
+    }, "failed");
+    assertEquals("third", result);
+    assertEquals(Arrays.asList("begin", "rollback", "begin", "rollback", "begin", "commit"),
+        log);
+    assertEquals(3, executor.getAttempts());
+    assertEquals(2, executor.getRetries());
+    assertEquals(2, executor.getFailures(TransactionExecutor.Failure.DEADLOCK));
+    assertArrayEquals(new long[] {0, 0, 1}, executor.getAttemptCounts());
+  }
+
+  @Test
+  public void givesUpAfterTheLastAttempt() {
+    String result = executor.execute(begin, tx -> tx.retry(), "failed");
+    assertEquals("failed", result);
+    assertEquals(3, executor.getFailures(TransactionExecutor.Failure.CONFLICT));
+    assertEquals(3, Collections.frequency(log, "rollback"));
+    assertArrayEquals(new long[] {0, 0, 1}, executor.getAttemptCounts());
+  }
+
+  @Test
+  public void retriesConstraintFailuresOnlyWhenAsked() {
+    assertEquals("failed", executor.execute(begin, tx -> {
+      throw vendor(2627);
+    }, "failed"));
+    assertEquals(1, executor.getAttempts());
+
+    assertEquals("second", executor.execute(begin, tx -> {
+      tx.retryOn(TransactionExecutor.Failure.CONSTRAINT);
+      if (tx.attempt() == 1) {
+        throw vendor(2627);
+      }
+      return "second";
+    }, "failed"));
+    assertEquals(3, executor.getAttempts());
+  }
+
+  @Test
+  public void rollsBackBeforeRethrowingARuntimeException() {
+    try {
+      executor.execute(begin, tx -> {
+        tx.afterRollback(() -> log.add("after rollback"));
+        throw new IllegalStateException("bug");
+      }, "failed");
+      fail("the exception was swallowed");
+    } catch (IllegalStateException ex) {
+      assertEquals("bug", ex.getMessage());
+    }
+    assertEquals(Arrays.asList("begin", "rollback", "after rollback"), log);
+    assertEquals(1, executor.getFailures(TransactionExecutor.Failure.OTHER));
+    assertEquals(0, executor.getRetries());
+  }
+
+  @Test
+  public void doesNotRollBackAfterACommit() {
+    try {
+      executor.execute(begin, tx -> {
+        tx.afterCommit(() -> {
+          throw new IllegalStateException("listener");
+        });
+        return "done";
+      }, "failed");
+      fail("the exception was swallowed");
+    } catch (IllegalStateException ex) {
+      assertEquals("listener", ex.getMessage());
+    }
+    assertEquals(Arrays.asList("begin", "commit"), log);
+  }
+}